@@ -0,0 +1,160 @@
+(ns io.factorhouse.kpow.bench
+  "Synthetic telemetry for the agent's JMH benchmarks in bench/java."
+  (:require [io.factorhouse.kpow.agent :as agent]
+            [io.factorhouse.kpow.serdes :as serdes])
+  (:import (io.factorhouse.kpow MetricFilter)
+           (io.factorhouse.kpow.key ClientIdKeyStrategy)
+           (org.apache.kafka.clients.producer MockProducer)
+           (org.apache.kafka.common Metric MetricName)
+           (org.apache.kafka.common.serialization Serializer)
+           (org.apache.kafka.streams KafkaStreams$State StreamsBuilder Topology)
+           (org.apache.kafka.streams.kstream Materialized Predicate ValueMapper)))
+
+(def tag-sets
+  [{"client-id" "orders-7c9f-StreamThread-1-consumer" "thread-id" "orders-7c9f-StreamThread-1" "task-id" "0_12"}
+   {"client-id" "orders-7c9f" "thread-id" "orders-7c9f-StreamThread-2" "task-id" "1_4" "rocksdb-state-id" "order-totals"}
+   {"thread-id" "orders-7c9f-StreamThread-3"}])
+
+(def metric-names
+  ["commit-latency-avg" "process-latency-avg" "poll-latency-avg" "process-rate" "records-processed-rate"
+   "records-lag-max" "records-lag" "put-rate" "get-rate" "flush-rate" "block-cache-usage" "bytes-written-rate"])
+
+(defn metric
+  [n]
+  {:name  (nth metric-names (mod n (count metric-names)))
+   :tags  (assoc (nth tag-sets (mod n (count tag-sets))) "partition" (str (mod n 512)))
+   :value (* 1.5 n)})
+
+(defn metrics-batch
+  "A metrics record as produced by io.factorhouse.kpow.agent/metrics-send with n metrics."
+  [n]
+  {:type           :kafka/streams-agent-metrics
+   :application-id "orders"
+   :client-id      "orders-7c9f"
+   :captured       1700000000000
+   :data           (mapv metric (range n))
+   :job/id         "5d0c1b5e-4f21-4a4e-9a4e-0f6a4fb0f2f1"
+   :snapshot/id    {:domain :streams :id [:cluster "lkc-9x8y7z" :kafka/streams-agent "orders-7c9f"]}})
+
+(def store-metric-names
+  ["put-rate" "get-rate" "flush-rate" "put-latency-avg" "get-latency-avg" "bytes-written-rate" "bytes-read-rate"
+   "memtable-hit-ratio" "block-cache-data-hit-ratio" "write-stall-duration-avg" "number-open-files" "estimate-num-keys"])
+
+(def thread-metric-names
+  ["commit-latency-avg" "process-latency-avg" "poll-latency-avg" "process-rate" "records-processed-rate"
+   "failed-stream-threads" "rebalances" "records-lag-max" "records-lag" "commit-rate" "poll-rate" "punctuate-rate"])
+
+(defn ^MetricName synthetic-metric-name
+  "A metric name shaped like Kafka Streams thread, task and RocksDB store metrics."
+  [n]
+  (let [thread (str "orders-7c9f-StreamThread-" (inc (mod n 8)))
+        task   (str (mod n 16) "_" (mod (quot n 16) 512))]
+    (case (int (mod n 3))
+      0 (MetricName. (nth thread-metric-names (mod (quot n 3) (count thread-metric-names)))
+                     "stream-thread-metrics" "" {"thread-id" thread})
+      1 (MetricName. (nth store-metric-names (mod (quot n 3) (count store-metric-names)))
+                     "stream-state-metrics" "" {"thread-id" thread "task-id" task "rocksdb-state-id" (str "store-" (mod n 20))})
+      2 (MetricName. (nth thread-metric-names (mod (quot n 3) (count thread-metric-names)))
+                     "stream-task-metrics" "" {"thread-id" thread "task-id" task}))))
+
+(defn ^"[Lorg.apache.kafka.common.MetricName;" synthetic-metric-names
+  [n]
+  (into-array MetricName (map synthetic-metric-name (range n))))
+
+(defn long-chain-filter
+  "A custom filter of the kind built by hand in applications: denies, group predicates and many prefixes."
+  ^MetricFilter []
+  (let [filter (-> (MetricFilter.)
+                   (.denyNameStartsWith "punctuate")
+                   (.deny (reify java.util.function.Predicate
+                            (test [_ metric-name] (= "stream-processor-node-metrics" (.group ^MetricName metric-name))))))]
+    (doseq [name (concat thread-metric-names store-metric-names)]
+      (.acceptNameStartsWith filter name))
+    (.deny filter)))
+
+(defn rules-filter
+  "The long-chain-filter written as declarative rules, with one exact group and name rule per metric."
+  ^MetricFilter []
+  (let [filter (-> (MetricFilter.)
+                   (.rule "deny name=prefix:punctuate")
+                   (.rule "deny group=stream-processor-node-metrics"))]
+    (doseq [name thread-metric-names]
+      (.rule filter (str "accept group=stream-thread-metrics name=" name)))
+    (doseq [name store-metric-names]
+      (.rule filter (str "accept group=stream-state-metrics name=" name " tag.rocksdb-state-id=*")))
+    (.rule filter "deny")))
+
+(defprotocol SyntheticStreams
+  (metrics [this])
+  (state [this]))
+
+(defn synthetic-streams
+  "An object shaped like KafkaStreams for the agent, with n metrics whose values change on every read."
+  [n]
+  (let [app-id   (MetricName. "application-id" "stream-metrics" "" {"client-id" "orders-7c9f"})
+        registry (into {app-id (reify Metric
+                                 (metricName [_] app-id)
+                                 (metricValue [_] "orders"))}
+                       (map (fn [^MetricName metric-name]
+                              [metric-name (reify Metric
+                                             (metricName [_] metric-name)
+                                             (metricValue [_] (double (System/nanoTime))))]))
+                       (synthetic-metric-names n))]
+    (reify SyntheticStreams
+      (metrics [_] registry)
+      (state [_] KafkaStreams$State/RUNNING))))
+
+(defn large-topology
+  "A topology with n sub-topologies, each a source, a filter, a map, an aggregation over a store and a sink."
+  ^Topology [n]
+  (let [builder (StreamsBuilder.)]
+    (doseq [i (range n)]
+      (-> (.stream builder (str "input-" i))
+          (.filter (reify Predicate (test [_ _ v] (some? v))))
+          (.mapValues (reify ValueMapper (apply [_ v] v)))
+          (.groupByKey)
+          (.count (Materialized/as (str "counts-" i)))
+          (.toStream)
+          (.to (str "output-" i))))
+    (.build builder)))
+
+(defn cycle-context
+  "The context snapshot-telemetry is called with by the agent for one registration, sending to a MockProducer."
+  [streams ^Topology topology ^MetricFilter metrics-filter]
+  (assoc agent/default-opts
+         :streams                     streams
+         :topology                    topology
+         :metrics-filter              metrics-filter
+         :key-strategy                (ClientIdKeyStrategy.)
+         :cache                       (atom {})
+         :producer                    (MockProducer. true nil ^Serializer (serdes/transit-json-serializer) ^Serializer (serdes/transit-json-serializer))
+         :snapshot-topic              {:topic "__oprtr_snapshot_state"}
+         :send-mode                   :blocking
+         :wire-format                 :json
+         :job-id                      "5d0c1b5e-4f21-4a4e-9a4e-0f6a4fb0f2f1"
+         :agent-id                    "bench"
+         :metric-index-refresh-cycles Integer/MAX_VALUE
+         :topology-interval-ms        0
+         :delta-keyframe-cycles       0
+         :delta-epsilon               0.0))
+
+(defn snapshot-cycle
+  "Runs one observation against the context, with a cold cache when steady-state? is false."
+  [{:keys [cache ^MockProducer producer] :as ctx} steady-state?]
+  (when-not steady-state?
+    (reset! cache {}))
+  (let [result (agent/snapshot-telemetry ctx)]
+    (.clear producer)
+    result))
+
+(defn encoded-sizes
+  "Prints the encoded size of a metrics record in each wire format for a range of batch sizes:
+
+    lein with-profile +bench run -m clojure.main -e \"(require 'io.factorhouse.kpow.bench) (io.factorhouse.kpow.bench/encoded-sizes)\""
+  []
+  (println "metrics  json-bytes  msgpack-bytes")
+  (doseq [n [1 50 500 5000]]
+    (let [record (metrics-batch n)]
+      (println (format "%7d  %10d  %13d" n
+                       (count (serdes/transit-serialize :json record))
+                       (count (serdes/transit-serialize :msgpack record)))))))
@@ -0,0 +1,424 @@
+(ns io.factorhouse.kpow.soak
+  "An end-to-end soak of the agent's steady-state overhead on a fleet of in-process streams applications.
+
+  Each application is mock-backed: a Kafka Metrics registry shaped like a KafkaStreams client, with thread,
+  task and state store sensors, driven by host threads that process records at a fixed rate against
+  in-memory stores. The fleet runs once without and once with a registry attached, sending to a
+  MockProducer, and the report compares the two:
+
+    lein soak --apps 4 --duration-s 300 --out target/soak/1.1.0.edn
+
+  Pass --compare with the report of a previous release to fail (exit 1) when any overhead grows by more
+  than --threshold."
+  (:require [clojure.edn :as edn]
+            [clojure.java.io :as io]
+            [clojure.pprint :as pprint]
+            [io.factorhouse.kpow.agent :as agent]
+            [io.factorhouse.kpow.bench :as bench]
+            [io.factorhouse.kpow.serdes :as serdes])
+  (:import (com.sun.management GarbageCollectionNotificationInfo OperatingSystemMXBean ThreadMXBean)
+           (io.factorhouse.kpow MetricFilter StreamsRegistryConfig StreamsRegistryConfig$SendMode StreamsRegistryConfig$WireFormat)
+           (io.factorhouse.kpow.bench SyntheticStreams)
+           (io.factorhouse.kpow.key ClientIdKeyStrategy)
+           (java.lang.management GarbageCollectorMXBean ManagementFactory)
+           (java.util HashMap Map)
+           (java.util.concurrent Executors ScheduledExecutorService ThreadLocalRandom TimeUnit)
+           (java.util.concurrent.atomic AtomicLongArray)
+           (java.util.concurrent.locks LockSupport)
+           (javax.management NotificationEmitter NotificationListener)
+           (javax.management.openmbean CompositeData)
+           (org.apache.kafka.clients.producer MockProducer ProducerRecord)
+           (org.apache.kafka.common.metrics Gauge Metrics Sensor)
+           (org.apache.kafka.common.metrics.stats Avg CumulativeCount Max Rate)
+           (org.apache.kafka.common.serialization Serializer)
+           (org.apache.kafka.streams KafkaStreams$State)))
+
+(def default-opts
+  {:apps               4
+   :threads            4
+   :tasks              8
+   :stores             3
+   :keyspace           10000
+   :rate               1000
+   :warmup-s           30
+   :duration-s         300
+   :interval-ms        5000
+   :sample-interval-ms 0
+   :send-mode          :blocking
+   :wire-format        :json
+   :filter             :default
+   :threshold          0.1
+   :out                "target/soak/report.edn"})
+
+;; Latencies are recorded into a log-linear histogram with 64 sub-buckets per power of two (within ~1.6%),
+;; a fixed 3712 slots so recording never allocates and never disturbs the allocation being measured.
+
+(def ^:private histogram-slots 3712)
+
+(defn- slot
+  ^long [^long v]
+  (if (< v 128)
+    (max v 0)
+    (let [shift (- 57 (Long/numberOfLeadingZeros v))]
+      (+ (* shift 64) (bit-shift-right v shift)))))
+
+(defn- slot-value
+  "The highest value recorded into a slot."
+  ^long [^long i]
+  (if (< i 128)
+    i
+    (let [shift (dec (quot i 64))]
+      (dec (bit-shift-left (inc (- i (* shift 64))) shift)))))
+
+(defn- record-latency!
+  [^AtomicLongArray histogram ^long v]
+  (let [i (slot v)]
+    (.lazySet histogram i (inc (.get histogram i)))))
+
+(defn percentiles
+  "Percentiles of the values recorded into histograms, as microseconds, e.g. {:p99 0.99}, with the maximum."
+  [histograms qs]
+  (let [counts (long-array histogram-slots)]
+    (doseq [^AtomicLongArray histogram histograms
+            i (range histogram-slots)]
+      (aset counts i (+ (aget counts i) (.get histogram i))))
+    (let [total (areduce counts i sum 0 (+ sum (aget counts i)))
+          at    (fn [q]
+                  (let [target (max 1 (long (Math/ceil (* (double q) total))))]
+                    (loop [i 0 seen 0]
+                      (let [seen (+ seen (aget counts i))]
+                        (if (or (>= seen target) (= i (dec histogram-slots)))
+                          (/ (slot-value i) 1000.0)
+                          (recur (inc i) seen))))))]
+      (when (pos? total)
+        (assoc (update-vals qs at) :max (at 1.0))))))
+
+(defn- latency-sensor
+  ^Sensor [^Metrics metrics ^String sensor-name metric-prefix ^String group tags]
+  (doto (.sensor metrics sensor-name)
+    (.add (.metricName metrics (str metric-prefix "-rate") group "" ^Map tags) (Rate.))
+    (.add (.metricName metrics (str metric-prefix "-total") group "" ^Map tags) (CumulativeCount.))
+    (.add (.metricName metrics (str metric-prefix "-latency-avg") group "" ^Map tags) (Avg.))
+    (.add (.metricName metrics (str metric-prefix "-latency-max") group "" ^Map tags) (Max.))))
+
+(defn- gauge
+  [^Metrics metrics ^String metric-name ^String group tags f]
+  (.addMetric metrics (.metricName metrics metric-name group "" ^Map tags) (reify Gauge (value [_ _ _] (f)))))
+
+(defn synthetic-app
+  "A mock-backed streams application: a Metrics registry with the thread, task and store sensors of a
+  KafkaStreams client with threads stream threads, tasks tasks per thread and stores stores per task, and
+  the in-memory stores its host threads process records against."
+  [n {:keys [threads tasks stores]}]
+  (let [app-id    (str "soak-" n)
+        client-id (str app-id "-7c9f")
+        metrics   (Metrics.)]
+    (gauge metrics "application-id" "stream-metrics" {"client-id" client-id} (constantly app-id))
+    {:client-id client-id
+     :metrics   metrics
+     :streams   (reify SyntheticStreams
+                  (metrics [_] (.metrics metrics))
+                  (state [_] KafkaStreams$State/RUNNING))
+     :topology  (bench/large-topology (max 1 stores))
+     :threads   (vec (for [t (range threads)]
+                       (let [thread-id (str client-id "-StreamThread-" (inc t))
+                             tags      {"thread-id" thread-id}]
+                         {:name    thread-id
+                          :process (latency-sensor metrics (str thread-id "-process") "process" "stream-thread-metrics" tags)
+                          :commit  (latency-sensor metrics (str thread-id "-commit") "commit" "stream-thread-metrics" tags)
+                          :tasks   (vec (for [k (range tasks)]
+                                          (let [task-id (str (mod k (max 1 stores)) "_" (+ (* t tasks) k))
+                                                tags    (assoc tags "task-id" task-id)]
+                                            {:process (latency-sensor metrics (str thread-id "-" task-id "-process")
+                                                                      "process" "stream-task-metrics" tags)
+                                             :stores  (vec (for [s (range stores)]
+                                                             (let [store-id (str "counts-" s)
+                                                                   tags     (assoc tags "rocksdb-state-id" store-id)
+                                                                   prefix   (str thread-id "-" task-id "-" store-id)
+                                                                   store    (HashMap.)]
+                                                               (gauge metrics "estimate-num-keys" "stream-state-metrics" tags
+                                                                      #(.size store))
+                                                               {:store      store
+                                                                :get-sensor (latency-sensor metrics (str prefix "-get") "get"
+                                                                                       "stream-state-metrics" tags)
+                                                                :put-sensor (latency-sensor metrics (str prefix "-put") "put"
+                                                                                       "stream-state-metrics" tags)})))})))})))}))
+
+(defn- process-record!
+  "Processes one record on a stream thread: a count in every store of the record's task, recording the
+  sensors Kafka Streams records for each step."
+  [{:keys [tasks ^Sensor process]} ^long n ^long keyspace]
+  (let [started (System/nanoTime)
+        now     (System/currentTimeMillis)
+        task    (nth tasks (mod n (count tasks)))
+        k       (.nextLong (ThreadLocalRandom/current) keyspace)]
+    (doseq [{:keys [^HashMap store ^Sensor get-sensor ^Sensor put-sensor]} (:stores task)]
+      (let [read-at (System/nanoTime)
+            current (.get store k)]
+        (.record get-sensor (double (- (System/nanoTime) read-at)) now)
+        (let [write-at (System/nanoTime)]
+          (.put store k (inc (long (or current 0))))
+          (.record put-sensor (double (- (System/nanoTime) write-at)) now))))
+    (let [elapsed (double (- (System/nanoTime) started))]
+      (.record ^Sensor (:process task) elapsed now)
+      (.record process elapsed now))))
+
+(defn- stream-thread
+  "A host thread processing rate records/s from started until deadline, recording each record's latency from
+  the time it was due, so a stall delays and counts against every record behind it. The thread leaves the
+  records it processed, its cpu ns and allocated bytes in counters when it ends."
+  ^Thread [app-thread {:keys [rate keyspace]} ^AtomicLongArray histogram ^longs counters started deadline]
+  (let [period   (long (/ 1e9 (long rate)))
+        started  (long started)
+        deadline (long deadline)]
+    (doto (Thread. ^Runnable
+           (fn []
+             (loop [n 0]
+               (let [due (+ started (* n period))]
+                 (if (>= due deadline)
+                   (let [^ThreadMXBean mx (ManagementFactory/getThreadMXBean)]
+                     (aset counters 0 n)
+                     (aset counters 1 (.getCurrentThreadCpuTime mx))
+                     (aset counters 2 (.getThreadAllocatedBytes mx (.getId (Thread/currentThread)))))
+                   (let [wait (- due (System/nanoTime))]
+                     (when (pos? wait)
+                       (LockSupport/parkNanos wait))
+                     (process-record! app-thread n keyspace)
+                     (when (zero? (mod n 100))
+                       (.record ^Sensor (:commit app-thread) 0.0))
+                     (record-latency! histogram (- (System/nanoTime) due))
+                     (recur (inc n))))))))
+      (.setName (str "soak-" (:name app-thread)))
+      (.setDaemon true))))
+
+(defn- thread-usage
+  "Cpu time and allocated bytes of every live thread, by thread id."
+  []
+  (let [^ThreadMXBean mx (ManagementFactory/getThreadMXBean)
+        ids              (.getAllThreadIds mx)
+        infos            (.getThreadInfo mx ids)
+        cpu              (.getThreadCpuTime mx ids)
+        allocated        (.getThreadAllocatedBytes mx ids)]
+    (into {} (keep-indexed (fn [i info]
+                             (when info
+                               [(aget ids i) {:name      (.getThreadName ^java.lang.management.ThreadInfo info)
+                                              :cpu       (max 0 (aget cpu i))
+                                              :allocated (max 0 (aget allocated i))}])))
+          infos)))
+
+(defn- usage-delta
+  "Cpu ms and allocated bytes between two thread-usage snapshots, for threads whose name passes pred. A
+  thread started in between counts from zero, one that ended in between is lost."
+  [before after pred]
+  (reduce-kv (fn [acc id {:keys [name cpu allocated]}]
+               (if (pred name)
+                 (let [prev (get before id)]
+                   (-> acc
+                       (update :cpu-ms + (/ (- cpu (:cpu prev 0)) 1e6))
+                       (update :allocated-bytes + (- allocated (:allocated prev 0)))))
+                 acc))
+             {:cpu-ms 0.0 :allocated-bytes 0}
+             after))
+
+(defn- process-cpu-ms
+  []
+  (/ (.getProcessCpuTime ^OperatingSystemMXBean (ManagementFactory/getOperatingSystemMXBean)) 1e6))
+
+(defonce ^:private gc-pauses (atom []))
+
+(defn- watch-gc!
+  "Collects the duration of every stop-the-world collection. Beans of concurrent collectors (G1 Concurrent
+  GC, ZGC Cycles, ...) report cycles that run beside the application, not pauses, and are skipped."
+  []
+  (doseq [^GarbageCollectorMXBean gc (ManagementFactory/getGarbageCollectorMXBeans)
+          :when (and (instance? NotificationEmitter gc)
+                     (not (re-find #"(?i)concurrent|cycles" (.getName gc))))]
+    (.addNotificationListener ^NotificationEmitter gc
+                              (reify NotificationListener
+                                (handleNotification [_ notification _]
+                                  (when (= GarbageCollectionNotificationInfo/GARBAGE_COLLECTION_NOTIFICATION
+                                           (.getType notification))
+                                    (let [info (GarbageCollectionNotificationInfo/from ^CompositeData (.getUserData notification))]
+                                      (swap! gc-pauses conj (.getDuration (.getGcInfo info)))))))
+                              nil nil)))
+
+(defn- registry-config
+  ^StreamsRegistryConfig [{:keys [interval-ms sample-interval-ms send-mode wire-format]}]
+  (-> (StreamsRegistryConfig.)
+      (.intervalMs interval-ms)
+      (.sampleIntervalMs sample-interval-ms)
+      (.sendMode (StreamsRegistryConfig$SendMode/valueOf (.toUpperCase (name send-mode))))
+      (.wireFormat (StreamsRegistryConfig$WireFormat/valueOf (str "TRANSIT_" (.toUpperCase (name wire-format)))))))
+
+(defn- metrics-filter
+  ^MetricFilter [filter]
+  (case filter
+    :default (MetricFilter/defaultMetricFilter)
+    :all (MetricFilter/acceptAllMetricFilter)
+    :state-store (MetricFilter/stateStoreMetricsOnlyFilter)))
+
+(defn- attach!
+  "Starts a registry sending to a MockProducer and registers every application of the fleet. Sent records
+  are counted and discarded every second so the producer's history does not grow through the soak."
+  [fleet opts]
+  (let [producer (MockProducer. true nil ^Serializer (serdes/transit-json-serializer) ^Serializer (serdes/transit-json-serializer))
+        registry (agent/init-registry producer (metrics-filter (:filter opts)) "__oprtr_snapshot_state" (registry-config opts))
+        ids      (mapv (fn [{:keys [streams topology]}]
+                         (agent/register registry streams topology (ClientIdKeyStrategy.)))
+                       fleet)
+        sent     (atom {:records 0 :snapshots 0})
+        drainer  (Executors/newSingleThreadScheduledExecutor)]
+    (.scheduleAtFixedRate drainer
+                          (fn []
+                            ;; MockProducer's methods synchronize on it, no send lands between history and clear
+                            (let [history (locking producer
+                                            (let [history (.history producer)]
+                                              (.clear producer)
+                                              history))]
+                              (swap! sent (fn [counts]
+                                            (-> counts
+                                                (update :records + (count history))
+                                                (update :snapshots + (count (filter #(= :kafka/streams-agent
+                                                                                         (:type (.value ^ProducerRecord %)))
+                                                                                    history))))))))
+                          1 1 TimeUnit/SECONDS)
+    {:registry registry :ids ids :sent sent :drainer drainer}))
+
+(defn- detach!
+  [{:keys [registry ids sent ^ScheduledExecutorService drainer]}]
+  (let [bytes   (reduce + (map #(or (agent/metric-value registry "bytes-total" {"agent-id" %}) 0.0) ids))
+        skipped (agent/metric-value registry "cycles-skipped-total")]
+    (agent/close-registry registry)
+    (.shutdown drainer)
+    (.awaitTermination drainer 5 TimeUnit/SECONDS)
+    (assoc @sent :bytes (long bytes) :cycles-skipped (long (or skipped 0.0)))))
+
+(defn- agent-thread?
+  [name]
+  (.startsWith ^String name "kpow-streams-agent-"))
+
+(defn run-phase
+  "Runs the fleet's host threads for duration-s, with a registry attached when attached? is true, and
+  reports host latency and throughput, process cpu, allocation and gc pauses, and the agent's own threads.
+  Allocation counts the host threads and every thread alive at both ends of the phase."
+  [fleet {:keys [threads rate] :as opts} attached? duration-s]
+  (let [attachment (when attached? (attach! fleet opts))
+        histograms (vec (repeatedly (* (count fleet) threads) #(AtomicLongArray. (int histogram-slots))))
+        counters   (vec (repeatedly (count histograms) #(long-array 3)))
+        started    (+ (System/nanoTime) (long 1e7))
+        deadline   (+ started (long (* 1e9 duration-s)))
+        host       (mapv (fn [app-thread histogram counter]
+                           (stream-thread app-thread opts histogram counter started deadline))
+                         (mapcat :threads fleet) histograms counters)
+        _          (reset! gc-pauses [])
+        before     (thread-usage)
+        cpu-before (process-cpu-ms)]
+    (run! #(.start ^Thread %) host)
+    (run! #(.join ^Thread %) host)
+    (let [after     (thread-usage)
+          cpu       (- (process-cpu-ms) cpu-before)
+          elapsed-s (/ (- (System/nanoTime) started) 1e9)
+          pauses    @gc-pauses
+          records   (reduce + (map #(aget ^longs % 0) counters))
+          host-use  {:cpu-ms          (/ (reduce + (map #(aget ^longs % 1) counters)) 1e6)
+                     :allocated-bytes (reduce + (map #(aget ^longs % 2) counters))}
+          agent-use (usage-delta before after agent-thread?)
+          sent      (some-> attachment detach!)
+          cycles    (when sent (quot (:snapshots sent) (count fleet)))]
+      (cond-> {:duration-s      (double elapsed-s)
+               :records         records
+               :throughput      (/ records elapsed-s)
+               :target-rate     (* (count host) rate)
+               :latency-us      (percentiles histograms {:p50 0.5 :p99 0.99 :p999 0.999})
+               :cpu-ms          cpu
+               :cpu-ms-per-s    (/ cpu elapsed-s)
+               :allocated-bytes (+ (:allocated-bytes host-use) (:allocated-bytes (usage-delta before after (constantly true))))
+               :host            host-use
+               :gc              {:pauses           (count pauses)
+                                 :pause-ms         (reduce + 0 pauses)
+                                 :pause-ms-per-min (/ (reduce + 0 pauses) (/ elapsed-s 60.0))
+                                 :max-pause-ms     (reduce max 0 pauses)}}
+        sent (assoc :agent (merge agent-use
+                                  sent
+                                  {:cycles                    cycles
+                                   :cpu-ms-per-cycle          (when (pos? cycles) (/ (:cpu-ms agent-use) cycles))
+                                   :allocated-bytes-per-cycle (when (pos? cycles) (quot (:allocated-bytes agent-use) cycles))}))))))
+
+(defn overhead
+  "The cost of the agent: its own cpu and allocation per cycle, and what attaching it added to the host's
+  p99 latency, process cpu and gc pauses."
+  [baseline attached]
+  {:cpu-ms-per-cycle          (get-in attached [:agent :cpu-ms-per-cycle])
+   :allocated-bytes-per-cycle (get-in attached [:agent :allocated-bytes-per-cycle])
+   :p99-latency-us            (- (get-in attached [:latency-us :p99]) (get-in baseline [:latency-us :p99]))
+   :cpu-ms-per-s              (- (:cpu-ms-per-s attached) (:cpu-ms-per-s baseline))
+   :gc-pause-ms-per-min       (- (get-in attached [:gc :pause-ms-per-min]) (get-in baseline [:gc :pause-ms-per-min]))})
+
+(def regression-floors
+  "The smallest growth of each overhead counted as a regression, keeping scheduler and gc noise on an idle
+  overhead from failing a comparison on the threshold alone."
+  {:cpu-ms-per-cycle          0.5
+   :allocated-bytes-per-cycle 65536
+   :p99-latency-us            100.0
+   :cpu-ms-per-s              5.0
+   :gc-pause-ms-per-min       5.0})
+
+(defn regressions
+  "The overheads of report that grew by more than threshold (a fraction) over the previous report, and by more
+  than their regression floor."
+  [previous report threshold]
+  (into []
+        (keep (fn [[k floor]]
+                (let [before (get-in previous [:overhead k])
+                      now    (get-in report [:overhead k])]
+                  (when (and before now
+                             (> (- now before) (max (* (Math/abs (double before)) threshold) floor)))
+                    {:overhead k :previous before :current now}))))
+        regression-floors))
+
+(defn soak
+  "Runs a warm-up with the registry attached, then the fleet without and with a registry, and returns the
+  report."
+  [opts]
+  (let [opts  (merge default-opts opts)
+        fleet (mapv #(synthetic-app % opts) (range (:apps opts)))]
+    (watch-gc!)
+    (try
+      (when (pos? (:warmup-s opts))
+        (run-phase fleet opts true (:warmup-s opts)))
+      (let [baseline (run-phase fleet opts false (:duration-s opts))
+            attached (run-phase fleet opts true (:duration-s opts))]
+        {:opts     (dissoc opts :out :compare :threshold)
+         :runtime  {:java        (System/getProperty "java.version")
+                    :processors  (.availableProcessors (Runtime/getRuntime))
+                    :max-heap-mb (quot (.maxMemory (Runtime/getRuntime)) (* 1024 1024))}
+         :baseline baseline
+         :attached attached
+         :overhead (overhead baseline attached)})
+      (finally
+        (run! #(.close ^Metrics (:metrics %)) fleet)))))
+
+(defn parse-args
+  "Options from --key value pairs, values read as EDN (so --send-mode :pipelined), strings kept as they are."
+  [args]
+  (into {} (map (fn [[k v]]
+                  [(keyword (subs k 2))
+                   (let [value (try (edn/read-string v) (catch Exception _ v))]
+                     (if (symbol? value) v value))]))
+        (partition 2 args)))
+
+(defn -main
+  [& args]
+  (let [{:keys [out threshold] :as opts} (merge default-opts (parse-args args))
+        report (soak opts)
+        failed (when-let [previous (:compare opts)]
+                 (regressions (edn/read-string (slurp previous)) report threshold))]
+    (io/make-parents out)
+    (spit out (with-out-str (pprint/pprint report)))
+    (pprint/pprint (select-keys report [:overhead]))
+    (println "report written to" out)
+    (when (seq failed)
+      (println (format "regressions over %.0f%% against %s:" (* 100 threshold) (:compare opts)))
+      (pprint/pprint failed))
+    (shutdown-agents)
+    (System/exit (if (seq failed) 1 0))))
@@ -0,0 +1,80 @@
+package io.factorhouse.kpow.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import io.factorhouse.kpow.MetricFilter;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.MetricName;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Filters a synthetic registry of metric names, comparing the compiled {@link MetricFilter} with evaluating each
+ * rule in order. One operation filters every metric in the registry once, as the agent does each cycle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricFilterBenchmark {
+
+    @Param({"default", "stateStoreOnly", "longChain", "rules"})
+    public String filter;
+
+    @Param({"10000"})
+    public int metricCount;
+
+    private MetricName[] metricNames;
+    private MetricFilter metricFilter;
+    private List<MetricFilter.FilterCriteria> criteria;
+    private IFn applyMetricFilters;
+
+    @Setup
+    public void setup() {
+        IFn require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("io.factorhouse.kpow.bench"));
+        metricNames = (MetricName[]) Clojure.var("io.factorhouse.kpow.bench", "synthetic-metric-names").invoke(metricCount);
+        switch (filter) {
+            case "default":
+                metricFilter = MetricFilter.defaultMetricFilter();
+                break;
+            case "stateStoreOnly":
+                metricFilter = MetricFilter.stateStoreMetricsOnlyFilter();
+                break;
+            case "rules":
+                metricFilter = (MetricFilter) Clojure.var("io.factorhouse.kpow.bench", "rules-filter").invoke();
+                break;
+            default:
+                metricFilter = (MetricFilter) Clojure.var("io.factorhouse.kpow.bench", "long-chain-filter").invoke();
+        }
+        criteria = metricFilter.getFilters();
+        applyMetricFilters = Clojure.var("io.factorhouse.kpow.agent", "apply-metric-filters");
+    }
+
+    @Benchmark
+    public void compiled(Blackhole bh) {
+        for (MetricName metricName : metricNames) {
+            bh.consume(metricFilter.isAccepted(metricName));
+        }
+    }
+
+    @Benchmark
+    public void ruleByRule(Blackhole bh) {
+        for (MetricName metricName : metricNames) {
+            bh.consume(applyMetricFilters.invoke(metricName, criteria));
+        }
+    }
+}
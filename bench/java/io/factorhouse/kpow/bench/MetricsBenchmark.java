@@ -0,0 +1,62 @@
+package io.factorhouse.kpow.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import io.factorhouse.kpow.MetricFilter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads the filtered numeric metrics of a synthetic registry, comparing materialising every metric with
+ * {@code numeric-metrics} against sampling the cached metric index.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+    @Param({"10000", "50000"})
+    public int metricCount;
+
+    private Object streams;
+    private Object index;
+    private MetricFilter metricFilter;
+    private IFn metrics;
+    private IFn numericMetrics;
+    private IFn sampleMetrics;
+
+    @Setup
+    public void setup() {
+        IFn require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("io.factorhouse.kpow.bench"));
+        streams = Clojure.var("io.factorhouse.kpow.bench", "synthetic-streams").invoke(metricCount);
+        metricFilter = MetricFilter.defaultMetricFilter();
+        metrics = Clojure.var("io.factorhouse.kpow.agent", "metrics");
+        numericMetrics = Clojure.var("io.factorhouse.kpow.agent", "numeric-metrics");
+        sampleMetrics = Clojure.var("io.factorhouse.kpow.agent", "sample-metrics");
+        index = Clojure.var("io.factorhouse.kpow.agent", "metric-index").invoke(streams, metricFilter);
+    }
+
+    @Benchmark
+    public Object numericMetrics() {
+        return numericMetrics.invoke(metrics.invoke(streams), metricFilter);
+    }
+
+    @Benchmark
+    public Object cachedIndex() {
+        return sampleMetrics.invoke(index);
+    }
+}
@@ -0,0 +1,65 @@
+package io.factorhouse.kpow.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.serialization.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the per-record Transit serializer with the reusable, thread-confined serializer on metrics batches.
+ *
+ * <p>Run with {@code lein bench SerdesBenchmark -prof gc} to report the allocation rate of each.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerdesBenchmark {
+
+    @Param({"50", "500"})
+    public int batchSize;
+
+    @Param({"json", "msgpack"})
+    public String format;
+
+    private Object record;
+    private Keyword formatKeyword;
+    private IFn transitSerialize;
+    private Serializer<Object> reusable;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        IFn require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("io.factorhouse.kpow.serdes"));
+        require.invoke(Clojure.read("io.factorhouse.kpow.bench"));
+        formatKeyword = Keyword.intern(format);
+        record = Clojure.var("io.factorhouse.kpow.bench", "metrics-batch").invoke(batchSize);
+        transitSerialize = Clojure.var("io.factorhouse.kpow.serdes", "transit-serialize");
+        reusable = (Serializer<Object>) Clojure.var("io.factorhouse.kpow.serdes", "reusable-transit-serializer").invoke(formatKeyword);
+    }
+
+    @Benchmark
+    public byte[] perRecordWriter() {
+        return (byte[]) transitSerialize.invoke(formatKeyword, record);
+    }
+
+    @Benchmark
+    public byte[] reusableWriter() {
+        return reusable.serialize("__oprtr_snapshot_state", record);
+    }
+}
@@ -0,0 +1,93 @@
+package io.factorhouse.kpow.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import clojure.lang.Keyword;
+import io.factorhouse.kpow.sink.MappedFileSink;
+import io.factorhouse.kpow.sink.MappedFileSinkReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures encoding and emitting a metrics batch through a {@link MappedFileSink}, against encoding the same batch
+ * for a Kafka {@link MockProducer}, isolating the agent's emission cost from any broker.
+ *
+ * <p>Run with {@code lein bench SinkBenchmark -prof gc} to report the allocation rate of each.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SinkBenchmark {
+
+    @Param({"50", "500"})
+    public int batchSize;
+
+    private Path directory;
+    private MappedFileSink sink;
+    private IFn sinkWrite;
+    private Producer<Object, Object> kafka;
+    private ProducerRecord<Object, Object> record;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws IOException {
+        IFn require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("io.factorhouse.kpow.serdes"));
+        require.invoke(Clojure.read("io.factorhouse.kpow.sink"));
+        require.invoke(Clojure.read("io.factorhouse.kpow.bench"));
+        Object key = Clojure.read("[:streams \"client-1\" :kafka/streams-agent]");
+        Object value = Clojure.var("io.factorhouse.kpow.bench", "metrics-batch").invoke(batchSize);
+        record = new ProducerRecord<>("__oprtr_snapshot_state", key, value);
+        directory = Files.createTempDirectory("kpow-sink-bench");
+        sink = new MappedFileSink(directory);
+        sinkWrite = (IFn) Clojure.var("io.factorhouse.kpow.sink", "sink-write")
+            .invoke(Collections.singletonList(sink), Keyword.intern("json"));
+        IFn serializer = Clojure.var("io.factorhouse.kpow.serdes", "transit-json-serializer");
+        kafka = new MockProducer<>(true, null, (Serializer<Object>) serializer.invoke(), (Serializer<Object>) serializer.invoke());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.close();
+        for (Path segment : MappedFileSinkReader.segments(directory)) {
+            Files.deleteIfExists(segment);
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public RecordMetadata mappedFileSink() {
+        return (RecordMetadata) sinkWrite.invoke(record);
+    }
+
+    @Benchmark
+    public Future<RecordMetadata> mockProducer() {
+        Future<RecordMetadata> result = kafka.send(record);
+        ((MockProducer<Object, Object>) kafka).clear();
+        return result;
+    }
+}
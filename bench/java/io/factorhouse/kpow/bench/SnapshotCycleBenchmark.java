@@ -0,0 +1,63 @@
+package io.factorhouse.kpow.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import io.factorhouse.kpow.MetricFilter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full observation of one registration: metric capture, filtering, topology snapshot, Transit serialization
+ * and sending to a Kafka {@code MockProducer}, against a synthetic registry of 10k or 50k metrics.
+ *
+ * <p>{@code steadyState=true} reuses the registration's cached metric index and topology as the agent does from
+ * the second cycle on, {@code false} measures a cold first cycle.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotCycleBenchmark {
+
+    @Param({"10000", "50000"})
+    public int metricCount;
+
+    @Param({"default", "acceptAll"})
+    public String filter;
+
+    @Param({"true", "false"})
+    public boolean steadyState;
+
+    private Object ctx;
+    private IFn snapshotCycle;
+
+    @Setup
+    public void setup() {
+        IFn require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("io.factorhouse.kpow.bench"));
+        Object streams = Clojure.var("io.factorhouse.kpow.bench", "synthetic-streams").invoke(metricCount);
+        Object topology = Clojure.var("io.factorhouse.kpow.bench", "large-topology").invoke(20);
+        MetricFilter metricFilter = "default".equals(filter)
+            ? MetricFilter.defaultMetricFilter()
+            : MetricFilter.acceptAllMetricFilter();
+        ctx = Clojure.var("io.factorhouse.kpow.bench", "cycle-context").invoke(streams, topology, metricFilter);
+        snapshotCycle = Clojure.var("io.factorhouse.kpow.bench", "snapshot-cycle");
+    }
+
+    @Benchmark
+    public Object snapshotTelemetry() {
+        return snapshotCycle.invoke(ctx, steadyState);
+    }
+}
@@ -0,0 +1,57 @@
+package io.factorhouse.kpow.bench;
+
+import io.factorhouse.kpow.MetricFilter;
+import io.factorhouse.kpow.StreamsRegistry;
+import io.factorhouse.kpow.StreamsRegistryConfig;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cold-start cost of constructing the first {@link StreamsRegistry} in a fresh JVM, which includes
+ * loading the agent's Clojure namespaces.
+ *
+ * <p>Every fork measures a single construction with no warmup. Compare the AOT-compiled build with a source-only
+ * build using {@code lein clean && lein with-profile +source-only,+bench run -m org.openjdk.jmh.Main StartupBenchmark}.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(10)
+public class StartupBenchmark {
+
+    @Param({"false", "true"})
+    public boolean backgroundInit;
+
+    private StreamsRegistry registry;
+
+    @Benchmark
+    public StreamsRegistry construct() {
+        Properties props = new Properties();
+        // the producer connects lazily, nothing is sent before the registry is closed
+        props.setProperty("bootstrap.servers", "localhost:9092");
+        StreamsRegistryConfig config = new StreamsRegistryConfig()
+            .backgroundInit(backgroundInit)
+            .sharedTransport(true);
+        registry = new StreamsRegistry(props, MetricFilter.defaultMetricFilter(), StreamsRegistry.TargetProduct.KPOW, config);
+        return registry;
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+        registry.close();
+    }
+}
@@ -0,0 +1,58 @@
+package io.factorhouse.kpow.bench;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.streams.Topology;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Describes and datafies a large topology, and fingerprints the result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopologyBenchmark {
+
+    @Param({"10", "100"})
+    public int subTopologies;
+
+    private Topology topology;
+    private Object datafied;
+    private IFn datafy;
+    private IFn fingerprint;
+
+    @Setup
+    public void setup() {
+        IFn require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("io.factorhouse.kpow.bench"));
+        topology = (Topology) Clojure.var("io.factorhouse.kpow.bench", "large-topology").invoke(subTopologies);
+        datafy = Clojure.var("clojure.datafy", "datafy");
+        require.invoke(Clojure.read("clojure.datafy"));
+        fingerprint = Clojure.var("io.factorhouse.kpow.agent", "topology-fingerprint");
+        datafied = datafy.invoke(topology.describe());
+    }
+
+    @Benchmark
+    public Object describeAndDatafy() {
+        return datafy.invoke(topology.describe());
+    }
+
+    @Benchmark
+    public Object fingerprint() {
+        return fingerprint.invoke(datafied);
+    }
+}
@@ -46,17 +46,32 @@
                                    [:id "sign-artifacts"]
                                    [:phase "verify"]
                                    [:goals [:goal "sign"]]])}]]
+  ;; ship the agent AOT compiled so constructing the first StreamsRegistry does not compile Clojure source,
+  ;; classes compiled for dependency namespaces are removed so consumers keep their own versions
+  :aot [io.factorhouse.kpow.agent
+        io.factorhouse.kpow.serdes
+        io.factorhouse.kpow.sink
+        io.factorhouse.kpow.spool
+        io.factorhouse.kpow.transport]
+  :clean-non-project-classes true
   :uberjar {:prep-tasks ["clean" "javac" "compile"]
             :aot        :all}
-  :profiles {:kaocha     {:dependencies [[lambdaisland/kaocha "1.91.1392"]]}
-             :dev        {:resource-paths ["dev-resources"]
-                          :plugins        [[dev.weavejester/lein-cljfmt "0.16.4"]]
-                          :dependencies   [[org.slf4j/slf4j-api "2.0.17"]
-                                           [ch.qos.logback/logback-classic "1.5.32"]
-                                           [cheshire "6.2.0"]
-                                           [clj-kondo "2026.04.15"]]}
-             :smoke      {:pedantic? :abort}}
+  :profiles {:kaocha      {:dependencies [[lambdaisland/kaocha "1.91.1392"]]}
+             :dev         {:resource-paths ["dev-resources"]
+                           :plugins        [[dev.weavejester/lein-cljfmt "0.16.4"]]
+                           :dependencies   [[org.slf4j/slf4j-api "2.0.17"]
+                                            [ch.qos.logback/logback-classic "1.5.32"]
+                                            [cheshire "6.2.0"]
+                                            [clj-kondo "2026.04.15"]]}
+             :smoke       {:pedantic? :abort}
+             :source-only {:aot ^:replace []}
+             :bench       {:source-paths      ["bench/clojure"]
+                           :java-source-paths ["bench/java"]
+                           :dependencies      [[org.openjdk.jmh/jmh-core "1.37"]
+                                               [org.openjdk.jmh/jmh-generator-annprocess "1.37"]]}}
   :aliases {"kaocha" ["with-profile" "+kaocha" "run" "-m" "kaocha.runner"]
+            "bench"  ["with-profile" "+bench" "run" "-m" "org.openjdk.jmh.Main"]
+            "soak"   ["with-profile" "+bench" "run" "-m" "io.factorhouse.kpow.soak"]
             "kondo"  ["with-profile" "+smoke" "run" "-m" "clj-kondo.main" "--lint" "src"]
             "fmt"    ["with-profile" "+smoke" "cljfmt" "check"]
             "fmtfix" ["with-profile" "+smoke" "cljfmt" "fix"]}
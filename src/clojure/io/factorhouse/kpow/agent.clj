@@ -1,15 +1,28 @@
 (ns io.factorhouse.kpow.agent
   (:require [clojure.core.protocols :as p]
             [clojure.string :as str]
-            [clojure.tools.logging :as log])
-  (:import (io.factorhouse.kpow MetricFilter MetricFilter$FilterCriteria)
-           (io.factorhouse.kpow.key KeyStrategy Taxon)
-           (java.util UUID)
-           (java.util.concurrent Executors ThreadFactory TimeUnit)
-           (java.util.concurrent.atomic AtomicInteger)
-           (org.apache.kafka.clients.producer Producer ProducerRecord)
-           (org.apache.kafka.common MetricName)
-           (org.apache.kafka.streams KeyValue Topology TopologyDescription TopologyDescription$GlobalStore
+            [clojure.tools.logging :as log]
+            [io.factorhouse.kpow.serdes :as serdes]
+            [io.factorhouse.kpow.sink :as sink]
+            [io.factorhouse.kpow.spool :as spool]
+            [io.factorhouse.kpow.transport :as transport])
+  (:import (io.factorhouse.kpow MetricFilter MetricFilter$FilterCriteria StreamsRegistryConfig StreamsRegistryConfig$DropPolicy StreamsRegistryConfig$WireFormat)
+           (io.factorhouse.kpow.key ClusterIdKeyStrategy KeyStrategy Taxon)
+           (io.factorhouse.kpow.sink TelemetrySink)
+           (java.nio.charset StandardCharsets)
+           (java.security MessageDigest)
+           (java.util Arrays Map Properties Set UUID)
+           (java.util.concurrent CompletableFuture CompletionException Executor ExecutorService Executors RejectedExecutionException ScheduledExecutorService ScheduledFuture ThreadFactory ThreadLocalRandom TimeUnit)
+           (java.util.concurrent.atomic AtomicBoolean AtomicInteger AtomicLong AtomicReference)
+           (java.util.function BiConsumer)
+           (org.apache.kafka.clients.producer Callback Producer ProducerRecord RecordMetadata)
+           (org.apache.kafka.common Metric MetricName)
+           (org.apache.kafka.common.errors RecordTooLargeException)
+           (org.apache.kafka.common.header.internals RecordHeaders)
+           (org.apache.kafka.common.metrics JmxReporter KafkaMetricsContext Measurable MetricConfig Metrics Sensor)
+           (org.apache.kafka.common.metrics.stats Avg CumulativeSum Max)
+           (org.apache.kafka.common.utils Time)
+           (org.apache.kafka.streams KafkaStreams KafkaStreams$State KafkaStreams$StateListener KeyValue LagInfo TaskMetadata ThreadMetadata Topology TopologyDescription TopologyDescription$GlobalStore
                                      TopologyDescription$Node TopologyDescription$Processor TopologyDescription$Sink
                                      TopologyDescription$Source TopologyDescription$Subtopology)))
 
@@ -64,9 +77,18 @@
                      :group       (.group metric-name)
                      :name        (.name metric-name)
                      :tags        (into {} (.tags metric-name))
-                     :metric-name metric-name})))
+                     :metric-name metric-name
+                     :metric      metric})))
         (.metrics streams)))
 
+(defn streams-state
+  "The state of a streams instance, without reflection for KafkaStreams since it is read every cycle.
+  Anything else, e.g. a test double, is asked for its state reflectively."
+  ^KafkaStreams$State [streams]
+  (if (instance? KafkaStreams streams)
+    (.state ^KafkaStreams streams)
+    (clojure.lang.Reflector/invokeNoArgInstanceMember streams "state" false)))
+
 (defn application-id
   [metrics]
   (some #(when (= "application-id" (:name %)) (:value %)) metrics))
@@ -101,19 +123,676 @@
 
 (defn numeric-metrics
   [metrics ^MetricFilter metrics-filter]
-  (let [filters (.getFilters metrics-filter)]
-    (into [] (comp (filter (comp number? :value))
-                   (remove (fn [{:keys [value]}]
-                             (if (double? value)
-                               (Double/isNaN value)
-                               false)))
-                   (filter (fn [{:keys [metric-name]}]
-                             (apply-metric-filters metric-name filters)))
-                   (map #(select-keys % [:name :tags :value])))
-          metrics)))
+  (into [] (comp (filter (comp number? :value))
+                 (remove (fn [{:keys [value]}]
+                           (if (double? value)
+                             (Double/isNaN value)
+                             false)))
+                 (filter (fn [{:keys [metric-name]}]
+                           (.isAccepted metrics-filter metric-name)))
+                 (map #(select-keys % [:name :tags :value])))
+        metrics))
+
+(defn- elapsed-ms
+  [^long started-ns]
+  (/ (double (- (System/nanoTime) started-ns)) 1000000.0))
+
+(defn- record!
+  "Records a value against one of a registration's sensors, when the context has them."
+  [sensors k value]
+  (when-let [^Sensor sensor (get sensors k)]
+    (.record sensor (double value))))
+
+(defn- canonical
+  [x]
+  (cond
+    (map? x) (into (sorted-map) (map (fn [[k v]] [k (canonical v)])) x)
+    (instance? Set x) (vec (sort-by pr-str (map canonical x)))
+    (sequential? x) (mapv canonical x)
+    :else x))
+
+(defn topology-fingerprint
+  "A stable content hash of a datafied TopologyDescription, independent of set iteration order."
+  [topology]
+  (let [digest (.digest (MessageDigest/getInstance "SHA-256")
+                        (.getBytes ^String (pr-str (canonical topology)) StandardCharsets/UTF_8))]
+    (format "%032x" (BigInteger. 1 (Arrays/copyOf digest 16)))))
+
+(defn cached-topology
+  "Describes, datafies and fingerprints a registration's Topology once, later cycles reuse the result."
+  [{:keys [^Topology topology cache sensors]}]
+  (or (:topology @cache)
+      (let [started (System/nanoTime)
+            data    (p/datafy (.describe topology))
+            cached  {:data data :fingerprint (topology-fingerprint data)}]
+        (record! sensors :datafy-time (elapsed-ms started))
+        (swap! cache assoc :topology cached)
+        cached)))
+
+(defn- estimated-bytes
+  ^long [x]
+  (count (pr-str x)))
+
+(defn- slice-nodes
+  "Splits the nodes of a sub-topology into slices of at most chunk-bytes, in name order."
+  [{:keys [id nodes]} chunk-bytes]
+  (let [slices (reduce (fn [slices node]
+                         (let [bytes (estimated-bytes node)
+                               {:keys [size] :as current} (peek slices)]
+                           (if (or (nil? current) (> (+ size bytes) chunk-bytes))
+                             (conj slices {:nodes [node] :size bytes})
+                             (conj (pop slices) (-> current (update :nodes conj node) (update :size + bytes))))))
+                       []
+                       (sort-by :name nodes))]
+    (map-indexed (fn [i {:keys [nodes size]}]
+                   {:piece {:id id :nodes nodes :slice i :slices (count slices)} :size size})
+                 slices)))
+
+(defn topology-chunks
+  "Slices a datafied topology into chunks of at most chunk-bytes estimated bytes, each holding whole global
+  stores and sub-topologies, or a slice of the nodes of a sub-topology too large for a chunk of its own.
+
+  Returns {:chunks [{:sub-topologies [..] :global-stores [..]} ..] :manifest {..}}, where the manifest
+  carries the ids and counts a consumer needs to know it has reassembled every part of the topology."
+  [{:keys [sub-topologies global-stores]} fingerprint chunk-bytes]
+  (let [chunk-bytes (long chunk-bytes)
+        pieces      (concat (for [store (sort-by :id global-stores)]
+                              {:kind :global-stores :piece store :size (estimated-bytes store)})
+                            (mapcat (fn [sub-topology]
+                                      (let [size (estimated-bytes sub-topology)]
+                                        (if (> size chunk-bytes)
+                                          (map #(assoc % :kind :sub-topologies) (slice-nodes sub-topology chunk-bytes))
+                                          [{:kind :sub-topologies :piece sub-topology :size size}])))
+                                    (sort-by :id sub-topologies)))
+        chunks      (reduce (fn [chunks {:keys [kind piece size]}]
+                              (let [{current-size :size :as current} (peek chunks)]
+                                (if (or (nil? current) (> (+ current-size size) chunk-bytes))
+                                  (conj chunks {:size size :data {kind [piece]}})
+                                  (conj (pop chunks) (-> current
+                                                         (update :size + size)
+                                                         (update-in [:data kind] (fnil conj []) piece))))))
+                            []
+                            pieces)]
+    {:chunks   (mapv :data chunks)
+     :manifest {:topology/fingerprint fingerprint
+                :chunks               (count chunks)
+                :sub-topology-ids     (vec (sort (map :id sub-topologies)))
+                :global-store-ids     (vec (sort (map :id global-stores)))
+                :nodes                (transduce (map (comp count :nodes)) + sub-topologies)}}))
+
+(defn cached-topology-chunks
+  "Returns the chunks and manifest of a registration's topology, sliced once and reused by later cycles."
+  [{:keys [cache topology-chunk-bytes] :as ctx}]
+  (let [{:keys [data fingerprint chunked]} (cached-topology ctx)]
+    (or chunked
+        (let [chunked (topology-chunks data fingerprint topology-chunk-bytes)]
+          (swap! cache assoc-in [:topology :chunked] chunked)
+          chunked))))
+
+(defn snapshot-data
+  "The topology and state snapshot for a registration.
+
+  With a positive topology-interval-ms the full topology is only sent once per interval, snapshots in
+  between carry the :topology/fingerprint so a consumer can resolve the topology it already holds. The
+  interval starts once a snapshot carrying the full topology is acknowledged, see registration-cycle, so a
+  failed send is followed by another full topology.
+
+  With a positive topology-chunk-bytes the full topology is replaced by its :topology/manifest, and the
+  topology itself is sent in chunk records following the snapshot, see topology-chunks."
+  [{:keys [streams cache topology-interval-ms topology-chunk-bytes] :or {topology-chunk-bytes 0} :as ctx} captured]
+  (let [{:keys [data fingerprint]} (cached-topology ctx)
+        state    (str (streams-state streams))
+        topology (fn []
+                   (if (pos? topology-chunk-bytes)
+                     {:topology/fingerprint fingerprint
+                      :topology/manifest    (:manifest (cached-topology-chunks ctx))}
+                     {:topology data}))]
+    (if (pos? topology-interval-ms)
+      (let [sent-at (:topology-sent-at @cache)]
+        (if (or (nil? sent-at) (>= (- captured sent-at) topology-interval-ms))
+          (merge (topology) {:topology/fingerprint fingerprint :state state})
+          {:topology/fingerprint fingerprint :state state}))
+      (assoc (topology) :state state))))
+
+(defn store-lag-data
+  "Compacts the result of KafkaStreams.allLocalStorePartitionLags to {store {partition lag}}."
+  [^Map lags]
+  (into {}
+        (map (fn [[store ^Map partitions]]
+               [store (into {}
+                            (map (fn [[partition ^LagInfo lag]]
+                                   [partition {:current-offset (.currentOffsetPosition lag)
+                                               :end-offset     (.endOffsetPosition lag)
+                                               :offset-lag     (.offsetLag lag)}]))
+                            partitions)]))
+        lags))
+
+(defn local-store-lags
+  "The offset lag of every store partition hosted by a live KafkaStreams instance, active and standby."
+  [streams]
+  (when (instance? KafkaStreams streams)
+    (store-lag-data (.allLocalStorePartitionLags ^KafkaStreams streams))))
+
+(defn cached-store-lags
+  "The local store lags of a registration, read at most once per store-lag-interval-ms. Lags can only be
+  read while the instance is running or rebalancing, a failed read keeps the previous lags until the next."
+  [{:keys [streams cache store-lag-interval-ms]} captured]
+  (let [{:keys [lags read-at]} (:store-lags @cache)]
+    (if (and read-at (< (- captured read-at) store-lag-interval-ms))
+      lags
+      (let [lags (try
+                   (local-store-lags streams)
+                   (catch Exception e
+                     (log/debug e "Kpow: unable to read local store lags")
+                     lags))]
+        (swap! cache assoc :store-lags {:lags lags :read-at captured})
+        lags))))
+
+(defn index-fingerprint
+  "A cheap summary of the things that change a KafkaStreams metric set: its state, and for a live
+  KafkaStreams instance the stream threads and the tasks assigned to them (thread replacement,
+  rebalances, and store open/close all follow task assignment)."
+  [streams]
+  (cond-> [(str (streams-state streams))]
+    (instance? KafkaStreams streams)
+    (conj (into #{}
+                (map (fn [^ThreadMetadata thread]
+                       [(.threadName thread)
+                        (into #{} (map #(str (.taskId ^TaskMetadata %))) (.activeTasks thread))
+                        (into #{} (map #(str (.taskId ^TaskMetadata %))) (.standbyTasks thread))]))
+                (.metadataForLocalThreads ^KafkaStreams streams)))))
+
+(defn rollup-reducer
+  "The reducer applied to a metric rolled up with :auto, chosen by the suffix of its name."
+  [reducer metric-name]
+  (if (= :auto reducer)
+    (cond
+      (str/ends-with? metric-name "-max") :max
+      (str/ends-with? metric-name "-min") :min
+      (or (str/ends-with? metric-name "-avg") (str/ends-with? metric-name "-ratio")) :avg
+      :else :sum)
+    reducer))
+
+(defprotocol RollupHandle
+  (reduced-members [handle] "The number of members whose values were combined into the handle's last value."))
+
+(defn rollup-handle
+  "A Metric whose value combines the current values of its members in one pass, skipping non-numeric and
+  NaN values. The value is NaN when no member has a numeric value. The reducer is resolved once per handle,
+  and the number of members combined into the last value is kept for reduced-members."
+  ^Metric [^MetricName metric-name reducer ^objects members]
+  (let [n       (alength members)
+        init    (double (case reducer
+                          :max Double/NEGATIVE_INFINITY
+                          :min Double/POSITIVE_INFINITY
+                          0.0))
+        ^clojure.lang.IFn$DDD combine (case reducer
+                                        :max (fn ^double [^double acc ^double v] (Math/max acc v))
+                                        :min (fn ^double [^double acc ^double v] (Math/min acc v))
+                                        (fn ^double [^double acc ^double v] (+ acc v)))
+        avg?    (= :avg reducer)
+        reduced (long-array 1)]
+    (reify
+      Metric
+      (metricName [_] metric-name)
+      (metricValue [_]
+        (loop [i     0
+               acc   init
+               count 0]
+          (if (< i n)
+            (let [value (.metricValue ^Metric (aget members i))]
+              (if (and (number? value) (not (Double/isNaN (double value))))
+                (recur (inc i) (.invokePrim combine acc (double value)) (inc count))
+                (recur (inc i) acc count)))
+            (do (aset reduced 0 (long count))
+                (cond
+                  (zero? count) Double/NaN
+                  avg? (/ acc count)
+                  :else acc)))))
+
+      RollupHandle
+      (reduced-members [_] (aget reduced 0)))))
+
+(defn rollup-metrics
+  "Groups metrics that differ only by the rollup tags, in order of first appearance. Returns the handles
+  and templates of the groups, and the number of metrics :rolled-up into them: a metric without any rollup
+  tag keeps its own handle and template, a group has a rollup-handle and a template without the collapsed
+  tags that names its reducer. The members a rolled up value combines are counted as it is sampled."
+  [metrics {:keys [rollup-tags] reducer :rollup-reducer}]
+  (let [{:keys [order groups]}
+        (reduce (fn [{:keys [groups] :as acc} {:keys [group name tags metric-name] :as metric}]
+                  (let [kept (apply dissoc tags rollup-tags)
+                        ;; a metric without any rollup tag is a group of its own, keyed by its unique MetricName
+                        k    (if (= (count kept) (count tags)) metric-name [group name kept])]
+                    (if (contains? groups k)
+                      (update-in acc [:groups k] conj metric)
+                      (-> acc
+                          (update :order conj k)
+                          (assoc-in [:groups k] [metric])))))
+                {:order [] :groups {}}
+                metrics)]
+    (reduce (fn [acc k]
+              (let [members (get groups k)
+                    {:keys [name tags ^MetricName metric-name metric]} (first members)]
+                (if (instance? MetricName k)
+                  (-> acc
+                      (update :handles conj metric)
+                      (update :templates conj {:name name :tags tags}))
+                  (let [[group _ kept] k
+                        reducer (rollup-reducer reducer name)]
+                    (-> acc
+                        (update :handles conj (rollup-handle (MetricName. ^String name ^String group (.description metric-name) ^java.util.Map kept)
+                                                             reducer
+                                                             (object-array (map :metric members))))
+                        (update :templates conj {:name name :tags kept :rollup reducer})
+                        (update :rolled-up + (count members)))))))
+            {:handles [] :templates [] :rolled-up 0}
+            order)))
+
+(defn metric-index
+  "Materialises a KafkaStreams metric registry once into an index of the metric handles that pass the
+  filter. Names and tags are encoded up front so each cycle only reads metricValue() from each handle.
+
+  When rollup-tags are given, metrics that differ only by those tags are indexed as a single rolled up
+  handle, see rollup-metrics."
+  ([streams metrics-filter]
+   (metric-index streams metrics-filter nil))
+  ([streams ^MetricFilter metrics-filter {:keys [rollup-tags] :as rollup}]
+   (let [metrics (metrics streams)]
+     (if (empty? metrics)
+       {:total 0}
+       (let [client-id      (client-id metrics)
+             application-id (application-id metrics)
+             accepted       (filterv #(.isAccepted metrics-filter (:metric-name %)) metrics)]
+         (when (nil? application-id)
+           (throw (Exception. "Cannot infer application id from metrics returned from KafkaStreams instance. Expected metric \"application-id\" in the metrics registry.")))
+         (when (nil? client-id)
+           (throw (Exception.
+                   (format "Cannot infer client id from metrics returned from KafkaStreams instance. Got: client-id %s and application-id %s"
+                           (client-id-tag metrics)
+                           application-id))))
+         (if (seq rollup-tags)
+           (let [{:keys [handles templates rolled-up]} (rollup-metrics accepted rollup)]
+             {:total          (count metrics)
+              :client-id      client-id
+              :application-id application-id
+              :handles        (object-array handles)
+              :templates      templates
+              :values         (double-array (count handles) Double/NaN)
+              :rolled-up      rolled-up})
+           {:total          (count metrics)
+            :client-id      client-id
+            :application-id application-id
+            :handles        (object-array (map :metric accepted))
+            :templates      (mapv #(select-keys % [:name :tags]) accepted)
+            :values         (double-array (count accepted) Double/NaN)}))))))
+
+(defn cached-metric-index
+  "Returns the registration's metric index, rebuilding it only when the fingerprint of the streams
+  instance has changed, the filter or its rules have changed, or the index is older than refresh-cycles."
+  [{:keys [streams ^MetricFilter metrics-filter cache metric-index-refresh-cycles sensors] :as ctx}]
+  (let [fingerprint (index-fingerprint streams)
+        generation  (.getGeneration metrics-filter)
+        {:keys [index age]} (:metric-index @cache)]
+    (if (and index
+             (= fingerprint (:fingerprint index))
+             (identical? metrics-filter (:metrics-filter index))
+             (= generation (:filter-generation index))
+             (< age metric-index-refresh-cycles))
+      (do (swap! cache update-in [:metric-index :age] inc)
+          index)
+      (let [started (System/nanoTime)
+            index   (assoc (metric-index streams metrics-filter (select-keys ctx [:rollup-tags :rollup-reducer]))
+                           :fingerprint fingerprint
+                           :metrics-filter metrics-filter
+                           :filter-generation generation)]
+        (record! sensors :filter-time (elapsed-ms started))
+        (if (pos? (:total index))
+          (swap! cache assoc :metric-index {:index index :age 1})
+          (swap! cache dissoc :metric-index))
+        index))))
+
+(defn metric-aggregate
+  "Primitive min/max/sum/count accumulators for every metric of an index, folded by the sampler between
+  publications. Positions match the index's value array, which identifies the index it belongs to."
+  [^doubles values]
+  (let [n (alength values)]
+    {:values values
+     :mins   (double-array n Double/POSITIVE_INFINITY)
+     :maxs   (double-array n Double/NEGATIVE_INFINITY)
+     :sums   (double-array n 0.0)
+     :counts (long-array n 0)}))
+
+(defn cached-aggregate
+  "Returns the registration's aggregate for index, starting a new one when the index has been rebuilt."
+  [cache {:keys [values]}]
+  (:aggregate (swap! cache (fn [{:keys [aggregate] :as cached}]
+                             (if (identical? values (:values aggregate))
+                               cached
+                               (assoc cached :aggregate (metric-aggregate values)))))))
+
+(defn- reset-aggregate!
+  [{:keys [^doubles mins ^doubles maxs ^doubles sums ^longs counts]}]
+  (Arrays/fill mins Double/POSITIVE_INFINITY)
+  (Arrays/fill maxs Double/NEGATIVE_INFINITY)
+  (Arrays/fill sums 0.0)
+  (Arrays/fill counts 0))
+
+(defmacro ^:private fold-sample!
+  [mins maxs sums counts i v]
+  `(let [i# ~i
+         v# ~v]
+     (aset ~mins i# (Math/min (aget ~mins i#) v#))
+     (aset ~maxs i# (Math/max (aget ~maxs i#) v#))
+     (aset ~sums i# (+ (aget ~sums i#) v#))
+     (aset ~counts i# (inc (aget ~counts i#)))))
+
+(defn sample-aggregate!
+  "Folds the current value of every indexed metric into the aggregate without publishing anything.
+  Non-numeric and NaN values are skipped."
+  [{:keys [^objects handles]} {:keys [^doubles mins ^doubles maxs ^doubles sums ^longs counts] :as aggregate}]
+  (let [n (alength handles)]
+    (locking aggregate
+      (dotimes [i n]
+        (let [value (.metricValue ^Metric (aget handles i))]
+          (when (and (number? value) (not (Double/isNaN (double value))))
+            (fold-sample! mins maxs sums counts i (double value))))))))
+
+(defn series-limiter
+  "Per-series ranking state for a registration capped at max-series, aligned with the positions of an
+  index's value array. Scores are kept in primitive arrays: an exponentially decayed magnitude of change
+  and the cycle in which each series last changed."
+  [^doubles values max-series ranking]
+  (let [n (alength values)]
+    {:values     values
+     :max-series max-series
+     :ranking    ranking
+     :scores     (double-array n 0.0)
+     :changed    (long-array n 0)
+     :cycle      (long-array 1)}))
+
+(defn cached-limiter
+  "Returns the registration's series limiter for index, starting a new one when the index has been rebuilt."
+  [cache {:keys [values]} max-series ranking]
+  (:limiter (swap! cache (fn [{:keys [limiter] :as cached}]
+                           (if (identical? values (:values limiter))
+                             cached
+                             (assoc cached :limiter (series-limiter values max-series ranking)))))))
+
+(defn- series-score
+  "Updates the ranking state of position i with its new value v, returning its score."
+  [{:keys [ranking ^doubles scores ^longs changed]} cycle i prev v]
+  (let [i     (int i)
+        prev  (double prev)
+        v     (double v)
+        delta (if (Double/isNaN prev) 0.0 (Math/abs (- v prev)))]
+    (aset scores i (+ (* 0.7 (aget scores i)) (* 0.3 delta)))
+    (when (or (Double/isNaN prev) (pos? delta))
+      (aset changed i (long cycle)))
+    (case ranking
+      :value (Math/abs v)
+      :change (aget scores i)
+      :recency (double (aget changed i)))))
+
+(defn- series-comparator
+  "Orders [score position value] entries lowest score first, and of equal scores the later position
+  first, so a bounded heap keeps the highest scores and prefers earlier positions on ties."
+  ^java.util.Comparator []
+  (reify java.util.Comparator
+    (compare [_ a b]
+      (let [by-score (Double/compare (double (nth a 0)) (double (nth b 0)))]
+        (if (zero? by-score)
+          (Long/compare (long (nth b 1)) (long (nth a 1)))
+          by-score)))))
+
+(defn sample-metrics
+  "Reads the current value of every indexed metric into the index's primitive value array, returning
+  the numeric metrics ready to send. Non-numeric and NaN values are recorded as NaN and not sent.
+
+  When given the array of last published values only metrics that moved by more than epsilon since
+  they were last published are returned, and the published array is updated to match.
+
+  When given an aggregate the current value is folded in as a final sample, each returned metric also
+  carries the :min, :max, :mean and number of :samples since the last publication, and the aggregate is
+  reset. In delta mode a metric whose range over the interval exceeds epsilon is sent even if its last
+  value has not moved.
+
+  When given a limiter at most its max-series metrics are returned: the highest ranked by value, change
+  or recency, selected in the same pass with a bounded heap, and only the selected metrics are built.
+  The number of metrics left out is returned
+  as :dropped in the metadata of the result, and metrics left out are not marked as published."
+  ([index]
+   (sample-metrics index nil 0.0 nil nil))
+  ([index published epsilon]
+   (sample-metrics index published epsilon nil nil))
+  ([index published epsilon aggregate]
+   (sample-metrics index published epsilon aggregate nil))
+  ([{:keys [^objects handles ^doubles values templates]} ^doubles published epsilon aggregate limiter]
+   (let [n          (alength handles)
+         epsilon    (double epsilon)
+         {:keys [^doubles mins ^doubles maxs ^doubles sums ^longs counts]} aggregate
+         max-series (long (or (:max-series limiter) 0))
+         cycle      (if limiter
+                      (let [^longs cycles (:cycle limiter)]
+                        (aset cycles 0 (inc (aget cycles 0))))
+                      0)
+         heap       (when limiter
+                      (java.util.PriorityQueue. (int (inc max-series)) (series-comparator)))
+         emit       (fn [i value]
+                      (cond-> (assoc (nth templates i) :value value)
+                        (:rollup (nth templates i)) (assoc :members (reduced-members (aget handles i)))
+                        aggregate (assoc :min (aget mins i)
+                                         :max (aget maxs i)
+                                         :mean (/ (aget sums i) (aget counts i))
+                                         :samples (aget counts i))))
+         sample     (fn []
+                      (loop [i         0
+                             out       (transient [])
+                             offered   0]
+                        (if (< i n)
+                          (let [value (.metricValue ^Metric (aget handles i))]
+                            (if (and (number? value) (not (Double/isNaN (double value))))
+                              (let [v     (double value)
+                                    score (when limiter
+                                            (series-score limiter cycle i (aget values i) v))]
+                                (aset values i v)
+                                (when aggregate
+                                  (fold-sample! mins maxs sums counts i v))
+                                (if (or (nil? published)
+                                        (Double/isNaN (aget published i))
+                                        (> (Math/abs (- v (aget published i))) epsilon)
+                                        (and aggregate (> (- (aget maxs i) (aget mins i)) epsilon)))
+                                  (if limiter
+                                    ;; positions only increase, so a series that does not outscore the lowest
+                                    ;; of a full heap would lose the tie and is never admitted
+                                    (do (when (or (< (.size heap) max-series)
+                                                  (> (double score) (double (nth (.peek heap) 0))))
+                                          (.offer heap [score i value])
+                                          (when (> (.size heap) max-series)
+                                            (.poll heap)))
+                                        (recur (inc i) out (inc offered)))
+                                    (do (when published
+                                          (aset published i v))
+                                        (recur (inc i) (conj! out (emit i value)) offered)))
+                                  (recur (inc i) out offered)))
+                              (do (aset values i Double/NaN)
+                                  (recur (inc i) out offered))))
+                          (if limiter
+                            (let [selected (sort-by second (vec heap))]
+                              (when published
+                                (doseq [[_ i] selected]
+                                  (aset published (int i) (aget values (int i)))))
+                              (with-meta (mapv (fn [[_ i value]] (emit i value)) selected)
+                                         {:dropped (- offered (count selected))}))
+                            (persistent! out)))))]
+     (if aggregate
+       (locking aggregate
+         (let [metrics (sample)]
+           (reset-aggregate! aggregate)
+           metrics))
+       (sample)))))
+
+(defn delta-metrics
+  "Samples a registration's metrics in delta mode, returning [metrics delta] where delta carries the
+  sequence number of this cycle and whether it is a keyframe.
+
+  A keyframe (every metric) is sent on the first cycle, every delta-keyframe-cycles cycles, and whenever
+  the metric index has been rebuilt since metric positions are only stable within one index."
+  ([ctx index]
+   (delta-metrics ctx index nil nil))
+  ([ctx index aggregate]
+   (delta-metrics ctx index aggregate nil))
+  ([{:keys [cache delta-keyframe-cycles delta-epsilon]} {:keys [^doubles values] :as index} aggregate limiter]
+   (let [{:keys [published since-keyframe] :as prev} (:delta @cache)
+         keyframe? (or (nil? prev)
+                       (not (identical? values (:values prev)))
+                       (>= since-keyframe delta-keyframe-cycles))
+         published (if keyframe?
+                     (double-array (alength values) Double/NaN)
+                     published)
+         seq-no    (if prev (inc (:seq-no prev)) 0)
+         metrics   (sample-metrics index published delta-epsilon aggregate limiter)]
+     (swap! cache assoc :delta {:published      published
+                                :values         values
+                                :seq-no         seq-no
+                                :since-keyframe (if keyframe? 1 (inc since-keyframe))})
+     [metrics {:metrics/seq seq-no :metrics/keyframe? keyframe?}])))
+
+(defn send-tracker
+  "Tracks the acknowledgements of every record sent during one observation of a registration.
+
+  The tracker starts with one pending token that is released by seal!, so acked cannot complete
+  before every record has at least been handed to the producer."
+  []
+  {:pending         (AtomicInteger. 1)
+   :sent            (AtomicInteger. 0)
+   :failures        (AtomicInteger. 0)
+   :error           (AtomicReference.)
+   :acked           (CompletableFuture.)
+   :serialize-nanos (AtomicLong. 0)
+   :send-nanos      (AtomicLong. 0)
+   :bytes           (AtomicLong. 0)})
+
+(defn- release!
+  [{:keys [^AtomicInteger pending ^AtomicInteger sent ^AtomicInteger failures ^AtomicReference error ^CompletableFuture acked
+           ^AtomicLong serialize-nanos ^AtomicLong send-nanos ^AtomicLong bytes]}]
+  (when (zero? (.decrementAndGet pending))
+    (.complete acked {:sent            (.get sent)
+                      :failures        (.get failures)
+                      :error           (.get error)
+                      :serialize-nanos (.get serialize-nanos)
+                      :send-nanos      (.get send-nanos)
+                      :bytes           (.get bytes)})))
+
+(defn seal!
+  "Marks the tracker as having no further records to send, returns the acked CompletableFuture."
+  ^CompletableFuture [tracker]
+  (release! tracker)
+  (:acked tracker))
+
+(defn- spooled-send
+  "Hands an encoded record to the spool. The tracker only accounts for the hand-off, so an observation completes
+  without waiting on the brokers. Once the drainer has sent or given up on the record, its bytes or failure
+  are recorded against the registration, and a record that never arrived restarts delta mode from a keyframe."
+  [{:keys [spool sensors cache tracker]} ^ProducerRecord record on-complete]
+  (spool/offer! spool {:record      record
+                       :bytes       (+ (count (.key record)) (count (.value record)))
+                       :on-complete (fn [^RecordMetadata metadata e]
+                                      (if e
+                                        (do (record! sensors :send-failures 1)
+                                            (some-> cache (swap! dissoc :delta)))
+                                        (record! sensors :bytes (+ (max 0 (.serializedKeySize metadata))
+                                                                   (max 0 (.serializedValueSize metadata)))))
+                                      (when on-complete
+                                        (on-complete metadata e)))})
+  (some-> ^AtomicInteger (:sent tracker) .incrementAndGet))
+
+(defn record-encoder
+  "A fn that encodes a record once into a record of bytes, keys as Transit JSON and values in wire-format like the
+  snapshot producer's serializers, calling tee with the encoded bytes when given. See serdes/encode-record."
+  [wire-format tee]
+  (let [key-encoders   (serdes/encoders :json)
+        value-encoders (serdes/encoders wire-format)]
+    (fn [record]
+      (serdes/encode-record key-encoders value-encoders record tee))))
+
+(defn send-record
+  "Sends a record with the configured send mode. :blocking waits on each broker acknowledgement,
+  :pipelined queues the record and accounts for its acknowledgement in the tracker, and :spooled hands
+  the record, encoded by encode-record, to the spool without waiting on the producer at all.
+
+  The tracker also accumulates the bytes serialized and the time spent serializing and sending. The
+  producer serializes on the calling thread, so both are read from the thread's serializer totals.
+
+  With telemetry sinks alongside Kafka, encode-record encodes the record once and also writes the encoded bytes
+  to the sinks, the producer then sends the same bytes. A registry without a producer only has sinks, sink-write
+  then takes the place of the producer's blocking send.
+
+  When given, on-complete is called with the RecordMetadata or exception once the send completes."
+  ([ctx record]
+   (send-record ctx record nil))
+  ([{:keys [^Producer producer encode-record sink-write send-mode tracker] :as ctx} record on-complete]
+   (let [{:keys [^AtomicInteger pending ^AtomicInteger sent ^AtomicInteger failures ^AtomicReference error
+                 ^AtomicLong serialize-nanos ^AtomicLong send-nanos ^AtomicLong bytes]} tracker
+         ^longs totals (.get serdes/serialize-totals)
+         nanos-before  (aget totals 0)
+         bytes-before  (aget totals 1)
+         started       (System/nanoTime)]
+     (try
+       (let [^ProducerRecord record (if encode-record (encode-record record) record)]
+         (case send-mode
+           :spooled
+           (spooled-send ctx record on-complete)
+
+           :pipelined
+           (do (.incrementAndGet pending)
+               (.incrementAndGet sent)
+               (try
+                 (.send producer record (reify Callback
+                                          (onCompletion [_ metadata e]
+                                            (when e
+                                              (.incrementAndGet failures)
+                                              (.compareAndSet error nil e))
+                                            (when on-complete
+                                              (on-complete metadata e))
+                                            (release! tracker))))
+                 (catch Throwable e
+                   (.incrementAndGet failures)
+                   (.compareAndSet error nil e)
+                   (release! tracker))))
+
+           (let [metadata (try
+                            (if producer
+                              (.get (.send producer record))
+                              (sink-write record))
+                            (catch Throwable e
+                              (when on-complete
+                                (on-complete nil (or (.getCause e) e)))
+                              (throw e)))]
+             (when on-complete
+               (on-complete metadata nil))
+             (some-> sent .incrementAndGet))))
+       (finally
+         (when tracker
+           (let [serializing (- (aget totals 0) nanos-before)]
+             (.addAndGet serialize-nanos serializing)
+             (.addAndGet send-nanos (- (System/nanoTime) started serializing))
+             (.addAndGet bytes (- (aget totals 1) bytes-before)))))))))
+
+(def content-types
+  {:json    (.getBytes "application/transit+json" StandardCharsets/UTF_8)
+   :msgpack (.getBytes "application/transit+msgpack" StandardCharsets/UTF_8)})
+
+(defn producer-record
+  "A record for the snapshot topic. Every record carries a content-type header naming the Transit
+  encoding of its value, keys are always Transit JSON so partitioning and compaction are unaffected."
+  ^ProducerRecord [{:keys [snapshot-topic wire-format]} key value]
+  (let [headers (doto (RecordHeaders.)
+                  (.add "content-type" ^bytes (get content-types wire-format)))]
+    (ProducerRecord. ^String (:topic snapshot-topic) nil key value headers)))
 
 (defn snapshot-send
-  [{:keys [snapshot-topic ^Producer producer taxon application-id job-id client-id captured]} data]
+  [{:keys [taxon application-id job-id client-id captured] :as ctx} data]
   (let [taxon    (p/datafy taxon)
         snapshot {:type           :kafka/streams-agent
                   :application-id application-id
@@ -122,27 +801,115 @@
                   :data           data
                   :job/id         job-id
                   :snapshot/id    {:domain :streams :id taxon}}
-        record   (ProducerRecord. (:topic snapshot-topic) taxon snapshot)]
-    (.get (.send producer record))))
+        record   (producer-record ctx taxon snapshot)]
+    (send-record ctx record)
+    (when-let [{:keys [chunks]} (when (:topology/manifest data)
+                                  (cached-topology-chunks ctx))]
+      (let [fingerprint (:topology/fingerprint data)
+            n           (count chunks)]
+        (dorun
+         (map-indexed (fn [i chunk]
+                        (send-record ctx (producer-record ctx taxon {:type           :kafka/streams-agent-topology-chunk
+                                                                     :application-id application-id
+                                                                     :client-id      client-id
+                                                                     :captured       captured
+                                                                     :data           (assoc chunk
+                                                                                            :topology/fingerprint fingerprint
+                                                                                            :chunk/index i
+                                                                                            :chunk/count n)
+                                                                     :job/id         job-id
+                                                                     :snapshot/id    {:domain :streams :id taxon}})))
+                      chunks))))))
+
+(def ^:const envelope-bytes
+  "An estimate of the encoded size of a metrics record without any metrics."
+  320)
+
+(defn estimated-size
+  "A cheap estimate of the encoded size of one metric, roughly proportional to its Transit encoding."
+  ^long [{:keys [name tags min]}]
+  (reduce-kv (fn [acc k v]
+               (+ acc (count k) (count (str v)) 6))
+             (cond-> (+ 32 (count name)) min (+ 64))
+             tags))
+
+(defn pack-metrics
+  "Packs metrics greedily into batches whose estimated encoded size, scaled by the observed ratio of
+  actual to estimated bytes, stays within target-bytes. A metric too large for a batch of its own starts
+  a batch alone, one that would exceed max-record-bytes even alone is dropped and counted as oversized.
+
+  Returns {:batches [{:data [metric ...] :estimate bytes} ...] :oversized n}, where estimate is unscaled."
+  [metrics ratio target-bytes max-record-bytes]
+  (let [ratio      (double ratio)
+        target     (/ (double target-bytes) ratio)
+        max-record (/ (double max-record-bytes) ratio)
+        close      (fn [batches batch size]
+                     (if (pos? (count batch))
+                       (conj! batches {:data (persistent! batch) :estimate size})
+                       batches))]
+    (loop [metrics   (seq metrics)
+           batch     (transient [])
+           size      envelope-bytes
+           batches   (transient [])
+           oversized 0]
+      (if-let [metric (first metrics)]
+        (let [bytes (estimated-size metric)]
+          (cond
+            (> (+ envelope-bytes bytes) max-record)
+            (recur (next metrics) batch size batches (inc oversized))
+
+            (and (pos? (count batch)) (> (+ size bytes) target))
+            (recur (next metrics) (conj! (transient []) metric) (+ envelope-bytes bytes) (close batches batch size) oversized)
+
+            :else
+            (recur (next metrics) (conj! batch metric) (+ size bytes) batches oversized)))
+        {:batches   (persistent! (close batches batch size))
+         :oversized oversized}))))
+
+(defn observe-record-size!
+  "Tunes a registration's ratio of actual to estimated record bytes from a completed send. A record that
+  was still too large doubles the ratio so the next cycle packs smaller batches."
+  [cache estimate ^RecordMetadata metadata e]
+  (swap! cache update :batching
+         (fn [{:keys [ratio] :or {ratio 1.0}}]
+           (let [ratio (double ratio)]
+             {:ratio (cond
+                       (instance? RecordTooLargeException e)
+                       (* 2.0 ratio)
+
+                       (and metadata (pos? (.serializedValueSize metadata)))
+                       (+ (* 0.8 ratio) (* 0.2 (/ (double (.serializedValueSize metadata)) (double estimate))))
+
+                       :else ratio)}))))
 
 (defn metrics-send
-  [{:keys [snapshot-topic producer taxon application-id job-id client-id captured]} metrics]
-  (let [taxon (p/datafy taxon)]
-    (doseq [data (partition-all 50 metrics)]
-      (let [value  {:type           :kafka/streams-agent-metrics
-                    :application-id application-id
-                    :client-id      client-id
-                    :captured       captured
-                    :data           (vec data)
-
-                    :job/id         job-id
-                    :snapshot/id    {:domain :streams :id taxon}}
-            record (ProducerRecord. (:topic snapshot-topic) taxon value)]
-        (.get (.send producer record))))
-    (log/infof "Kpow: sent [%s] streams metrics for application.id %s" (count metrics) application-id)))
+  "Sends metrics in as few records as fit the target record size, returns {:records n :oversized n}."
+  [{:keys [taxon application-id job-id client-id captured delta cache target-record-bytes max-record-bytes] :as ctx} metrics]
+  (let [taxon (p/datafy taxon)
+        ratio (or (some-> cache deref :batching :ratio) 1.0)
+        {:keys [batches oversized]} (pack-metrics metrics (min 4.0 (max 0.25 ratio)) target-record-bytes max-record-bytes)]
+    (doseq [{:keys [data estimate]} batches]
+      (let [value  (merge {:type           :kafka/streams-agent-metrics
+                           :application-id application-id
+                           :client-id      client-id
+                           :captured       captured
+                           :data           data
+
+                           :job/id         job-id
+                           :snapshot/id    {:domain :streams :id taxon}}
+                          delta)
+            record (producer-record ctx taxon value)]
+        (send-record ctx record (when cache
+                                  (fn [metadata e]
+                                    (observe-record-size! cache estimate metadata e))))))
+    (when (pos? oversized)
+      (log/warnf "Kpow: dropped [%s] streams metrics larger than %s bytes for application.id %s" oversized max-record-bytes application-id))
+    (log/infof "Kpow: sent [%s] streams metrics in [%s] records for application.id %s" (- (count metrics) oversized) (count batches) application-id)
+    {:records   (count batches)
+     :oversized oversized}))
 
 (defn plan-send
-  [{:keys [snapshot-topic producer job-id captured taxon metrics-summary agent-id application-id client-id]}]
+  [{:keys [job-id captured taxon metrics-summary agent-id application-id client-id] :as ctx}]
   (let [taxon  (p/datafy taxon)
         plan   {:type           :observation/plan
                 :captured       captured
@@ -155,59 +922,414 @@
                                          :id              agent-id
                                          :captured        captured
                                          :version         "1.1.1"}}}
-        record (ProducerRecord. (:topic snapshot-topic) taxon plan)]
-    (.get (.send producer record))))
+        record (producer-record ctx taxon plan)]
+    (send-record ctx record)))
+
+(defn key-strategy-failure
+  "The error that failed a ClusterIdKeyStrategy's cluster id resolution, nil while it may still resolve or for any
+  other key strategy."
+  [key-strategy]
+  (when (instance? ClusterIdKeyStrategy key-strategy)
+    (let [^CompletableFuture cluster-id (.getClusterId ^ClusterIdKeyStrategy key-strategy)]
+      (when (.isCompletedExceptionally cluster-id)
+        (try
+          (.join cluster-id)
+          (catch CompletionException e
+            (or (.getCause e) e)))))))
 
 (defn snapshot-telemetry
-  [{:keys [streams ^Topology topology ^MetricFilter metrics-filter ^KeyStrategy key-strategy] :as ctx}]
-  (let [metrics (metrics streams)]
-    (if (empty? metrics)
+  [{:keys [^MetricFilter metrics-filter ^KeyStrategy key-strategy cache sensors delta-keyframe-cycles sample-interval-ms
+           max-series series-ranking store-lag-interval-ms topology-interval-ms] :as ctx}]
+  (let [{:keys [total client-id application-id rolled-up] :as index} (cached-metric-index ctx)
+        taxon (when (pos? total)
+                (.getTaxon key-strategy client-id application-id))]
+    (cond
+      (zero? total)
       (log/warn "KafkStreams .metrics() method returned an empty collection, no telemetry was sent. Has something mutated the global metrics registry?")
-      (let [topology         (p/datafy (.describe topology))
-            state            (str (.state streams))
-            snapshot         {:topology topology :state state}
-            client-id        (client-id metrics)
-            application-id   (application-id metrics)
-            taxon            (.getTaxon key-strategy client-id application-id)
-            ctx              (assoc ctx
-                                    :captured (System/currentTimeMillis)
-                                    :client-id client-id
-                                    :application-id application-id
-                                    :taxon taxon)
-            filtered-metrics (numeric-metrics metrics metrics-filter)]
-        (when (nil? application-id)
-          (throw (Exception. "Cannot infer application id from metrics returned from KafkaStreams instance. Expected metric \"application-id\" in the metrics registry.")))
-        (when (nil? client-id)
-          (throw (Exception.
-                  (format "Cannot infer client id from metrics returned from KafkaStreams instance. Got: client-id %s and application-id %s"
-                          (client-id-tag metrics)
-                          application-id))))
+
+      ;; e.g. a ClusterIdKeyStrategy still resolving its cluster id, or whose resolution failed
+      (nil? taxon)
+      (if-let [e (key-strategy-failure key-strategy)]
+        (when-not (:key-strategy-failed @cache)
+          (swap! cache assoc :key-strategy-failed true)
+          (log/errorf e "Kpow: key strategy failed to resolve a key for application.id %s, no telemetry will be sent for this registration" application-id))
+        (log/infof "Kpow: key strategy has no key yet for application.id %s, deferring telemetry to the next cycle" application-id))
+
+      :else
+      (let [captured        (System/currentTimeMillis)
+            snapshot        (cond-> (snapshot-data ctx captured)
+                              (pos? store-lag-interval-ms) (assoc :store/lags (cached-store-lags ctx captured)))
+            aggregate       (when (pos? sample-interval-ms)
+                              (cached-aggregate cache index))
+            limiter         (when (pos? max-series)
+                              (cached-limiter cache index max-series series-ranking))
+            started         (System/nanoTime)
+            [metrics delta] (if (pos? delta-keyframe-cycles)
+                              (delta-metrics ctx index aggregate limiter)
+                              [(sample-metrics index nil 0.0 aggregate limiter) nil])
+            dropped         (:dropped (meta metrics) 0)
+            _               (record! sensors :capture-time (elapsed-ms started))
+            ctx             (assoc ctx
+                                   :captured captured
+                                   :client-id client-id
+                                   :application-id application-id
+                                   :taxon taxon
+                                   :delta delta
+                                   :topology-sent-at (when (and (pos? topology-interval-ms)
+                                                                (or (contains? snapshot :topology)
+                                                                    (contains? snapshot :topology/manifest)))
+                                                       captured))]
+        (when (pos? dropped)
+          (log/warnf "Kpow: dropped [%s] streams metrics over the limit of %s series for application.id %s" dropped max-series application-id))
         (snapshot-send ctx snapshot)
-        (metrics-send ctx filtered-metrics)
-        (assoc ctx :metrics-summary {:total (count metrics)
-                                     :sent  (count filtered-metrics)
-                                     :id    (some-> metrics-filter .getFilterId)})))))
+        (let [{:keys [oversized]} (metrics-send ctx metrics)]
+          (assoc ctx :metrics-summary (cond-> (merge {:total total
+                                                      :sent  (- (count metrics) oversized)
+                                                      :id    (some-> metrics-filter .getFilterId)}
+                                                     delta)
+                                        (pos? oversized) (assoc :oversized oversized)
+                                        rolled-up (assoc :rolled-up rolled-up)
+                                        (pos? dropped) (assoc :dropped dropped))))))))
+
+(defn- bi-consumer
+  ^BiConsumer [f]
+  (reify BiConsumer
+    (accept [_ v e] (f v e))))
+
+(defn- all-of
+  ^CompletableFuture [futures]
+  (CompletableFuture/allOf (into-array CompletableFuture futures)))
+
+(defn- on-acked
+  "Calls f with the acknowledgement summary once every record sent through the tracker is acknowledged.
+  Failed sends are reported once for the whole observation rather than per record.
+
+  Records, bytes and failures are recorded against the registration's sensors for every phase, the time
+  spent serializing and sending only for the :telemetry phase so it reads as a per-observation cost."
+  [{:keys [^Sensor failure-sensor]} sensors id tracker phase f]
+  (.whenComplete (seal! tracker)
+                 (bi-consumer (fn [{:keys [sent failures error serialize-nanos send-nanos bytes] :as summary} _]
+                                (record! sensors :records sent)
+                                (record! sensors :bytes bytes)
+                                (when (= :telemetry phase)
+                                  (record! sensors :serialize-time (/ serialize-nanos 1000000.0))
+                                  (record! sensors :send-time (/ send-nanos 1000000.0)))
+                                (when (pos? failures)
+                                  (.record failure-sensor (double failures))
+                                  (record! sensors :send-failures failures)
+                                  (log/warnf error "Kpow: %s of %s records failed to send for streams agent %s" failures sent id))
+                                (f summary)))))
+
+(defn registration-cycle
+  "Runs one observation of a single registration: capture and send happen on the worker pool, then the
+  plan is scheduled to send on the worker pool after plan-delay-ms without holding a thread while it waits.
+
+  Telemetry sinks are flushed once the observation's records are written, whether or not they reach Kafka,
+  and again once the plan is written.
+
+  Returns a pair of CompletableFutures: [telemetry-sent plan-sent]. Neither ever completes exceptionally,
+  failures are logged against the agent id and the futures complete with false, as they do without logging
+  when the workers have been shut down by closing the registry."
+  [{:keys [^ExecutorService workers ^ScheduledExecutorService scheduler plan-delay-ms sinks] :as ctx}
+   {:keys [id streams topology key-strategy cache sensors]}]
+  (let [sent    (CompletableFuture.)
+        planned (CompletableFuture.)
+        fail    (fn [e]
+                  (log/warnf e "Kpow: error sending streams snapshot for agent %s" id)
+                  ;; the receiver may have missed a metrics delta, start again from a keyframe
+                  (swap! cache dissoc :delta)
+                  (.complete sent false)
+                  (.complete planned false))
+        plan    (fn [next-ctx]
+                  (try
+                    (let [tracker (send-tracker)]
+                      (plan-send (assoc next-ctx :tracker tracker))
+                      (sink/flush! sinks)
+                      (on-acked ctx sensors id tracker :plan (fn [{:keys [failures]}]
+                                                               (.complete planned (zero? failures)))))
+                    (catch Throwable e
+                      (fail e))))]
+    (try
+      (.execute workers
+                (fn []
+                  (try
+                    (let [tracker  (send-tracker)
+                          next-ctx (snapshot-telemetry (assoc ctx
+                                                              :streams streams
+                                                              :topology topology
+                                                              :key-strategy key-strategy
+                                                              :agent-id id
+                                                              :cache cache
+                                                              :sensors sensors
+                                                              :tracker tracker))]
+                      (sink/flush! sinks)
+                      (if next-ctx
+                        (on-acked ctx sensors id tracker :telemetry
+                                  (fn [{:keys [failures]}]
+                                    (if (pos? failures)
+                                      (do (swap! cache dissoc :delta)
+                                          (.complete sent false)
+                                          (.complete planned false))
+                                      (try
+                                        (when-let [sent-at (:topology-sent-at next-ctx)]
+                                          (swap! cache assoc :topology-sent-at sent-at))
+                                        (.complete sent true)
+                                        (.schedule scheduler
+                                                   ;; the scheduler only hands the plan to the workers, a blocking
+                                                   ;; send must never stall it. A shared scheduler outlives a closed
+                                                   ;; registry, whose workers then reject the plan
+                                                   ^Runnable (fn []
+                                                               (try
+                                                                 (.execute workers ^Runnable (fn [] (plan next-ctx)))
+                                                                 (catch RejectedExecutionException _
+                                                                   (.complete planned false))))
+                                                   (long plan-delay-ms)
+                                                   TimeUnit/MILLISECONDS)
+                                        (catch Throwable e
+                                          (fail e))))))
+                        (do (seal! tracker)
+                            (.complete sent false)
+                            (.complete planned false))))
+                    (catch Throwable e
+                      (fail e)))))
+      ;; a closed registry's workers reject the cycles still scheduled, nothing failed
+      (catch RejectedExecutionException _
+        (.complete sent false)
+        (.complete planned false))
+      (catch Throwable e
+        (fail e)))
+    [sent planned]))
+
+(def ^:const max-transitions
+  "The most state transitions carried by one state-change snapshot, older transitions in a burst are dropped."
+  16)
+
+(defn state-watch
+  "The state-change tracking of one registration: transitions not yet published, whether a publication is
+  pending, when the last was sent, the last state seen and the state polling future, when polling."
+  []
+  {:transitions (atom [])
+   :pending     (AtomicBoolean. false)
+   :last-sent   (AtomicLong. 0)
+   :last-state  (AtomicReference.)
+   :poll        (AtomicReference.)})
+
+(defn state-change-send
+  "Publishes a lightweight snapshot of a registration's current state and the transitions coalesced since the
+  last one. Carries the topology fingerprint rather than the topology, and a :trigger of :state-change."
+  [{:keys [^ExecutorService workers] :as ctx} {:keys [id streams topology key-strategy cache sensors state-watch]}]
+  (let [{:keys [transitions ^AtomicBoolean pending ^AtomicLong last-sent]} state-watch]
+    ;; cleared before taking the transitions so a change during the send schedules another
+    (.set pending false)
+    (.set last-sent (System/currentTimeMillis))
+    (let [[changes] (reset-vals! transitions [])]
+      (when (and (seq changes) (not (.isShutdown workers)))
+        (let [ctx      (assoc ctx
+                              :streams streams
+                              :topology topology
+                              :key-strategy key-strategy
+                              :cache cache
+                              :sensors sensors)
+              {:keys [total client-id application-id]} (or (get-in @cache [:metric-index :index])
+                                                            (cached-metric-index ctx))
+              taxon    (when (pos? total)
+                         (.getTaxon ^KeyStrategy key-strategy client-id application-id))]
+          (when taxon
+            (let [tracker  (send-tracker)
+                  captured (System/currentTimeMillis)
+                  datafied (p/datafy taxon)
+                  snapshot {:type           :kafka/streams-agent
+                            :application-id application-id
+                            :client-id      client-id
+                            :captured       captured
+                            :data           {:state                (str (streams-state streams))
+                                             :topology/fingerprint (:fingerprint (cached-topology ctx))
+                                             :state/transitions    changes}
+                            :trigger        :state-change
+                            :job/id         (str (UUID/randomUUID))
+                            :snapshot/id    {:domain :streams :id datafied}}]
+              (log/infof "Kpow: sending state change snapshot for application.id %s: %s" application-id
+                         (str/join ", " (map #(str (:from %) " -> " (:to %)) changes)))
+              (send-record (assoc ctx :tracker tracker) (producer-record ctx datafied snapshot))
+              (on-acked ctx sensors id tracker :state-change (fn [_])))))))))
+
+(defn state-changed!
+  "Records a registration's state transition and schedules a state-change snapshot. The first change after a
+  quiet period is published immediately, further changes within state-debounce-ms of the last publication
+  are coalesced into one snapshot sent when the debounce elapses."
+  [{:keys [^ScheduledExecutorService scheduler ^ExecutorService workers registered-topologies state-debounce-ms] :as ctx}
+   {:keys [id state-watch]} from to]
+  (let [{:keys [transitions ^AtomicBoolean pending ^AtomicLong last-sent ^AtomicReference last-state]} state-watch
+        now (System/currentTimeMillis)]
+    (.set last-state to)
+    (swap! transitions (fn [changes]
+                         (conj (if (>= (count changes) max-transitions) (subvec changes 1) changes)
+                               {:from (str from) :to (str to) :at now})))
+    (when (.compareAndSet pending false true)
+      (try
+        (.schedule scheduler
+                   ^Runnable (fn []
+                               (when-let [registration (get @registered-topologies id)]
+                                 (if (.isShutdown workers)
+                                   (.set pending false)
+                                   (.execute workers (fn []
+                                                       (try
+                                                         (state-change-send ctx registration)
+                                                         (catch Throwable e
+                                                           (log/warnf e "Kpow: error sending state change snapshot for agent %s" id))))))))
+                   (long (max 0 (- (+ (.get last-sent) (long state-debounce-ms)) now)))
+                   TimeUnit/MILLISECONDS)
+        (catch Throwable e
+          (.set pending false)
+          (log/debugf e "Kpow: could not schedule state change snapshot for agent %s" id))))))
+
+(defn- existing-state-listener
+  "KafkaStreams does not expose its state listener, it is read reflectively so it can be chained."
+  [^KafkaStreams streams]
+  (try
+    (let [field (.getDeclaredField KafkaStreams "stateListener")]
+      (.setAccessible field true)
+      (.get field streams))
+    (catch Throwable e
+      (log/debug e "Kpow: unable to read the existing KafkaStreams state listener")
+      nil)))
+
+(defn chain-state-listener!
+  "Installs a state listener that calls any existing listener, then on-change with the previous and new state.
+  KafkaStreams only accepts a state listener before it is started, returns true when the listener was installed."
+  [streams on-change]
+  (when (and (instance? KafkaStreams streams)
+             (= KafkaStreams$State/CREATED (.state ^KafkaStreams streams)))
+    (let [^KafkaStreams$StateListener existing (existing-state-listener streams)]
+      (.setStateListener ^KafkaStreams streams
+                         (reify KafkaStreams$StateListener
+                           (onChange [_ new-state old-state]
+                             (when existing
+                               (.onChange existing new-state old-state))
+                             (try
+                               (on-change old-state new-state)
+                               (catch Throwable e
+                                 (log/warn e "Kpow: error handling streams state change"))))))
+      true)))
+
+(defn watch-state!
+  "Starts publishing state-change snapshots for a registration, through a chained state listener when the
+  streams instance has not started yet, otherwise by polling its state every state-debounce-ms."
+  [{:keys [^ScheduledExecutorService scheduler state-debounce-ms] :as ctx} {:keys [id streams state-watch] :as registration}]
+  (let [{:keys [^AtomicReference last-state ^AtomicReference poll]} state-watch]
+    (.set last-state (streams-state streams))
+    (when-not (chain-state-listener! streams #(state-changed! ctx registration %1 %2))
+      (log/infof "Kpow: streams application %s is already started, polling its state for state change snapshots" id)
+      (.set poll (.scheduleWithFixedDelay scheduler
+                                          ^Runnable (fn []
+                                                      (try
+                                                        (let [previous (.get last-state)
+                                                              current  (streams-state streams)]
+                                                          (when-not (= previous current)
+                                                            (state-changed! ctx registration previous current)))
+                                                        (catch Throwable e
+                                                          (log/debugf e "Kpow: error polling state of agent %s" id))))
+                                          (long state-debounce-ms)
+                                          (long state-debounce-ms)
+                                          TimeUnit/MILLISECONDS)))))
+
+(defn unwatch-state!
+  [{:keys [state-watch]}]
+  (some-> ^ScheduledFuture (.get ^AtomicReference (:poll state-watch)) (.cancel false)))
 
 (defn snapshot-task
-  ^Runnable [snapshot-topic producer registered-topologies metrics-filter latch]
+  "Fans out one observation cycle across every registered streams application.
+
+  The scheduler thread only submits work, each registration is captured and sent concurrently on the
+  bounded worker pool. A cycle that is still in flight when the next one is due causes that next cycle
+  to be skipped rather than queued behind it.
+
+  With a registration-id only that registration is observed, each registration then has its own task."
+  ^Runnable [{:keys [registered-topologies registration-id ^AtomicBoolean in-flight ^Sensor cycle-sensor ^Sensor skipped-sensor latch] :as ctx}]
   (fn []
-    (let [job-id (str (UUID/randomUUID))
-          ctx    {:job-id         job-id
-                  :snapshot-topic snapshot-topic
-                  :producer       producer
-                  :metrics-filter metrics-filter}]
-      (doseq [[id [streams topology key-strategy]] @registered-topologies]
-        (try (when-let [next-ctx (snapshot-telemetry (assoc ctx
-                                                            :streams streams
-                                                            :topology topology
-                                                            :key-strategy key-strategy
-                                                            :agent-id id))]
-               (Thread/sleep 2000)
-               (plan-send next-ctx))
-             (catch Throwable e
-               (log/warnf e "Kpow: error sending streams snapshot for agent %s" id))))
-
-      (deliver latch true))))
+    (if-not (.compareAndSet in-flight false true)
+      (do (some-> skipped-sensor (.record 1.0))
+          (log/warn "Kpow: previous streams snapshot cycle still in progress, skipping this cycle"))
+      (try
+        (let [started   (System/nanoTime)
+              ctx       (assoc ctx :job-id (str (UUID/randomUUID)))
+              pipelines (mapv #(registration-cycle ctx %) (if registration-id
+                                                             (some-> (get @registered-topologies registration-id) vector)
+                                                             (vals @registered-topologies)))]
+          (.whenComplete (all-of (map first pipelines))
+                         (bi-consumer (fn [_ _]
+                                        (let [duration (elapsed-ms started)]
+                                          (.record cycle-sensor (double duration))
+                                          (log/debugf "Kpow: streams snapshot cycle for %s applications took %.1fms"
+                                                      (count pipelines) duration)))))
+          (.whenComplete (all-of (map second pipelines))
+                         (bi-consumer (fn [_ _]
+                                        (.set in-flight false)
+                                        (deliver latch true)))))
+        (catch Throwable e
+          (.set in-flight false)
+          (log/warn e "Kpow: error starting streams snapshot cycle"))))))
+
+(defn phase-delay-ms
+  "The delay from now until a registration's phase: an offset within every interval derived from a hash of
+  its id. Phases are aligned to the wall clock, so registrations are spread across the interval by id
+  rather than by when their registry started."
+  ^long [id interval-ms now]
+  (let [interval (long interval-ms)]
+    (Math/floorMod (- (Math/floorMod (long (hash id)) interval) (long now)) interval)))
+
+(defn ticker
+  "Wraps a scheduled task, recording how late each tick is against next-run, then running the task straight
+  away or, with a positive jitter-ms, after a random delay of up to jitter-ms."
+  ^Runnable [{:keys [^ScheduledExecutorService scheduler ^Sensor lag-sensor jitter-ms interval-ms]} ^AtomicLong next-run ^Runnable task]
+  (fn []
+    (let [now (System/currentTimeMillis)]
+      (.record lag-sensor (double (max 0 (- now (.getAndSet next-run (+ now (long interval-ms))))))))
+    (if (pos? jitter-ms)
+      (.schedule scheduler task (.nextLong (ThreadLocalRandom/current) (inc (long jitter-ms))) TimeUnit/MILLISECONDS)
+      (.run task))))
+
+(defn schedule-registration!
+  "Schedules a registration's own observation task at its phase within the interval. The first observation
+  waits a whole interval more when its phase is sooner than initial-delay-ms."
+  ^ScheduledFuture [{:keys [^ScheduledExecutorService scheduler interval-ms initial-delay-ms] :as ctx} id]
+  (let [now      (System/currentTimeMillis)
+        phase    (phase-delay-ms id interval-ms now)
+        delay    (if (< phase (long initial-delay-ms)) (+ phase (long interval-ms)) phase)
+        task     (snapshot-task (assoc ctx :registration-id id :in-flight (AtomicBoolean. false)))
+        next-run (AtomicLong. (+ now delay))]
+    (log/infof "Kpow: observing streams agent %s every %sms from %sms" id interval-ms delay)
+    (.scheduleAtFixedRate scheduler (ticker ctx next-run task) delay (long interval-ms) TimeUnit/MILLISECONDS)))
+
+(defn unschedule-registration!
+  [{:keys [schedule]}]
+  (when-let [^ScheduledFuture future (some-> ^AtomicReference schedule .get)]
+    (.cancel future false)))
+
+(defn sampler-task
+  "Folds the current metric values of every registration into its aggregate between publications.
+
+  Only the cached metric index is read, so a registration is sampled once it has been observed at least
+  once and the sampler never materialises the KafkaStreams metric registry itself.
+
+  Like snapshot-task the scheduler thread only submits work, each registration is sampled on the worker
+  pool. A registration whose previous sample is still running is skipped until the next sample."
+  ^Runnable [{:keys [registered-topologies ^Executor workers]}]
+  (fn []
+    (doseq [{:keys [id cache ^AtomicBoolean sampling]} (vals @registered-topologies)]
+      (when (.compareAndSet sampling false true)
+        (try
+          (.execute workers
+                    ^Runnable (fn []
+                                (try
+                                  (when-let [index (get-in @cache [:metric-index :index])]
+                                    (sample-aggregate! index (cached-aggregate cache index)))
+                                  (catch Throwable e
+                                    (log/debugf e "Kpow: error sampling metrics for streams agent %s" id))
+                                  (finally
+                                    (.set sampling false)))))
+          (catch RejectedExecutionException _
+            (.set sampling false)))))))
 
 (defonce thread-factory
   (let [n (AtomicInteger. 0)]
@@ -216,24 +1338,278 @@
         (doto (Thread. r)
           (.setName (format "kpow-streams-agent-%d" (.getAndIncrement n))))))))
 
+(def default-opts
+  {:parallelism      (min 4 (.availableProcessors (Runtime/getRuntime)))
+   :send-mode        :blocking
+   :wire-format      :json
+   :initial-delay-ms 500
+   :interval-ms      60000
+   :plan-delay-ms    2000
+   ;; the metric index is also rebuilt on state or task assignment changes, this bounds how long a
+   ;; metric added without either (e.g. a newly opened store) can go unnoticed
+   :metric-index-refresh-cycles 10
+   :topology-interval-ms        0
+   :delta-keyframe-cycles       0
+   :delta-epsilon               0.0
+   :sample-interval-ms          0
+   ;; the producer defaults of batch.size and 90% of max.request.size, see record-limits
+   :target-record-bytes         16384
+   :max-record-bytes            943718
+   :shared-transport?           false
+   :spool-capacity-bytes        (* 16 1024 1024)
+   :spool-drop-policy           :drop-oldest
+   ;; the drainer waits for each batch to be acknowledged before taking the next
+   :spool-batch-records         100
+   :spool-backoff-ms            1000
+   :spool-max-backoff-ms        30000
+   :rollup-tags                 #{}
+   :rollup-reducer              :auto
+   :max-series                  0
+   :series-ranking              :change
+   :state-change-snapshots?     false
+   :state-debounce-ms           1000
+   :phase-spreading?            false
+   :jitter-ms                   0
+   :topology-chunk-bytes        0
+   :store-lag-interval-ms       0
+   :sinks                       []})
+
+(defn record-limits
+  "Derives the target and maximum encoded size of a metrics record from the snapshot producer's
+  batch.size and max.request.size. A positive target-record-bytes overrides the batch.size target."
+  [^Properties producer-props target-record-bytes]
+  (let [prop             (fn [k default]
+                           (if-let [v (some-> producer-props (.getProperty k))]
+                             (Long/parseLong (str/trim v))
+                             default))
+        max-record-bytes (long (* 0.9 (prop "max.request.size" 1048576)))
+        batch-size       (prop "batch.size" 16384)
+        target           (cond
+                           (pos? target-record-bytes) target-record-bytes
+                           (pos? batch-size) batch-size
+                           :else 16384)]
+    {:target-record-bytes (min target max-record-bytes)
+     :max-record-bytes    max-record-bytes}))
+
+(defn config-opts
+  "Translates a StreamsRegistryConfig into the options map understood by start-registry."
+  [^StreamsRegistryConfig config]
+  {:parallelism           (.getParallelism config)
+   :interval-ms           (.getIntervalMs config)
+   :sample-interval-ms    (.getSampleIntervalMs config)
+   :send-mode             (keyword (str/lower-case (.name (.getSendMode config))))
+   :wire-format           (if (= StreamsRegistryConfig$WireFormat/TRANSIT_MSGPACK (.getWireFormat config)) :msgpack :json)
+   :topology-interval-ms  (.getTopologyIntervalMs config)
+   :delta-keyframe-cycles (.getDeltaKeyframeCycles config)
+   :delta-epsilon         (.getDeltaEpsilon config)
+   :target-record-bytes   (.getTargetRecordBytes config)
+   :shared-transport?     (.isSharedTransport config)
+   :spool-capacity-bytes  (.getSpoolCapacityBytes config)
+   :rollup-tags           (set (.getRollupTags config))
+   :rollup-reducer        (keyword (str/lower-case (.name (.getRollupReducer config))))
+   :max-series            (.getMaxSeries config)
+   :series-ranking        (keyword (str/lower-case (.name (.getSeriesRanking config))))
+   :state-change-snapshots? (.isStateChangeSnapshots config)
+   :state-debounce-ms     (.getStateChangeDebounceMs config)
+   :phase-spreading?      (.isPhaseSpreading config)
+   :jitter-ms             (.getJitterMs config)
+   :topology-chunk-bytes  (.getTopologyChunkBytes config)
+   :store-lag-interval-ms (.getStoreLagIntervalMs config)
+   :sinks                 (if-let [sink (.getSink config)] [sink] [])
+   :spool-drop-policy     (if (= StreamsRegistryConfig$DropPolicy/DROP_NEWEST (.getSpoolDropPolicy config)) :drop-newest :drop-oldest)})
+
+(def ^String metrics-group "kpow-streams-agent")
+
+(def ^String jmx-prefix "kpow.streams.agent")
+
+(defonce ^:private registry-ids (AtomicInteger.))
+
+(defn agent-metrics
+  "The agent's own metrics, reported over JMX under the kpow.streams.agent domain. Every registry in the
+  JVM is tagged with a distinct registry number so their MBeans do not collide."
+  ^Metrics []
+  (Metrics. (.tags (MetricConfig.) {"registry" (str (.incrementAndGet ^AtomicInteger registry-ids))})
+            (java.util.Collections/singletonList (JmxReporter.))
+            Time/SYSTEM
+            (KafkaMetricsContext. jmx-prefix)))
+
+(defn- avg-max-sensor
+  ^Sensor [^Metrics metrics ^String sensor-name ^String metric-name description ^Map tags]
+  (doto (.sensor metrics sensor-name)
+    (.add (.metricName metrics (str metric-name "-avg") metrics-group (str "The average " description) tags) (Avg.))
+    (.add (.metricName metrics (str metric-name "-max") metrics-group (str "The max " description) tags) (Max.))))
+
+(defn- total-sensor
+  ^Sensor [^Metrics metrics ^String sensor-name ^String metric-name description ^Map tags]
+  (doto (.sensor metrics sensor-name)
+    (.add (.metricName metrics metric-name metrics-group (str "The total " description) tags) (CumulativeSum.))))
+
+(defn cycle-sensor
+  ^Sensor [^Metrics metrics]
+  (avg-max-sensor metrics "cycle-duration" "cycle-duration"
+                  "time in ms taken to capture and send telemetry for all registered streams applications" {}))
+
+(defn failure-sensor
+  ^Sensor [^Metrics metrics]
+  (total-sensor metrics "send-failures" "send-failures-total"
+                "number of telemetry records that failed to send" {}))
+
+(defn skipped-sensor
+  ^Sensor [^Metrics metrics]
+  (total-sensor metrics "cycles-skipped" "cycles-skipped-total"
+                "number of observation cycles skipped because the previous cycle was still in flight" {}))
+
+(defn lag-sensor
+  ^Sensor [^Metrics metrics]
+  (avg-max-sensor metrics "scheduler-lag" "scheduler-lag"
+                  "time in ms an observation cycle started after it was due" {}))
+
+(def registration-sensor-defs
+  [[:capture-time "capture-time" avg-max-sensor "time in ms taken to sample the metrics of one observation"]
+   [:filter-time "filter-time" avg-max-sensor "time in ms taken to rebuild the filtered metric index"]
+   [:datafy-time "datafy-time" avg-max-sensor "time in ms taken to describe and datafy the topology"]
+   [:serialize-time "serialize-time" avg-max-sensor "time in ms spent serializing the records of one observation"]
+   [:send-time "send-time" avg-max-sensor "time in ms spent handing the records of one observation to the producer"]
+   [:bytes "bytes-total" total-sensor "number of serialized bytes sent"]
+   [:records "records-total" total-sensor "number of records sent"]
+   [:send-failures "send-failures-total" total-sensor "number of records that failed to send"]])
+
+(defn- registration-sensor-name
+  [id sensor-key]
+  (str metrics-group "." id "." (name sensor-key)))
+
+(defn registration-sensors
+  "The overhead sensors of one registration, keyed as recorded by record! and tagged with its agent-id."
+  [^Metrics metrics id]
+  (into {} (map (fn [[k metric-name sensor description]]
+                  [k (sensor metrics (registration-sensor-name id k) metric-name description {"agent-id" id})]))
+        registration-sensor-defs))
+
+(defn remove-registration-sensors!
+  [^Metrics metrics id]
+  (doseq [[k] registration-sensor-defs]
+    (.removeSensor metrics (registration-sensor-name id k))))
+
+(defn spool-gauges!
+  "Registers the spool-size, spool-bytes and spool-dropped-total gauges of a spooled registry."
+  [^Metrics metrics spool]
+  (.addMetric metrics (.metricName metrics "spool-size" metrics-group "The number of records waiting in the spool")
+              (reify Measurable
+                (measure [_ _ _] (double (spool/size spool)))))
+  (.addMetric metrics (.metricName metrics "spool-bytes" metrics-group "The encoded bytes of the records waiting in the spool")
+              (reify Measurable
+                (measure [_ _ _] (double (spool/spooled-bytes spool)))))
+  (.addMetric metrics (.metricName metrics "spool-dropped-total" metrics-group "The total number of records discarded by a full spool")
+              (reify Measurable
+                (measure [_ _ _] (double (spool/dropped spool))))))
+
+(defn metric-value
+  "Returns the current value of one of the agent's own metrics, e.g. \"cycle-duration-max\", or of one
+  registration's metrics when its agent-id is provided."
+  ([agent metric-name]
+   (metric-value agent metric-name {}))
+  ([{:keys [^Metrics metrics]} ^String metric-name tags]
+   (some-> (.metric metrics (.metricName metrics metric-name metrics-group ^Map tags))
+           (.metricValue))))
+
 (defn start-registry
-  [{:keys [snapshot-topic producer metrics-filter]}]
+  [opts]
   (log/info "Kpow: starting registry")
-  (let [registered-topologies (atom {})
-        pool                  (Executors/newSingleThreadScheduledExecutor thread-factory)
-        register-fn           (fn [streams topology key-strategy]
-                                (let [id (str (UUID/randomUUID))]
-                                  (log/infof "Kpow: registering new streams application with id %s" id)
-                                  (swap! registered-topologies assoc id [streams topology key-strategy])
-                                  id))
+  (let [{:keys [parallelism initial-delay-ms interval-ms sample-interval-ms shared-transport? send-mode wire-format
+                spool-capacity-bytes spool-drop-policy spool-batch-records spool-backoff-ms spool-max-backoff-ms
+                state-change-snapshots? phase-spreading? sinks producer]
+         :as opts} (merge default-opts opts)
+        ;; writing to sinks alone never waits on a broker, records are written as they are sent
+        send-mode             (if producer send-mode :blocking)
+        sink-write            (when (and (seq sinks) (nil? producer))
+                                (sink/sink-write sinks wire-format))
+        ;; spooled records are held encoded, so the spool is bounded by the bytes it will send
+        encode-record         (when (and producer (or (seq sinks) (= :spooled send-mode)))
+                                (record-encoder wire-format (when (seq sinks) (sink/tee sinks))))
+        registered-topologies (atom {})
+        scheduler             (if shared-transport?
+                                (transport/acquire-scheduler #(Executors/newSingleThreadScheduledExecutor thread-factory))
+                                (Executors/newSingleThreadScheduledExecutor thread-factory))
+        workers               (Executors/newFixedThreadPool (int parallelism) thread-factory)
+        metrics               (agent-metrics)
+        spool                 (when (= :spooled send-mode)
+                                (doto (spool/spool spool-capacity-bytes spool-drop-policy)
+                                  (->> (spool-gauges! metrics))))
+        drainer               (when spool
+                                (doto (Executors/newSingleThreadExecutor thread-factory)
+                                  (.execute (spool/drainer spool producer {:batch-records  spool-batch-records
+                                                                           :backoff-ms     spool-backoff-ms
+                                                                           :max-backoff-ms spool-max-backoff-ms}))))
         latch                 (promise)
-        task                  (snapshot-task snapshot-topic producer registered-topologies metrics-filter latch)
-        scheduled-future      (.scheduleWithFixedDelay pool task 500 60000 TimeUnit/MILLISECONDS)]
+        ctx                   (assoc opts
+                                     :send-mode send-mode
+                                     :sink-write sink-write
+                                     :encode-record encode-record
+                                     :registered-topologies registered-topologies
+                                     :workers workers
+                                     :scheduler scheduler
+                                     :spool spool
+                                     :in-flight (AtomicBoolean. false)
+                                     :cycle-sensor (cycle-sensor metrics)
+                                     :failure-sensor (failure-sensor metrics)
+                                     :skipped-sensor (skipped-sensor metrics)
+                                     :lag-sensor (lag-sensor metrics)
+                                     :latch latch)
+        register-fn           (fn [streams topology key-strategy id]
+                                (log/infof "Kpow: registering new streams application with id %s" id)
+                                (let [registration {:id           id
+                                                    :streams      streams
+                                                    :topology     topology
+                                                    :key-strategy key-strategy
+                                                    :cache        (atom {})
+                                                    :sensors      (registration-sensors metrics id)
+                                                    :state-watch  (state-watch)
+                                                    :sampling     (AtomicBoolean. false)
+                                                    :schedule     (AtomicReference.)}]
+                                  (swap! registered-topologies assoc id registration)
+                                  (when phase-spreading?
+                                    (.set ^AtomicReference (:schedule registration) (schedule-registration! ctx id)))
+                                  (when state-change-snapshots?
+                                    (watch-state! ctx registration)))
+                                id)
+        scheduled-future      (when-not phase-spreading?
+                                (.scheduleWithFixedDelay scheduler
+                                                         (ticker ctx
+                                                                 (AtomicLong. (+ (System/currentTimeMillis) (long initial-delay-ms)))
+                                                                 (snapshot-task ctx))
+                                                         (long initial-delay-ms)
+                                                         (long interval-ms)
+                                                         TimeUnit/MILLISECONDS))
+        sampler-future        (when (pos? sample-interval-ms)
+                                (.scheduleWithFixedDelay scheduler
+                                                         (sampler-task {:registered-topologies registered-topologies
+                                                                        :workers               workers})
+                                                         (long sample-interval-ms)
+                                                         (long sample-interval-ms)
+                                                         TimeUnit/MILLISECONDS))]
     {:register         register-fn
-     :pool             pool
+     :pool             scheduler
+     :workers          workers
+     :metrics          metrics
+     :spool            spool
      :scheduled-future scheduled-future
+     :sampler-future   sampler-future
      :topologies       registered-topologies
-     :close            (fn [] (.shutdownNow pool))
+     :close            (fn []
+                         ;; state polls run on the scheduler, which outlives this registry when shared
+                         (run! unwatch-state! (vals @registered-topologies))
+                         (if shared-transport?
+                           (do (some-> ^ScheduledFuture scheduled-future (.cancel false))
+                               (some-> ^ScheduledFuture sampler-future (.cancel false))
+                               (run! unschedule-registration! (vals @registered-topologies))
+                               (transport/release-scheduler scheduler))
+                           (.shutdownNow scheduler))
+                         (.shutdownNow workers)
+                         (some-> ^ExecutorService drainer (.shutdownNow))
+                         (.close metrics)
+                         (sink/close! sinks)
+                         (when shared-transport?
+                           (transport/release-producer producer)))
      :latch            latch}))
 
 (defn close-registry
@@ -246,21 +1622,44 @@
   {})
 
 (defn init-registry
-  [producer metrics-filter snapshot-topic]
-  (start-registry {:snapshot-topic {:topic snapshot-topic}
-                   :producer       producer
-                   :metrics-filter metrics-filter}))
+  ([producer metrics-filter snapshot-topic]
+   (init-registry producer metrics-filter snapshot-topic (StreamsRegistryConfig.)))
+  ([producer metrics-filter snapshot-topic config]
+   (init-registry producer metrics-filter snapshot-topic config nil))
+  ([producer metrics-filter snapshot-topic config producer-props]
+   (let [opts (config-opts config)]
+     (start-registry (merge opts
+                            (record-limits producer-props (:target-record-bytes opts))
+                            {:snapshot-topic {:topic snapshot-topic}
+                             :producer       producer
+                             :metrics-filter metrics-filter})))))
+
+(defn init-sink-registry
+  "Starts a registry that writes telemetry to sink, and any sink of the config, without a Kafka producer."
+  [^TelemetrySink sink metrics-filter snapshot-topic config]
+  (let [opts (config-opts config)]
+    (start-registry (merge opts
+                           (record-limits nil (:target-record-bytes opts))
+                           {:snapshot-topic {:topic snapshot-topic}
+                            :sinks          (into [sink] (:sinks opts))
+                            :metrics-filter metrics-filter}))))
 
 (defn register
-  [agent streams topology key-strategy]
-  (when-let [register-fn (:register agent)]
-    (let [id (register-fn streams topology key-strategy)]
-      (log/infof "Kpow: registring new streams agent %s" id)
-      id)))
+  ([agent streams topology key-strategy]
+   (register agent streams topology key-strategy (str (UUID/randomUUID))))
+  ([agent streams topology key-strategy id]
+   (when-let [register-fn (:register agent)]
+     (let [id (register-fn streams topology key-strategy id)]
+       (log/infof "Kpow: registring new streams agent %s" id)
+       id))))
 
 (defn unregister
   [agent ^String id]
   (when-let [registered-topologies (:topologies agent)]
-    (swap! registered-topologies dissoc id)
+    (let [[registered] (swap-vals! registered-topologies dissoc id)]
+      (when-let [registration (get registered id)]
+        (unschedule-registration! registration)
+        (unwatch-state! registration)))
+    (some-> ^Metrics (:metrics agent) (remove-registration-sensors! id))
     (log/infof "Kpow: unregistered streams agent %s" id)
     true))
@@ -1,6 +1,10 @@
 (ns io.factorhouse.kpow.serdes
   (:require [cognitect.transit :as transit])
-  (:import (java.io ByteArrayOutputStream ByteArrayInputStream)
+  (:import (io.factorhouse.kpow.serdes EncodeBuffer)
+           (java.io ByteArrayOutputStream ByteArrayInputStream)
+           (java.nio ByteBuffer)
+           (java.util.function Supplier)
+           (org.apache.kafka.clients.producer ProducerRecord)
            (org.apache.kafka.streams.kstream Windowed Window)
            (org.apache.kafka.common.serialization Serde Deserializer Serializer)))
 
@@ -13,7 +17,7 @@
            start-ms (.start window)
            end-ms   (.end window)]
        [start-ms end-ms k]))
-   (fn [v]
+   (fn [^Windowed v]
      (let [k        (.key v)
            window   (.window v)
            start-ms (.start window)
@@ -40,6 +44,119 @@
       (transit/write (transit/writer stream format write-opts) data)
       (.toByteArray stream))))
 
+(def write-handlers
+  "The write handlers resolved once, transit-java caches the handler lookups it derives from them."
+  (transit/write-handler-map (:handlers write-opts)))
+
+(def ^:const max-retained-bytes
+  "A thread's encode buffer is discarded rather than retained once it has grown past this size."
+  (* 1024 1024))
+
+(defn- encoder
+  [format]
+  (let [buffer (EncodeBuffer. 8192)]
+    {:buffer buffer
+     :writer (transit/writer buffer format {:handlers write-handlers})}))
+
+(defn encoders
+  "A ThreadLocal holding a reusable buffer and writer per serializing thread."
+  ^ThreadLocal [format]
+  (ThreadLocal/withInitial (reify Supplier
+                             (get [_] (encoder format)))))
+
+(def ^ThreadLocal serialize-totals
+  "Running totals of [nanos bytes] spent by the calling thread in reusable-serialize and encode-record.
+  KafkaProducer serializes on the thread that calls send, so reading these around a send attributes the cost
+  to the caller."
+  (ThreadLocal/withInitial (reify Supplier
+                             (get [_] (long-array 2)))))
+
+(defn- encode!
+  "Writes data with the calling thread's reusable buffer and writer, returns the buffer and the offset the
+  encoded bytes start at.
+
+  Transit resets its write cache for every top-level value, so keyword and string caching still only
+  applies within one record. A reused JSON writer separates root values with a single space, which the
+  offset skips."
+  [^ThreadLocal encoders data]
+  (let [{:keys [^EncodeBuffer buffer writer]} (.get encoders)]
+    (.reset buffer)
+    (try
+      (transit/write writer data)
+      [buffer (if (and (pos? (.size buffer)) (= 32 (.byteAt buffer 0))) 1 0)]
+      (catch Throwable e
+        ;; a failed write can leave the writer mid-value, start the next record with a fresh one
+        (.remove encoders)
+        (throw e)))))
+
+(defn- release!
+  [^ThreadLocal encoders ^EncodeBuffer buffer]
+  (when (> (.capacity buffer) max-retained-bytes)
+    (.remove encoders)))
+
+(defn record-serialize!
+  "Adds nanos and bytes to the calling thread's serialize-totals."
+  [nanos bytes]
+  (let [^longs totals (.get serialize-totals)]
+    (aset totals 0 (+ (aget totals 0) (long nanos)))
+    (aset totals 1 (+ (aget totals 1) (long bytes)))))
+
+(defn reusable-serialize
+  "Serializes data with the calling thread's reusable buffer and writer, output is identical to
+  transit-serialize. A byte array has already been encoded by encode-record and is returned as is."
+  [^ThreadLocal encoders data]
+  (cond
+    (nil? data) nil
+    (bytes? data) data
+    :else
+    (let [started (System/nanoTime)
+          [^EncodeBuffer buffer offset] (encode! encoders data)
+          bytes   (.toByteArray buffer (int offset))]
+      (release! encoders buffer)
+      (record-serialize! (- (System/nanoTime) started) (alength bytes))
+      bytes)))
+
+(defn encode-with
+  "Serializes data with the calling thread's reusable buffer and writer and returns the result of calling f
+  with a read-only ByteBuffer view of the encoded bytes, or with nil for nil data. The view is only valid
+  until f returns, nothing is copied out of the buffer."
+  [^ThreadLocal encoders data f]
+  (if (nil? data)
+    (f nil)
+    (let [[^EncodeBuffer buffer offset] (encode! encoders data)]
+      (try
+        (f (.asByteBuffer buffer (int offset)))
+        (finally
+          (release! encoders buffer))))))
+
+(defn- copy-bytes
+  [^ByteBuffer buffer]
+  (when buffer
+    (let [bytes (byte-array (.remaining buffer))]
+      (.get (.duplicate buffer) bytes)
+      bytes)))
+
+(defn encode-record
+  "Encodes the key and value of a record once with the calling thread's reusable buffers and writers, returns a
+  record of the encoded bytes with the same topic, partition, timestamp and headers. A reusable-transit-serializer
+  sends the bytes as they are.
+
+  When given, tee is called with the topic and read-only views of the encoded key and value before they are copied
+  out of the buffers. The time spent, tee included, and the bytes encoded are added to serialize-totals."
+  ^ProducerRecord [key-encoders value-encoders ^ProducerRecord record tee]
+  (let [started (System/nanoTime)
+        topic   (.topic record)
+        [^bytes key ^bytes value]
+        (encode-with key-encoders (.key record)
+                     (fn [key]
+                       (encode-with value-encoders (.value record)
+                                    (fn [value]
+                                      (when tee
+                                        (tee topic key value))
+                                      [(copy-bytes key) (copy-bytes value)]))))]
+    (record-serialize! (- (System/nanoTime) started) (+ (if key (alength key) 0) (if value (alength value) 0)))
+    (ProducerRecord. topic (.partition record) (.timestamp record) key value (.headers record))))
+
 (defn transit-deserialize
   [format bytes]
   (when bytes
@@ -102,5 +219,21 @@
   (serializer [_] (TransitMsgpackSerializer.))
   (deserializer [_] (TransitMsgpackDeserializer.)))
 
+(deftype ReusableTransitSerializer [^ThreadLocal encoders]
+  Serializer
+  (configure [_ _ _])
+  (serialize [_ _ data] (reusable-serialize encoders data))
+  (close [_]))
+
+(defn reusable-transit-serializer
+  "A Transit serializer that reuses a buffer and writer per thread, byte-for-byte compatible with
+  TransitJsonSerializer / TransitMsgpackSerializer for the same format. Records already encoded by
+  encode-record pass through unchanged."
+  [format]
+  (ReusableTransitSerializer. (encoders format)))
+
 (defn transit-json-serializer []
-  (TransitJsonSerializer.))
\ No newline at end of file
+  (reusable-transit-serializer :json))
+
+(defn transit-msgpack-serializer []
+  (reusable-transit-serializer :msgpack))
\ No newline at end of file
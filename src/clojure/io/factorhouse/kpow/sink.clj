@@ -0,0 +1,78 @@
+(ns io.factorhouse.kpow.sink
+  "Writes telemetry records to TelemetrySinks, on the agent's send path next to or in place of the Kafka producer.
+
+  Records are encoded with the agent's reusable Transit writers and handed to each sink as a view of the
+  encode buffer, the bytes are never copied out of it on the way to a sink."
+  (:require [clojure.tools.logging :as log]
+            [io.factorhouse.kpow.serdes :as serdes])
+  (:import (io.factorhouse.kpow.sink TelemetrySink)
+           (java.nio ByteBuffer)
+           (java.util.concurrent.atomic AtomicBoolean)
+           (org.apache.kafka.clients.producer ProducerRecord RecordMetadata)
+           (org.apache.kafka.common TopicPartition)))
+
+(defn- remaining
+  ^long [^ByteBuffer buffer]
+  (if buffer (.remaining buffer) 0))
+
+(defn- write!
+  [sinks topic key value]
+  (doseq [^TelemetrySink sink sinks]
+    (.write sink topic key value)))
+
+(defn tee
+  "A fn of [topic key value] that writes the views of an encoded record to every sink before the record is sent
+  to Kafka, for serdes/encode-record. A failed write is logged, once until writes succeed again, and never fails
+  the send."
+  [sinks]
+  (let [failing (AtomicBoolean. false)]
+    (fn [topic key value]
+      (try
+        (write! sinks topic key value)
+        (when (.compareAndSet failing true false)
+          (log/info "Kpow: writing telemetry to sinks again"))
+        (catch Exception e
+          (when (.compareAndSet failing false true)
+            (log/warn e "Kpow: failed to write telemetry to a sink, records are still sent to Kafka")))))))
+
+(defn sink-write
+  "A fn that writes a record to every sink in place of the snapshot producer, keys encoded as Transit JSON and
+  values in value-format. Returns the record's RecordMetadata, the time spent writing counts as serializing, and a
+  failed write throws."
+  [sinks value-format]
+  (let [key-encoders   (serdes/encoders :json)
+        value-encoders (serdes/encoders value-format)]
+    (fn [^ProducerRecord record]
+      (let [started  (System/nanoTime)
+            topic    (.topic record)
+            metadata (serdes/encode-with
+                      key-encoders (.key record)
+                      (fn [key]
+                        (serdes/encode-with
+                         value-encoders (.value record)
+                         (fn [value]
+                           (write! sinks topic key value)
+                           (RecordMetadata. (TopicPartition. topic (int RecordMetadata/UNKNOWN_PARTITION)) -1 -1
+                                            (System/currentTimeMillis) (remaining key) (remaining value))))))]
+        (serdes/record-serialize! (- (System/nanoTime) started)
+                                  (+ (.serializedKeySize ^RecordMetadata metadata) (.serializedValueSize ^RecordMetadata metadata)))
+        metadata))))
+
+(defn flush!
+  "Flushes every sink, logging rather than throwing when one fails to flush."
+  [sinks]
+  (doseq [^TelemetrySink sink sinks]
+    (try
+      (.flush sink)
+      (catch Exception e
+        (log/warn e "Kpow: failed to flush telemetry sink")))))
+
+(defn close!
+  "Flushes and closes every sink, logging rather than throwing when one fails to close."
+  [sinks]
+  (flush! sinks)
+  (doseq [^TelemetrySink sink sinks]
+    (try
+      (.close sink)
+      (catch Exception e
+        (log/warn e "Kpow: failed to close telemetry sink")))))
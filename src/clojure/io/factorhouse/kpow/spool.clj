@@ -0,0 +1,161 @@
+(ns io.factorhouse.kpow.spool
+  "A bounded in-memory spool of encoded producer records, drained to the producer on its own thread.
+
+  Observations hand their encoded records to the spool and never wait on the brokers. The spool is bounded by
+  the encoded bytes it holds, so its memory use does not depend on how large topology chunks or metrics batches
+  are. The drainer sends a bounded batch at a time and waits for its acknowledgements before taking the next,
+  records that fail with a retriable error go back to the head of the spool and draining backs off until a send
+  succeeds."
+  (:require [clojure.tools.logging :as log])
+  (:import (java.util ArrayList)
+           (java.util.concurrent CompletableFuture LinkedBlockingDeque)
+           (java.util.concurrent.atomic AtomicBoolean AtomicLong)
+           (org.apache.kafka.clients.producer Callback Producer ProducerRecord)
+           (org.apache.kafka.common.errors InterruptException RetriableException)))
+
+(defn spool
+  "A spool of at most capacity-bytes of encoded records. A full spool discards its oldest entries (:drop-oldest)
+  or the new one (:drop-newest)."
+  [capacity-bytes drop-policy]
+  {:deque          (LinkedBlockingDeque.)
+   ;; guards the deque and byte count together, and wakes the drainer when entries are added
+   :lock           (Object.)
+   :capacity-bytes capacity-bytes
+   :drop-policy    drop-policy
+   :bytes          (AtomicLong. 0)
+   :dropped        (AtomicLong. 0)
+   :overflowing    (AtomicBoolean. false)})
+
+(defn size
+  "The number of entries in the spool."
+  [{:keys [^LinkedBlockingDeque deque]}]
+  (.size deque))
+
+(defn spooled-bytes
+  "The encoded bytes of the entries in the spool."
+  [{:keys [^AtomicLong bytes]}]
+  (.get bytes))
+
+(defn dropped
+  "The number of entries discarded since the spool was created."
+  [{:keys [^AtomicLong dropped]}]
+  (.get dropped))
+
+(defn- entry-bytes
+  ^long [{:keys [bytes]}]
+  (long (or bytes 0)))
+
+(defn- drop!
+  "Discards an entry, letting its sender know the record was never sent."
+  [{:keys [^AtomicLong dropped ^AtomicBoolean overflowing capacity-bytes]} {:keys [on-complete]}]
+  (.incrementAndGet dropped)
+  (when (.compareAndSet overflowing false true)
+    (log/warnf "Kpow: telemetry spool is full at %s bytes, discarding records until it drains" capacity-bytes))
+  (when on-complete
+    (on-complete nil (ex-info "Kpow: telemetry spool is full, record discarded" {:capacity-bytes capacity-bytes}))))
+
+(defn- trim!
+  "Discards entries until the spool is within capacity. Called holding the spool's lock."
+  [{:keys [^LinkedBlockingDeque deque ^AtomicLong bytes capacity-bytes drop-policy]}]
+  (loop [discarded []]
+    (if-let [entry (when (> (.get bytes) (long capacity-bytes))
+                     (if (= :drop-newest drop-policy) (.pollLast deque) (.pollFirst deque)))]
+      (do (.addAndGet bytes (- (entry-bytes entry)))
+          (recur (conj discarded entry)))
+      discarded)))
+
+(defn offer!
+  "Spools an entry of {:record ProducerRecord :bytes n :on-complete (fn [metadata e])}, where bytes is the
+  encoded size of the record, never blocks. Returns false when the entry itself was discarded."
+  [{:keys [^LinkedBlockingDeque deque lock ^AtomicLong bytes capacity-bytes drop-policy] :as spool} entry]
+  (let [discarded (locking lock
+                    (if (and (= :drop-newest drop-policy)
+                             (> (+ (.get bytes) (entry-bytes entry)) (long capacity-bytes)))
+                      [entry]
+                      (do (.offerLast deque entry)
+                          (.addAndGet bytes (entry-bytes entry))
+                          (.notifyAll ^Object lock)
+                          (trim! spool))))]
+    (run! #(drop! spool %) discarded)
+    (not-any? #(identical? entry %) discarded)))
+
+(defn requeue!
+  "Returns entries to the head of the spool in their original order, ahead of anything spooled since."
+  [{:keys [^LinkedBlockingDeque deque lock ^AtomicLong bytes] :as spool} entries]
+  (let [discarded (locking lock
+                    (doseq [entry (reverse entries)]
+                      (.offerFirst deque entry)
+                      (.addAndGet bytes (entry-bytes entry)))
+                    (.notifyAll ^Object lock)
+                    (trim! spool))]
+    (run! #(drop! spool %) discarded)))
+
+(defn take-batch!
+  "Takes up to max-entries from the head of the spool, waiting up to timeout-ms for the first."
+  [{:keys [^LinkedBlockingDeque deque lock ^AtomicLong bytes ^AtomicBoolean overflowing]} max-entries timeout-ms]
+  (let [batch (ArrayList.)]
+    (locking lock
+      (when (and (.isEmpty deque) (pos? (long timeout-ms)))
+        (.wait ^Object lock (long timeout-ms)))
+      (.drainTo deque batch (int max-entries))
+      (.addAndGet bytes (- (transduce (map entry-bytes) + batch))))
+    (when-not (.isEmpty batch)
+      (.set overflowing false))
+    (vec batch)))
+
+(defn- send-entry
+  "Sends one entry, returning a CompletableFuture of the entry when it should be retried or nil."
+  ^CompletableFuture [^Producer producer {:keys [^ProducerRecord record on-complete] :as entry}]
+  (let [result   (CompletableFuture.)
+        complete (fn [metadata e]
+                   (if (instance? RetriableException e)
+                     (.complete result entry)
+                     (do (when on-complete
+                           (on-complete metadata e))
+                         (.complete result nil))))]
+    (try
+      (.send producer record (reify Callback
+                               (onCompletion [_ metadata e]
+                                 (complete metadata e))))
+      (catch InterruptedException e
+        (throw e))
+      (catch Throwable e
+        (complete nil e)))
+    result))
+
+(defn send-batch
+  "Sends a batch of entries and waits for every acknowledgement, returns the entries to retry in order."
+  [^Producer producer batch]
+  (let [results (mapv #(send-entry producer %) batch)]
+    (.get (CompletableFuture/allOf (into-array CompletableFuture results)))
+    (into [] (keep #(.getNow ^CompletableFuture % nil)) results)))
+
+(defn drainer
+  "A Runnable that drains the spool to the producer until its thread is interrupted.
+
+  Each batch of up to batch-records is sent and acknowledged before the next is taken. When any record of
+  a batch fails with a retriable error, those records are requeued and draining pauses for backoff-ms,
+  doubling up to max-backoff-ms until a batch sends cleanly."
+  ^Runnable [spool ^Producer producer {:keys [batch-records backoff-ms max-backoff-ms]}]
+  (fn []
+    (try
+      (loop [backoff (long backoff-ms)
+             failing false]
+        (when-not (.isInterrupted (Thread/currentThread))
+          (let [batch (take-batch! spool batch-records 1000)]
+            (if (empty? batch)
+              (recur backoff failing)
+              (let [retry (send-batch producer batch)]
+                (if (seq retry)
+                  (do (requeue! spool retry)
+                      (when-not failing
+                        (log/warnf "Kpow: failed to send %s spooled records, retrying with backoff" (count retry)))
+                      (Thread/sleep backoff)
+                      (recur (min (* 2 backoff) (long max-backoff-ms)) true))
+                  (do (when failing
+                        (log/infof "Kpow: spooled records are sending again, %s records spooled" (size spool)))
+                      (recur (long backoff-ms) false))))))))
+      (catch InterruptedException _)
+      (catch InterruptException _))
+    (when (pos? (size spool))
+      (log/infof "Kpow: discarding %s spooled records on close" (size spool)))))
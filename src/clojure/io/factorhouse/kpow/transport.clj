@@ -0,0 +1,70 @@
+(ns io.factorhouse.kpow.transport
+  "Producers and schedulers shared by every StreamsRegistry in the JVM that opts into a shared transport.
+
+  Shared resources are reference counted, the last registry to release one closes it."
+  (:require [clojure.tools.logging :as log])
+  (:import (java.util Properties)
+           (java.util.concurrent ScheduledExecutorService)
+           (java.util.function Supplier)
+           (org.apache.kafka.clients.producer Producer)))
+
+(defonce ^:private shared (atom {}))
+
+(defn- acquire
+  [key create]
+  (locking shared
+    (if-let [{:keys [resource]} (get @shared key)]
+      (do (swap! shared update-in [key :refs] inc)
+          resource)
+      (let [resource (create)]
+        (swap! shared assoc key {:resource resource :refs 1})
+        resource))))
+
+(defn- release
+  "Drops one reference to resource, calling close outside the lock when it was the last. Resources that
+  were never acquired here are ignored, returns true when the resource was closed."
+  [resource close]
+  (let [last? (locking shared
+                (when-let [[key {:keys [refs]}] (first (filter #(identical? resource (:resource (val %))) @shared))]
+                  (if (= 1 refs)
+                    (do (swap! shared dissoc key) true)
+                    (do (swap! shared update-in [key :refs] dec) false))))]
+    (when last?
+      (close resource))
+    (boolean last?)))
+
+(defn ref-count
+  "The number of registries currently holding a shared resource, 0 when it is not shared."
+  [resource]
+  (or (some #(when (identical? resource (:resource %)) (:refs %)) (vals @shared)) 0))
+
+(defn producer-key
+  "Registries share a producer when their filtered producer properties and wire format are equal."
+  [^Properties producer-props wire-format]
+  [:producer (into {} producer-props) (str wire-format)])
+
+(defn acquire-producer
+  "Returns the shared producer for these producer properties and wire format, creating it with the
+  supplier when no registry holds one."
+  ^Producer [^Properties producer-props wire-format ^Supplier create]
+  (acquire (producer-key producer-props wire-format)
+           (fn []
+             (log/info "Kpow: creating shared snapshot producer")
+             (.get create))))
+
+(defn release-producer
+  [^Producer producer]
+  (release producer (fn [^Producer producer]
+                      (log/info "Kpow: closing shared snapshot producer")
+                      (.close producer))))
+
+(defn acquire-scheduler
+  "Returns the JVM-wide scheduler, creating it with create when no registry holds it. The scheduler only
+  submits work so one thread serves any number of registries."
+  ^ScheduledExecutorService [create]
+  (acquire [:scheduler] create))
+
+(defn release-scheduler
+  [^ScheduledExecutorService scheduler]
+  (release scheduler (fn [^ScheduledExecutorService scheduler]
+                       (.shutdownNow scheduler))))
@@ -0,0 +1,205 @@
+package io.factorhouse.kpow;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.common.MetricName;
+
+/**
+ * An evaluator compiled from the rules of a {@link MetricFilter}.
+ *
+ * <p>Consecutive name-prefix rules are merged into a single prefix trie, so a run of
+ * {@code acceptNameStartsWith} / {@code denyNameStartsWith} rules costs one walk of the metric name.
+ * Consecutive declarative rules are indexed by the exact metric group and name they match, so a run of
+ * {@link MetricFilter#rule(String)} rules only tests the rules that could match a metric.
+ * Decisions are memoized per {@link MetricName} instance in a bounded identity-keyed cache, Kafka Streams
+ * reuses the same {@code MetricName} for a metric for as long as it is registered.</p>
+ *
+ * <p>First-match semantics are identical to evaluating each {@link MetricFilter.FilterCriteria} in order.</p>
+ */
+final class CompiledMetricFilter {
+
+    static final int MAX_CACHED_DECISIONS = 65536;
+
+    private static final Object NO_MATCH = new Object();
+
+    private interface Segment {
+        /**
+         * @return TRUE/FALSE for the first matching rule within this segment, or null when no rule matches
+         */
+        Boolean evaluate(MetricName metricName);
+    }
+
+    private static final class PredicateSegment implements Segment {
+        private final MetricFilter.FilterCriteria criteria;
+
+        PredicateSegment(MetricFilter.FilterCriteria criteria) {
+            this.criteria = criteria;
+        }
+
+        @Override
+        public Boolean evaluate(MetricName metricName) {
+            if (criteria.getPredicate().test(metricName)) {
+                return criteria.getFilterType() == MetricFilter.FilterType.ACCEPT;
+            }
+            return null;
+        }
+    }
+
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        // index (in rule order) and decision of the earliest rule whose prefix ends at this node, -1 if none
+        private int ruleIndex = -1;
+        private boolean accept;
+    }
+
+    private static final class PrefixSegment implements Segment {
+        private final TrieNode root = new TrieNode();
+
+        void add(int ruleIndex, String prefix, boolean accept) {
+            TrieNode node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new TrieNode());
+            }
+            if (node.ruleIndex == -1) {
+                node.ruleIndex = ruleIndex;
+                node.accept = accept;
+            }
+        }
+
+        @Override
+        public Boolean evaluate(MetricName metricName) {
+            String name = metricName.name();
+            TrieNode node = root;
+            int bestIndex = node.ruleIndex;
+            boolean bestAccept = node.accept;
+            for (int i = 0; i < name.length(); i++) {
+                node = node.children.get(name.charAt(i));
+                if (node == null) {
+                    break;
+                }
+                if (node.ruleIndex != -1 && (bestIndex == -1 || node.ruleIndex < bestIndex)) {
+                    bestIndex = node.ruleIndex;
+                    bestAccept = node.accept;
+                }
+            }
+            return bestIndex == -1 ? null : bestAccept;
+        }
+    }
+
+    private static final class IndexedRule {
+        private final int ruleIndex;
+        private final MetricRule rule;
+
+        IndexedRule(int ruleIndex, MetricRule rule) {
+            this.ruleIndex = ruleIndex;
+            this.rule = rule;
+        }
+    }
+
+    private static final class RuleSegment implements Segment {
+        // rules in rule order by exact group, then by exact name, a null key holds the rules matching any group or name
+        private final Map<String, Map<String, List<IndexedRule>>> index = new HashMap<>();
+
+        void add(int ruleIndex, MetricRule rule) {
+            index.computeIfAbsent(rule.exactGroup(), group -> new HashMap<>())
+                .computeIfAbsent(rule.exactName(), name -> new ArrayList<>())
+                .add(new IndexedRule(ruleIndex, rule));
+        }
+
+        private IndexedRule first(Map<String, List<IndexedRule>> byName, String name, MetricName metricName, IndexedRule best) {
+            List<IndexedRule> rules = byName.get(name);
+            if (rules != null) {
+                for (IndexedRule candidate : rules) {
+                    if (best != null && candidate.ruleIndex > best.ruleIndex) {
+                        break;
+                    }
+                    if (candidate.rule.test(metricName)) {
+                        return candidate;
+                    }
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public Boolean evaluate(MetricName metricName) {
+            IndexedRule best = null;
+            for (String group : new String[]{metricName.group(), null}) {
+                Map<String, List<IndexedRule>> byName = index.get(group);
+                if (byName != null) {
+                    best = first(byName, metricName.name(), metricName, best);
+                    best = first(byName, null, metricName, best);
+                }
+            }
+            return best == null ? null : best.rule.getFilterType() == MetricFilter.FilterType.ACCEPT;
+        }
+    }
+
+    private final Segment[] segments;
+    private final Map<MetricName, Object> decisions = new IdentityHashMap<>();
+
+    CompiledMetricFilter(List<MetricFilter.FilterCriteria> filters) {
+        List<Segment> compiled = new ArrayList<>();
+        PrefixSegment run = null;
+        RuleSegment rules = null;
+        for (int i = 0; i < filters.size(); i++) {
+            MetricFilter.FilterCriteria criteria = filters.get(i);
+            String prefix = criteria.getPrefix();
+            MetricRule rule = criteria.getRule();
+            if (prefix != null) {
+                rules = null;
+                if (run == null) {
+                    run = new PrefixSegment();
+                    compiled.add(run);
+                }
+                run.add(i, prefix, criteria.getFilterType() == MetricFilter.FilterType.ACCEPT);
+            } else if (rule != null) {
+                run = null;
+                if (rules == null) {
+                    rules = new RuleSegment();
+                    compiled.add(rules);
+                }
+                rules.add(i, rule);
+            } else {
+                run = null;
+                rules = null;
+                compiled.add(new PredicateSegment(criteria));
+            }
+        }
+        this.segments = compiled.toArray(new Segment[0]);
+    }
+
+    private Boolean evaluate(MetricName metricName) {
+        for (Segment segment : segments) {
+            Boolean decision = segment.evaluate(metricName);
+            if (decision != null) {
+                return decision;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the decision of the first matching rule, or null when no rule matches.
+     */
+    Boolean decide(MetricName metricName) {
+        Object cached;
+        synchronized (decisions) {
+            cached = decisions.get(metricName);
+        }
+        if (cached == null) {
+            Boolean decision = evaluate(metricName);
+            synchronized (decisions) {
+                if (decisions.size() >= MAX_CACHED_DECISIONS) {
+                    decisions.clear();
+                }
+                decisions.put(metricName, decision == null ? NO_MATCH : decision);
+            }
+            return decision;
+        }
+        return cached == NO_MATCH ? null : (Boolean) cached;
+    }
+}
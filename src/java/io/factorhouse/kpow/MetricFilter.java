@@ -1,8 +1,15 @@
 package io.factorhouse.kpow;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
 import java.util.function.Predicate;
 import org.apache.kafka.common.MetricName;
 
@@ -23,10 +30,21 @@ import org.apache.kafka.common.MetricName;
  *
  * <p>Developers can use these predefined static methods to quickly configure common filtering behaviors,
  * or implement custom filters if required.</p>
+ *
+ * <h3>Declarative Rules</h3>
+ * <p>Rules matching on metric name, group and tags can also be written as text with {@link #rule(String)}, or loaded
+ * from {@link Properties} or a file with {@link #fromProperties(Properties)} and {@link #fromFile(Path)}:</p>
+ * <pre>
+ * id=noisy-app
+ * rule.1=deny group=stream-state-metrics tag.rocksdb-state-id=*
+ * rule.2=accept name=regex:(process|commit)-latency-(avg|max)
+ * rule.3=accept group=stream-thread-metrics name=prefix:records-lag
+ * </pre>
+ * <p>A running registry picks up new rules swapped in with {@link #reload(MetricFilter)} on its next observation.</p>
  */
 public class MetricFilter {
 
-    private String filterId = null;
+    private volatile String filterId = null;
 
     /**
      * Returns a unique identifier used by Kpow's user interface to describe which MetricFilter has been configured.
@@ -59,6 +77,8 @@ public class MetricFilter {
 
         private final Predicate<MetricName> predicate;
         private final FilterType filterType;
+        private final String prefix;
+        private final MetricRule rule;
 
         /**
          * Constructs a new {@link FilterCriteria} object with the specified predicate and filter type.
@@ -69,9 +89,38 @@ public class MetricFilter {
         private FilterCriteria(
             Predicate<MetricName> predicate,
             FilterType filterType
+        ) {
+            this(predicate, filterType, null);
+        }
+
+        /**
+         * Constructs a new {@link FilterCriteria} object for a metric name prefix rule.
+         *
+         * @param predicate The predicate used to define which metrics should be accepted or denied
+         * @param filterType The type of filter operation (ACCEPT or DENY)
+         * @param prefix The metric name prefix the predicate matches, allowing prefix rules to be compiled together
+         */
+        private FilterCriteria(
+            Predicate<MetricName> predicate,
+            FilterType filterType,
+            String prefix
         ) {
             this.predicate = predicate;
             this.filterType = filterType;
+            this.prefix = prefix;
+            this.rule = null;
+        }
+
+        /**
+         * Constructs a new {@link FilterCriteria} object for a declarative rule.
+         *
+         * @param rule The parsed rule, allowing rules to be indexed by metric group and name when compiled
+         */
+        private FilterCriteria(MetricRule rule) {
+            this.predicate = rule::test;
+            this.filterType = rule.getFilterType();
+            this.prefix = null;
+            this.rule = rule;
         }
 
         /**
@@ -91,9 +140,21 @@ public class MetricFilter {
         public FilterType getFilterType() {
             return filterType;
         }
+
+        String getPrefix() {
+            return prefix;
+        }
+
+        MetricRule getRule() {
+            return rule;
+        }
     }
 
-    private final List<FilterCriteria> filters;
+    private volatile List<FilterCriteria> filters;
+
+    private volatile CompiledMetricFilter compiled = null;
+
+    private volatile long generation = 0;
 
     /**
      * Creates a new MetricFilter instance for custom-defined filters.
@@ -192,6 +253,56 @@ public class MetricFilter {
             .acceptNameStartsWith("flush-rate");
     }
 
+    /**
+     * Returns a metrics filter of the declarative rules in {@code props}.
+     *
+     * <p>Rules are read from the keys {@code rule.<n>}, in ascending numeric order of {@code <n>}, see
+     * {@link #rule(String)} for their syntax. The optional {@code id} key names the filter, "rules" by default.</p>
+     *
+     * @param props the properties holding the rules
+     * @return a metrics filter of the rules
+     * @throws IllegalArgumentException if a key or rule is not valid
+     */
+    public static MetricFilter fromProperties(Properties props) {
+        TreeMap<Long, String> rules = new TreeMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith("rule.")) {
+                try {
+                    rules.put(Long.parseLong(key.substring("rule.".length())), props.getProperty(key));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("rule keys must be rule.<number>, got " + key);
+                }
+            } else if (!key.equals("id")) {
+                throw new IllegalArgumentException("unknown metric filter property " + key);
+            }
+        }
+        MetricFilter metricFilter = new MetricFilter(props.getProperty("id", "rules"));
+        for (Map.Entry<Long, String> rule : rules.entrySet()) {
+            try {
+                metricFilter.rule(rule.getValue());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("rule." + rule.getKey() + ": " + e.getMessage(), e);
+            }
+        }
+        return metricFilter;
+    }
+
+    /**
+     * Returns a metrics filter of the declarative rules in a properties file, see {@link #fromProperties(Properties)}.
+     *
+     * @param path the path of the properties file
+     * @return a metrics filter of the rules
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if a key or rule is not valid
+     */
+    public static MetricFilter fromFile(Path path) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            props.load(in);
+        }
+        return fromProperties(props);
+    }
+
     /**
      * Returns an unmodifiable list of {@link FilterCriteria} objects representing the current filter rules applied by this MetricFilter.
      *
@@ -201,6 +312,97 @@ public class MetricFilter {
         return Collections.unmodifiableList(filters);
     }
 
+    /**
+     * Tests a metric against the filter rules, the first rule that matches decides whether the metric is accepted.
+     * Metrics that match no rule are not accepted.
+     *
+     * <p>Rules are compiled on first use: consecutive name-prefix rules are evaluated together and decisions are
+     * cached per {@link MetricName} instance. The compiled form is discarded whenever a rule is added.</p>
+     *
+     * @param metricName the name of the metric to test
+     * @return true if the metric should be sent to Kpow's internal Kafka topic
+     */
+    public boolean isAccepted(MetricName metricName) {
+        CompiledMetricFilter evaluator = compiled;
+        if (evaluator == null) {
+            evaluator = compile();
+        }
+        return Boolean.TRUE.equals(evaluator.decide(metricName));
+    }
+
+    // compiled under the same lock that replaces the rules, so an evaluator of superseded rules is never published
+    private synchronized CompiledMetricFilter compile() {
+        if (compiled == null) {
+            compiled = new CompiledMetricFilter(filters);
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns a number that changes whenever the rules of this filter change, by adding a rule or by
+     * {@link #reload(MetricFilter)}. The agent rebuilds its index of accepted metrics when it changes.
+     *
+     * @return the generation of the rules
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Atomically replaces the rules and identifier of this filter with those of {@code source}, typically one loaded
+     * with {@link #fromFile(Path)}. A registry using this filter applies the new rules from its next observation,
+     * without being restarted.
+     *
+     * <p>The new rules are compiled before they are swapped in, so a metric is always tested against either every
+     * old rule or every new one. Invalid rules fail when {@code source} is loaded, leaving this filter unchanged.</p>
+     *
+     * @param source the filter whose rules replace this filter's
+     * @return this MetricFilter
+     */
+    public synchronized MetricFilter reload(MetricFilter source) {
+        if (source == null) {
+            throw new IllegalArgumentException("source must not be null");
+        }
+        List<FilterCriteria> next = new ArrayList<>(source.getFilters());
+        CompiledMetricFilter evaluator = new CompiledMetricFilter(next);
+        this.filters = next;
+        this.filterId = source.getFilterId();
+        this.compiled = evaluator;
+        this.generation++;
+        return this;
+    }
+
+    private synchronized MetricFilter addCriteria(FilterCriteria criteria) {
+        // copy on write, the rules a compile or getFilters() caller holds never change under it
+        List<FilterCriteria> next = new ArrayList<>(filters);
+        next.add(criteria);
+        this.filters = next;
+        this.compiled = null;
+        this.generation++;
+        return this;
+    }
+
+    /**
+     * Accepts or denies metrics with a declarative rule, for example
+     * {@code deny group=stream-state-metrics name=prefix:block-cache- tag.store=regex:orders-.*}.
+     *
+     * <p>A rule starts with {@code accept} or {@code deny}, followed by space separated conditions that must all hold
+     * for the rule to match. Each condition is {@code name=<matcher>}, {@code group=<matcher>} or
+     * {@code tag.<key>=<matcher>}, where the matcher is {@code exact:<value>} (or a bare value), {@code prefix:<value>},
+     * {@code regex:<pattern>} matching the whole value, or {@code *} for any value. A tag condition never matches a
+     * metric without the tag. A rule without conditions matches every metric.</p>
+     *
+     * <p>Consecutive rules are indexed by their exact metric group and name when compiled, so a long list of rules
+     * costs a few lookups per metric.</p>
+     *
+     * @param rule the rule
+     * @return an updated MetricFilter
+     * @throws IllegalArgumentException if the rule is not valid
+     */
+    public MetricFilter rule(String rule) {
+        return addCriteria(new FilterCriteria(MetricRule.parse(rule)));
+    }
+
     /**
      * Accepts all metrics.
      *
@@ -214,8 +416,7 @@ public class MetricFilter {
             acceptPredicate,
             FilterType.ACCEPT
         );
-        this.filters.add(criteria);
-        return this;
+        return addCriteria(criteria);
     }
 
     /**
@@ -229,8 +430,7 @@ public class MetricFilter {
             acceptFilter,
             FilterType.ACCEPT
         );
-        this.filters.add(criteria);
-        return this;
+        return addCriteria(criteria);
     }
 
     /**
@@ -246,8 +446,7 @@ public class MetricFilter {
             denyFilter,
             FilterType.DENY
         );
-        this.filters.add(criteria);
-        return this;
+        return addCriteria(criteria);
     }
 
     /**
@@ -261,8 +460,7 @@ public class MetricFilter {
             denyFilter,
             FilterType.DENY
         );
-        this.filters.add(criteria);
-        return this;
+        return addCriteria(criteria);
     }
 
     /**
@@ -277,10 +475,10 @@ public class MetricFilter {
         };
         FilterCriteria criteria = new FilterCriteria(
             acceptFilter,
-            FilterType.ACCEPT
+            FilterType.ACCEPT,
+            prefix
         );
-        this.filters.add(criteria);
-        return this;
+        return addCriteria(criteria);
     }
 
     /**
@@ -295,9 +493,9 @@ public class MetricFilter {
         };
         FilterCriteria criteria = new FilterCriteria(
             denyFilter,
-            FilterType.DENY
+            FilterType.DENY,
+            prefix
         );
-        this.filters.add(criteria);
-        return this;
+        return addCriteria(criteria);
     }
 }
@@ -0,0 +1,175 @@
+package io.factorhouse.kpow;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.kafka.common.MetricName;
+
+/**
+ * A declarative {@link MetricFilter} rule, parsed from a single line such as
+ * {@code deny group=stream-state-metrics name=prefix:block-cache- tag.store=regex:orders-.*}.
+ *
+ * <p>A rule starts with {@code accept} or {@code deny}, followed by any number of conditions that must all hold for
+ * the rule to match. A condition is {@code name=}, {@code group=} or {@code tag.<key>=} followed by a matcher:</p>
+ * <ul>
+ *   <li>{@code exact:<value>}, or a bare {@code <value>} - the value equals {@code <value>}.</li>
+ *   <li>{@code prefix:<value>} - the value starts with {@code <value>}.</li>
+ *   <li>{@code regex:<pattern>} - the whole value matches {@code <pattern>}.</li>
+ *   <li>{@code *} - any value, for tags the metric only has to carry the tag.</li>
+ * </ul>
+ * <p>A rule without conditions matches every metric.</p>
+ */
+final class MetricRule {
+
+    private enum Kind {
+        EXACT,
+        PREFIX,
+        REGEX,
+        ANY,
+    }
+
+    private static final class Matcher {
+        private final Kind kind;
+        private final String value;
+        private final Pattern pattern;
+
+        private Matcher(Kind kind, String value, Pattern pattern) {
+            this.kind = kind;
+            this.value = value;
+            this.pattern = pattern;
+        }
+
+        static Matcher parse(String matcher) {
+            if (matcher.equals("*")) {
+                return new Matcher(Kind.ANY, null, null);
+            } else if (matcher.startsWith("prefix:")) {
+                return new Matcher(Kind.PREFIX, matcher.substring("prefix:".length()), null);
+            } else if (matcher.startsWith("regex:")) {
+                String regex = matcher.substring("regex:".length());
+                try {
+                    return new Matcher(Kind.REGEX, regex, Pattern.compile(regex));
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("invalid regex '" + regex + "': " + e.getDescription());
+                }
+            } else if (matcher.startsWith("exact:")) {
+                return new Matcher(Kind.EXACT, matcher.substring("exact:".length()), null);
+            }
+            return new Matcher(Kind.EXACT, matcher, null);
+        }
+
+        boolean matches(String candidate) {
+            if (candidate == null) {
+                return false;
+            }
+            switch (kind) {
+                case EXACT:
+                    return value.equals(candidate);
+                case PREFIX:
+                    return candidate.startsWith(value);
+                case REGEX:
+                    return pattern.matcher(candidate).matches();
+                default:
+                    return true;
+            }
+        }
+
+        String exact() {
+            return kind == Kind.EXACT ? value : null;
+        }
+    }
+
+    private final String source;
+    private final MetricFilter.FilterType filterType;
+    private final Matcher name;
+    private final Matcher group;
+    private final Map<String, Matcher> tags;
+
+    private MetricRule(String source, MetricFilter.FilterType filterType, Matcher name, Matcher group, Map<String, Matcher> tags) {
+        this.source = source;
+        this.filterType = filterType;
+        this.name = name;
+        this.group = group;
+        this.tags = tags;
+    }
+
+    /**
+     * Parses a rule.
+     *
+     * @throws IllegalArgumentException if the rule is not valid
+     */
+    static MetricRule parse(String rule) {
+        if (rule == null || rule.trim().isEmpty()) {
+            throw new IllegalArgumentException("rule must not be empty");
+        }
+        String[] parts = rule.trim().split("\\s+");
+        MetricFilter.FilterType filterType;
+        if (parts[0].equalsIgnoreCase("accept")) {
+            filterType = MetricFilter.FilterType.ACCEPT;
+        } else if (parts[0].equalsIgnoreCase("deny")) {
+            filterType = MetricFilter.FilterType.DENY;
+        } else {
+            throw new IllegalArgumentException("rule must start with accept or deny, got '" + rule + "'");
+        }
+        Matcher name = null;
+        Matcher group = null;
+        Map<String, Matcher> tags = new LinkedHashMap<>();
+        for (int i = 1; i < parts.length; i++) {
+            int separator = parts[i].indexOf('=');
+            if (separator < 1 || separator == parts[i].length() - 1) {
+                throw new IllegalArgumentException("condition must be <field>=<matcher>, got '" + parts[i] + "' in rule '" + rule + "'");
+            }
+            String field = parts[i].substring(0, separator);
+            Matcher matcher = Matcher.parse(parts[i].substring(separator + 1));
+            if (field.equals("name") && name == null) {
+                name = matcher;
+            } else if (field.equals("group") && group == null) {
+                group = matcher;
+            } else if (field.startsWith("tag.") && field.length() > 4 && !tags.containsKey(field.substring(4))) {
+                tags.put(field.substring(4), matcher);
+            } else {
+                throw new IllegalArgumentException("unknown or repeated field '" + field + "' in rule '" + rule + "'");
+            }
+        }
+        return new MetricRule(rule.trim(), filterType, name, group, Collections.unmodifiableMap(tags));
+    }
+
+    MetricFilter.FilterType getFilterType() {
+        return filterType;
+    }
+
+    /**
+     * The metric name this rule only matches, or null when it matches more than one name.
+     */
+    String exactName() {
+        return name == null ? null : name.exact();
+    }
+
+    /**
+     * The metric group this rule only matches, or null when it matches more than one group.
+     */
+    String exactGroup() {
+        return group == null ? null : group.exact();
+    }
+
+    boolean test(MetricName metricName) {
+        if (name != null && !name.matches(metricName.name())) {
+            return false;
+        }
+        if (group != null && !group.matches(metricName.group())) {
+            return false;
+        }
+        for (Map.Entry<String, Matcher> tag : tags.entrySet()) {
+            if (!tag.getValue().matches(metricName.tags().get(tag.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
@@ -3,13 +3,22 @@ package io.factorhouse.kpow;
 import clojure.java.api.Clojure;
 import clojure.lang.IFn;
 import io.factorhouse.kpow.key.KeyStrategy;
+import io.factorhouse.kpow.sink.TelemetrySink;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.common.serialization.Serializer;
 import org.apache.kafka.streams.KafkaStreams;
 import org.apache.kafka.streams.Topology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * The {@code StreamsRegistry} class serves as a centralized registry for one or more Kafka Streams applications.
@@ -74,7 +83,39 @@ public class StreamsRegistry implements AutoCloseable {
         }
     }
 
-    private final Object agent;
+    /**
+     * The Clojure functions backing the registry, resolved once on first use. Initializing this holder loads the
+     * agent namespaces, which ship AOT compiled so no Clojure source is compiled at runtime.
+     */
+    private static final class Agent {
+        static final IFn INIT_REGISTRY;
+        static final IFn INIT_SINK_REGISTRY;
+        static final IFn REGISTER;
+        static final IFn UNREGISTER;
+        static final IFn CLOSE_REGISTRY;
+        static final IFn ACQUIRE_PRODUCER;
+        static final IFn TRANSIT_JSON_SERIALIZER;
+        static final IFn TRANSIT_MSGPACK_SERIALIZER;
+
+        static {
+            IFn require = Clojure.var("clojure.core", "require");
+            require.invoke(Clojure.read("io.factorhouse.kpow.agent"));
+            require.invoke(Clojure.read("io.factorhouse.kpow.serdes"));
+            INIT_REGISTRY = Clojure.var("io.factorhouse.kpow.agent", "init-registry");
+            INIT_SINK_REGISTRY = Clojure.var("io.factorhouse.kpow.agent", "init-sink-registry");
+            REGISTER = Clojure.var("io.factorhouse.kpow.agent", "register");
+            UNREGISTER = Clojure.var("io.factorhouse.kpow.agent", "unregister");
+            CLOSE_REGISTRY = Clojure.var("io.factorhouse.kpow.agent", "close-registry");
+            ACQUIRE_PRODUCER = Clojure.var("io.factorhouse.kpow.transport", "acquire-producer");
+            TRANSIT_JSON_SERIALIZER = Clojure.var("io.factorhouse.kpow.serdes", "transit-json-serializer");
+            TRANSIT_MSGPACK_SERIALIZER = Clojure.var("io.factorhouse.kpow.serdes", "transit-msgpack-serializer");
+        }
+    }
+
+    private final boolean backgroundInit;
+    private final CompletableFuture<Object> agent;
+    // the tail of register/unregister/close calls applied in order once a background initialization completes
+    private CompletableFuture<Object> operations;
 
     /**
      * Filters a {@link Properties} object to retain only allowed Kafka properties.
@@ -113,6 +154,8 @@ public class StreamsRegistry implements AutoCloseable {
         allowedKeys.add("sasl.kerberos.service.name");
         allowedKeys.add("security.protocol");
         allowedKeys.add("bootstrap.servers");
+        allowedKeys.add("batch.size");
+        allowedKeys.add("max.request.size");
 
         Properties nextProps = new Properties();
         for (String key : allowedKeys) {
@@ -172,16 +215,108 @@ public class StreamsRegistry implements AutoCloseable {
      * @throws IllegalArgumentException if the provided {@code props} are invalid or incomplete.
      */
     public StreamsRegistry(Properties props, MetricFilter metricsFilter, TargetProduct targetProduct) {
-        IFn require = Clojure.var("clojure.core", "require");
-        require.invoke(Clojure.read("io.factorhouse.kpow.agent"));
-        IFn agentFn = Clojure.var("io.factorhouse.kpow.agent", "init-registry");
-        require.invoke(Clojure.read("io.factorhouse.kpow.serdes"));
-        IFn serdesFn = Clojure.var("io.factorhouse.kpow.serdes", "transit-json-serializer");
-        Serializer keySerializer = (Serializer) serdesFn.invoke();
-        Serializer valSerializer = (Serializer) serdesFn.invoke();
-        Properties producerProps = filterProperties(props);
-        KafkaProducer producer = new KafkaProducer<>(producerProps, keySerializer, valSerializer);
-        agent = agentFn.invoke(producer, metricsFilter, targetProduct.getInternalTopic());
+        this(props, metricsFilter, targetProduct, new StreamsRegistryConfig());
+    }
+
+    /**
+     * Constructs a {@code StreamsRegistry} instance using the specified Kafka properties, metrics filter and
+     * {@link StreamsRegistryConfig}.
+     *
+     * <p><b>Important:</b> The Kafka producer properties provided in {@code props} must match the connection
+     * details of Kpow's primary cluster, where Kpow's internal topic resides.</p>
+     *
+     * @param props         the {@link Properties} object containing Kafka configuration.
+     *                      Must include essential properties like {@code bootstrap.servers}.
+     * @param metricsFilter the {@link MetricFilter} to customize which metrics are reported.
+     *                      Use {@link MetricFilter#defaultMetricFilter()} for default behavior.
+     * @param targetProduct the {@link TargetProduct} specifies which Factor House product should receive the agent's metrics.
+     * @param config        the {@link StreamsRegistryConfig} tuning how the agent observes and sends telemetry.
+     * @throws IllegalArgumentException if the provided {@code props} are invalid or incomplete.
+     */
+    public StreamsRegistry(Properties props, MetricFilter metricsFilter, TargetProduct targetProduct, StreamsRegistryConfig config) {
+        this(config, kafkaInit(filterProperties(props), metricsFilter, targetProduct.getInternalTopic(), config));
+    }
+
+    /**
+     * Constructs a {@code StreamsRegistry} instance that writes telemetry to a {@link TelemetrySink} instead of
+     * Kpow's internal Kafka topic, no Kafka producer is created.
+     *
+     * <p>Records are encoded exactly as they would be produced to the target product's internal topic. A sink set
+     * with {@link StreamsRegistryConfig#sink(TelemetrySink)} is written to as well. The sinks are closed when the
+     * registry is closed.</p>
+     *
+     * @param sink          the {@link TelemetrySink} receiving every telemetry record.
+     * @param metricsFilter the {@link MetricFilter} to customize which metrics are reported.
+     *                      Use {@link MetricFilter#defaultMetricFilter()} for default behavior.
+     * @param targetProduct the {@link TargetProduct} whose internal topic records are addressed to.
+     * @param config        the {@link StreamsRegistryConfig} tuning how the agent observes and sends telemetry.
+     * @throws IllegalArgumentException if {@code sink} is {@code null}.
+     */
+    public StreamsRegistry(TelemetrySink sink, MetricFilter metricsFilter, TargetProduct targetProduct, StreamsRegistryConfig config) {
+        this(config, sinkInit(sink, metricsFilter, targetProduct.getInternalTopic(), config));
+    }
+
+    private StreamsRegistry(StreamsRegistryConfig config, Supplier<Object> init) {
+        backgroundInit = config.isBackgroundInit();
+        if (backgroundInit) {
+            agent = CompletableFuture.supplyAsync(init, StreamsRegistry::startInitThread);
+            agent.whenComplete((a, e) -> {
+                if (e != null) {
+                    logger().error("Kpow: failed to start streams registry in the background", e);
+                }
+            });
+        } else {
+            agent = CompletableFuture.completedFuture(init.get());
+        }
+        operations = agent;
+    }
+
+    private static Supplier<Object> kafkaInit(Properties producerProps, MetricFilter metricsFilter, String snapshotTopic, StreamsRegistryConfig config) {
+        return () -> initRegistry(producerProps, metricsFilter, snapshotTopic, config);
+    }
+
+    private static Supplier<Object> sinkInit(TelemetrySink sink, MetricFilter metricsFilter, String snapshotTopic, StreamsRegistryConfig config) {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink must not be null");
+        }
+        return () -> Agent.INIT_SINK_REGISTRY.invoke(sink, metricsFilter, snapshotTopic, config);
+    }
+
+    private static Object initRegistry(Properties producerProps, MetricFilter metricsFilter, String snapshotTopic, StreamsRegistryConfig config) {
+        IFn valSerdesFn = config.getWireFormat() == StreamsRegistryConfig.WireFormat.TRANSIT_MSGPACK
+            ? Agent.TRANSIT_MSGPACK_SERIALIZER
+            : Agent.TRANSIT_JSON_SERIALIZER;
+        Supplier<Producer> createProducer = () -> {
+            Serializer keySerializer = (Serializer) Agent.TRANSIT_JSON_SERIALIZER.invoke();
+            Serializer valSerializer = (Serializer) valSerdesFn.invoke();
+            return new KafkaProducer<>(producerProps, keySerializer, valSerializer);
+        };
+        Object producer = config.isSharedTransport()
+            ? Agent.ACQUIRE_PRODUCER.invoke(producerProps, config.getWireFormat(), createProducer)
+            : createProducer.get();
+        return Agent.INIT_REGISTRY.invoke(producer, metricsFilter, snapshotTopic, config, producerProps);
+    }
+
+    // resolved on first use, initializing the logging backend is a noticeable part of a cold start
+    private static Logger logger() {
+        return LoggerFactory.getLogger(StreamsRegistry.class);
+    }
+
+    private static void startInitThread(Runnable init) {
+        Thread thread = new Thread(init, "kpow-streams-agent-init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized void enqueue(Consumer<Object> operation) {
+        operations = operations.thenApply(a -> {
+            try {
+                operation.accept(a);
+            } catch (RuntimeException e) {
+                logger().warn("Kpow: streams registry operation failed", e);
+            }
+            return a;
+        });
     }
 
     /**
@@ -215,6 +350,9 @@ public class StreamsRegistry implements AutoCloseable {
      * in a {@link StreamsAgent}. This identifier can later be used to unregister the application
      * when it is no longer needed.</p>
      *
+     * <p>With {@link StreamsRegistryConfig#backgroundInit(boolean)} this method returns immediately, and the
+     * application is registered as soon as the background initialization completes.</p>
+     *
      * @param streams     the {@link KafkaStreams} instance representing the application to be registered.
      * @param topology    the {@link Topology} of the Kafka Streams application, which defines its processing logic.
      * @param keyStrategy the {@link KeyStrategy} defining the keying mechanism for metrics data written
@@ -224,10 +362,12 @@ public class StreamsRegistry implements AutoCloseable {
      * @see #unregister(StreamsAgent)
      */
     public StreamsAgent register(KafkaStreams streams, Topology topology, KeyStrategy keyStrategy) {
-        IFn require = Clojure.var("clojure.core", "require");
-        require.invoke(Clojure.read("io.factorhouse.kpow.agent"));
-        IFn registerFn = Clojure.var("io.factorhouse.kpow.agent", "register");
-        String id = (String) registerFn.invoke(agent, streams, topology, keyStrategy);
+        if (backgroundInit) {
+            String id = UUID.randomUUID().toString();
+            enqueue(a -> Agent.REGISTER.invoke(a, streams, topology, keyStrategy, id));
+            return new StreamsAgent(id);
+        }
+        String id = (String) Agent.REGISTER.invoke(agent.join(), streams, topology, keyStrategy);
         if (id != null) {
             return new StreamsAgent(id);
         } else {
@@ -258,18 +398,29 @@ public class StreamsRegistry implements AutoCloseable {
      */
     public void unregister(StreamsAgent streamsAgent) {
         if (streamsAgent != null) {
-            IFn require = Clojure.var("clojure.core", "require");
-            require.invoke(Clojure.read("io.factorhouse.kpow.agent"));
-            IFn unregisterFn = Clojure.var("io.factorhouse.kpow.agent", "unregister");
-            unregisterFn.invoke(agent, streamsAgent.getId());
+            if (backgroundInit) {
+                enqueue(a -> Agent.UNREGISTER.invoke(a, streamsAgent.getId()));
+            } else {
+                Agent.UNREGISTER.invoke(agent.join(), streamsAgent.getId());
+            }
         }
     }
 
+    /**
+     * Stops telemetry for all registered Kafka Streams applications. With {@link StreamsRegistryConfig#backgroundInit(boolean)}
+     * this waits for a background initialization and any pending registrations to complete first.
+     */
     @Override
     public void close() {
-        IFn require = Clojure.var("clojure.core", "require");
-        require.invoke(Clojure.read("io.factorhouse.kpow.agent"));
-        IFn closeFn = Clojure.var("io.factorhouse.kpow.agent", "close-registry");
-        closeFn.invoke(agent);
+        if (backgroundInit) {
+            enqueue(Agent.CLOSE_REGISTRY::invoke);
+            try {
+                operations.join();
+            } catch (CompletionException e) {
+                // the failed background initialization has already been logged, there is nothing to close
+            }
+        } else {
+            Agent.CLOSE_REGISTRY.invoke(agent.join());
+        }
     }
 }
@@ -0,0 +1,783 @@
+package io.factorhouse.kpow;
+
+import io.factorhouse.kpow.sink.TelemetrySink;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Tuning options for how a {@link StreamsRegistry} observes registered Kafka Streams applications and
+ * produces telemetry to Kpow's internal Kafka topic.
+ *
+ * <p>Options are configured by chaining methods on a new instance, every option has a sensible default:</p>
+ *
+ * <pre>{@code
+ * StreamsRegistryConfig config = new StreamsRegistryConfig()
+ *     .sendMode(StreamsRegistryConfig.SendMode.PIPELINED)
+ *     .parallelism(2);
+ *
+ * StreamsRegistry registry = new StreamsRegistry(props, MetricFilter.defaultMetricFilter(), TargetProduct.KPOW, config);
+ * }</pre>
+ */
+public class StreamsRegistryConfig {
+
+    /**
+     * Specifies how telemetry records are handed to the Kafka producer.
+     */
+    public enum SendMode {
+        /**
+         * Waits for the broker to acknowledge each record before sending the next one.
+         */
+        BLOCKING,
+
+        /**
+         * Queues every record of an observation asynchronously and waits once for all acknowledgements.
+         */
+        PIPELINED,
+
+        /**
+         * Hands every record to a bounded in-memory spool that is drained to the producer on its own thread, so
+         * observing an application never waits on the brokers. See {@link #spoolCapacityBytes(long)}.
+         */
+        SPOOLED,
+    }
+
+    /**
+     * Specifies which records a full spool discards to make room for a new one.
+     */
+    public enum DropPolicy {
+        /**
+         * Discards the oldest spooled record, favouring fresh telemetry.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discards the new record, keeping what is already spooled.
+         */
+        DROP_NEWEST,
+    }
+
+    /**
+     * Specifies how the values of metrics rolled up into one series are combined.
+     */
+    public enum RollupReducer {
+        /**
+         * Chooses by metric name: {@code -max} metrics take the max, {@code -min} metrics the min, {@code -avg} and
+         * {@code -ratio} metrics the mean, and every other metric (rates, totals, counts and sizes) the sum.
+         */
+        AUTO,
+
+        /**
+         * The sum of the rolled up values.
+         */
+        SUM,
+
+        /**
+         * The largest of the rolled up values.
+         */
+        MAX,
+
+        /**
+         * The smallest of the rolled up values.
+         */
+        MIN,
+
+        /**
+         * The mean of the rolled up values.
+         */
+        AVG,
+    }
+
+    /**
+     * Specifies which series are kept when a registration has more than {@link #maxSeries(int)} metrics to send.
+     */
+    public enum SeriesRanking {
+        /**
+         * The series with the largest absolute values.
+         */
+        VALUE,
+
+        /**
+         * The series whose values have changed the most recently, weighted by the size of each change.
+         */
+        CHANGE,
+
+        /**
+         * The series whose values changed most recently, regardless of by how much.
+         */
+        RECENCY,
+    }
+
+    /**
+     * Specifies the encoding of telemetry record values. Record keys are always Transit JSON.
+     */
+    public enum WireFormat {
+        /**
+         * Transit JSON, understood by every Kpow version.
+         */
+        TRANSIT_JSON,
+
+        /**
+         * Transit msgpack, a smaller binary encoding. Requires a Kpow version that reads the record's
+         * {@code content-type} header.
+         */
+        TRANSIT_MSGPACK,
+    }
+
+    private SendMode sendMode = SendMode.BLOCKING;
+    private WireFormat wireFormat = WireFormat.TRANSIT_JSON;
+    private int parallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private long intervalMs = 60000;
+    private long sampleIntervalMs = 0;
+    private long topologyIntervalMs = 0;
+    private int deltaKeyframeCycles = 0;
+    private double deltaEpsilon = 0.0;
+    private int targetRecordBytes = 0;
+    private boolean sharedTransport = false;
+    private boolean backgroundInit = false;
+    private long spoolCapacityBytes = 16 * 1024 * 1024;
+    private DropPolicy spoolDropPolicy = DropPolicy.DROP_OLDEST;
+    private Set<String> rollupTags = Collections.emptySet();
+    private RollupReducer rollupReducer = RollupReducer.AUTO;
+    private int maxSeries = 0;
+    private SeriesRanking seriesRanking = SeriesRanking.CHANGE;
+    private boolean stateChangeSnapshots = false;
+    private long stateChangeDebounceMs = 1000;
+    private boolean phaseSpreading = false;
+    private long jitterMs = 0;
+    private int topologyChunkBytes = 0;
+    private long storeLagIntervalMs = 0;
+    private TelemetrySink sink = null;
+
+    /**
+     * Creates a new StreamsRegistryConfig with default options.
+     */
+    public StreamsRegistryConfig() {}
+
+    /**
+     * Returns the configured {@link SendMode}.
+     *
+     * @return the send mode, {@link SendMode#BLOCKING} by default
+     */
+    public SendMode getSendMode() {
+        return sendMode;
+    }
+
+    /**
+     * Returns the configured {@link WireFormat}.
+     *
+     * @return the wire format, {@link WireFormat#TRANSIT_JSON} by default
+     */
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Returns the number of threads used to observe registered applications concurrently.
+     *
+     * @return the parallelism, the lesser of 4 and the number of available processors by default
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Returns how often telemetry is published for each registered application.
+     *
+     * @return the interval in milliseconds, 60000 by default
+     */
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /**
+     * Returns how often metric values are sampled between publications.
+     *
+     * @return the interval in milliseconds, 0 (a single sample per publication) by default
+     */
+    public long getSampleIntervalMs() {
+        return sampleIntervalMs;
+    }
+
+    /**
+     * Returns how often the full topology description is sent.
+     *
+     * @return the interval in milliseconds, 0 (send the full topology on every observation) by default
+     */
+    public long getTopologyIntervalMs() {
+        return topologyIntervalMs;
+    }
+
+    /**
+     * Returns how many cycles pass between full metrics keyframes in delta mode.
+     *
+     * @return the keyframe interval in cycles, 0 (delta mode disabled) by default
+     */
+    public int getDeltaKeyframeCycles() {
+        return deltaKeyframeCycles;
+    }
+
+    /**
+     * Returns the smallest change in a metric value that is published in delta mode.
+     *
+     * @return the epsilon, 0.0 (any change) by default
+     */
+    public double getDeltaEpsilon() {
+        return deltaEpsilon;
+    }
+
+    /**
+     * Returns the target encoded size of a metrics record.
+     *
+     * @return the target in bytes, 0 (derived from the producer's {@code batch.size}) by default
+     */
+    public int getTargetRecordBytes() {
+        return targetRecordBytes;
+    }
+
+    /**
+     * Returns whether the Kafka producer and scheduler are shared with other registries in the JVM.
+     *
+     * @return true when the shared transport is enabled, false by default
+     */
+    public boolean isSharedTransport() {
+        return sharedTransport;
+    }
+
+    /**
+     * Returns whether the registry initializes in the background.
+     *
+     * @return true when background initialization is enabled, false by default
+     */
+    public boolean isBackgroundInit() {
+        return backgroundInit;
+    }
+
+    /**
+     * Returns the encoded bytes of records the spool holds in {@link SendMode#SPOOLED} mode.
+     *
+     * @return the capacity in bytes, 16MB by default
+     */
+    public long getSpoolCapacityBytes() {
+        return spoolCapacityBytes;
+    }
+
+    /**
+     * Returns which records a full spool discards.
+     *
+     * @return the drop policy, {@link DropPolicy#DROP_OLDEST} by default
+     */
+    public DropPolicy getSpoolDropPolicy() {
+        return spoolDropPolicy;
+    }
+
+    /**
+     * Returns the tag keys collapsed when rolling up metrics.
+     *
+     * @return an unmodifiable set of tag keys, empty (rollups disabled) by default
+     */
+    public Set<String> getRollupTags() {
+        return rollupTags;
+    }
+
+    /**
+     * Returns how the values of rolled up metrics are combined.
+     *
+     * @return the reducer, {@link RollupReducer#AUTO} by default
+     */
+    public RollupReducer getRollupReducer() {
+        return rollupReducer;
+    }
+
+    /**
+     * Returns the maximum number of metrics sent per observation of a registered application.
+     *
+     * @return the limit, 0 (unlimited) by default
+     */
+    public int getMaxSeries() {
+        return maxSeries;
+    }
+
+    /**
+     * Returns which series are kept when a registration exceeds {@link #getMaxSeries()}.
+     *
+     * @return the ranking, {@link SeriesRanking#CHANGE} by default
+     */
+    public SeriesRanking getSeriesRanking() {
+        return seriesRanking;
+    }
+
+    /**
+     * Returns whether a snapshot is published as soon as a registered application changes state.
+     *
+     * @return true when state-change snapshots are enabled, false by default
+     */
+    public boolean isStateChangeSnapshots() {
+        return stateChangeSnapshots;
+    }
+
+    /**
+     * Returns the minimum time between state-change snapshots of one application.
+     *
+     * @return the debounce in milliseconds, 1000 by default
+     */
+    public long getStateChangeDebounceMs() {
+        return stateChangeDebounceMs;
+    }
+
+    /**
+     * Returns whether each registered application is observed at its own phase within the interval.
+     *
+     * @return true when phase spreading is enabled, false by default
+     */
+    public boolean isPhaseSpreading() {
+        return phaseSpreading;
+    }
+
+    /**
+     * Returns the upper bound of the random delay added to each observation.
+     *
+     * @return the jitter in milliseconds, 0 (no jitter) by default
+     */
+    public long getJitterMs() {
+        return jitterMs;
+    }
+
+    /**
+     * Returns the size of the chunks a full topology is sent in.
+     *
+     * @return the chunk size in bytes, 0 (the topology is sent whole in the snapshot record) by default
+     */
+    public int getTopologyChunkBytes() {
+        return topologyChunkBytes;
+    }
+
+    /**
+     * Returns how often the local store lags included in each snapshot are read.
+     *
+     * @return the interval in milliseconds, 0 (store lags are not sent) by default
+     */
+    public long getStoreLagIntervalMs() {
+        return storeLagIntervalMs;
+    }
+
+    /**
+     * Returns the sink every record is written to alongside Kafka.
+     *
+     * @return the {@link TelemetrySink}, {@code null} (no sink) by default
+     */
+    public TelemetrySink getSink() {
+        return sink;
+    }
+
+    /**
+     * Sets how telemetry records are handed to the Kafka producer.
+     *
+     * @param sendMode the {@link SendMode} to use
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig sendMode(SendMode sendMode) {
+        if (sendMode == null) {
+            throw new IllegalArgumentException("sendMode must not be null");
+        }
+        this.sendMode = sendMode;
+        return this;
+    }
+
+    /**
+     * Sets the encoding of telemetry record values.
+     *
+     * <p>Every record carries a {@code content-type} header of either {@code application/transit+json} or
+     * {@code application/transit+msgpack} so consumers can tell the two apart during a gradual rollout.</p>
+     *
+     * @param wireFormat the {@link WireFormat} to use
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig wireFormat(WireFormat wireFormat) {
+        if (wireFormat == null) {
+            throw new IllegalArgumentException("wireFormat must not be null");
+        }
+        this.wireFormat = wireFormat;
+        return this;
+    }
+
+    /**
+     * Sets the number of threads used to observe registered applications concurrently.
+     *
+     * @param parallelism the number of worker threads, must be positive
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive, got " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets how often telemetry is published for each registered application.
+     *
+     * @param intervalMs the interval in milliseconds, must be positive
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig intervalMs(long intervalMs) {
+        if (intervalMs < 1) {
+            throw new IllegalArgumentException("intervalMs must be positive, got " + intervalMs);
+        }
+        this.intervalMs = intervalMs;
+        return this;
+    }
+
+    /**
+     * Enables sub-interval sampling, where metric values are read every {@code sampleIntervalMs} and folded into
+     * per-metric min, max and mean aggregates that are published once per interval.
+     *
+     * <p>Short spikes between publications are captured without sending any more records: each published metric
+     * carries the last sampled {@code :value} as before, plus the {@code :min}, {@code :max} and {@code :mean}
+     * of every sample taken since it was last published and the number of {@code :samples}.</p>
+     *
+     * @param sampleIntervalMs the interval in milliseconds, 0 to sample once per publication
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig sampleIntervalMs(long sampleIntervalMs) {
+        if (sampleIntervalMs < 0) {
+            throw new IllegalArgumentException("sampleIntervalMs must not be negative, got " + sampleIntervalMs);
+        }
+        this.sampleIntervalMs = sampleIntervalMs;
+        return this;
+    }
+
+    /**
+     * Sets how often the full topology description is sent.
+     *
+     * <p>A topology rarely changes once a Kafka Streams application has started. With a positive interval the
+     * full description is sent once per interval, and snapshots in between carry only the state and a stable
+     * {@code :topology/fingerprint} of the topology. Requires a Kpow version that resolves topologies by
+     * fingerprint.</p>
+     *
+     * @param topologyIntervalMs the interval in milliseconds, 0 to send the full topology on every observation
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig topologyIntervalMs(long topologyIntervalMs) {
+        if (topologyIntervalMs < 0) {
+            throw new IllegalArgumentException("topologyIntervalMs must not be negative, got " + topologyIntervalMs);
+        }
+        this.topologyIntervalMs = topologyIntervalMs;
+        return this;
+    }
+
+    /**
+     * Enables delta-encoded metrics, where each observation only sends the metrics whose value has changed since
+     * it was last published.
+     *
+     * <p>A keyframe containing every metric is sent on the first observation, then once every
+     * {@code keyframeCycles} observations, and after any failed send. Every metrics record and plan carries a
+     * {@code :metrics/seq} sequence number and {@code :metrics/keyframe?} flag so a consumer can detect gaps.
+     * Requires a Kpow version that understands delta-encoded metrics.</p>
+     *
+     * @param keyframeCycles the number of observations between keyframes, 0 to disable delta mode
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig deltaKeyframeCycles(int keyframeCycles) {
+        if (keyframeCycles < 0) {
+            throw new IllegalArgumentException("deltaKeyframeCycles must not be negative, got " + keyframeCycles);
+        }
+        this.deltaKeyframeCycles = keyframeCycles;
+        return this;
+    }
+
+    /**
+     * Sets the smallest absolute change in a metric value that is published in delta mode.
+     *
+     * @param epsilon the minimum change, values that move by this much or less are not re-sent until the next keyframe
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig deltaEpsilon(double epsilon) {
+        if (epsilon < 0 || Double.isNaN(epsilon)) {
+            throw new IllegalArgumentException("deltaEpsilon must not be negative, got " + epsilon);
+        }
+        this.deltaEpsilon = epsilon;
+        return this;
+    }
+
+    /**
+     * Sets the target encoded size of a metrics record.
+     *
+     * <p>Metrics are packed into as few records as fit the target, using an estimate of each metric's encoded
+     * size that is tuned from the serialized sizes the producer reports. By default the target is the producer's
+     * {@code batch.size}. It is always capped at 90% of the producer's {@code max.request.size}, and a single metric
+     * too large to be sent within that limit is dropped and counted in the observation's metrics summary.</p>
+     *
+     * @param targetRecordBytes the target in bytes, 0 to derive it from the producer's {@code batch.size}
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig targetRecordBytes(int targetRecordBytes) {
+        if (targetRecordBytes < 0) {
+            throw new IllegalArgumentException("targetRecordBytes must not be negative, got " + targetRecordBytes);
+        }
+        this.targetRecordBytes = targetRecordBytes;
+        return this;
+    }
+
+    /**
+     * Shares the Kafka producer and scheduler with every other registry in the JVM that enables the shared transport.
+     *
+     * <p>Registries whose filtered producer properties (see {@link StreamsRegistry#filterProperties(java.util.Properties)})
+     * and wire format are equal use one producer, and all of them share one scheduler thread. Shared resources are
+     * reference counted: closing a registry releases its references, and the last registry to close a producer
+     * or the scheduler shuts it down. Useful when one JVM hosts a registry per tenant.</p>
+     *
+     * @param sharedTransport true to share the producer and scheduler
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig sharedTransport(boolean sharedTransport) {
+        this.sharedTransport = sharedTransport;
+        return this;
+    }
+
+    /**
+     * Initializes the registry on a background thread so the {@link StreamsRegistry} constructor returns immediately.
+     *
+     * <p>Loading the agent, creating the producer and starting the scheduler then overlap with the rest of the
+     * application's startup. {@link StreamsRegistry#register} and {@link StreamsRegistry#unregister} also return
+     * immediately and are applied in order once initialization completes, {@link StreamsRegistry#close()} waits for
+     * them. A failed background initialization is logged rather than thrown from the constructor.</p>
+     *
+     * @param backgroundInit true to initialize in the background
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig backgroundInit(boolean backgroundInit) {
+        this.backgroundInit = backgroundInit;
+        return this;
+    }
+
+    /**
+     * Sets the encoded bytes of records the spool holds in {@link SendMode#SPOOLED} mode.
+     *
+     * <p>Records are encoded as they are spooled, so the capacity bounds the memory held by the spool however large
+     * its topology and metrics records are. Spooled records are drained to the producer in order on a dedicated thread. While the brokers are
+     * unavailable, records that fail with a retriable error are returned to the head of the spool and draining
+     * backs off, from 1s doubling up to 30s, until a send succeeds. Once the spool is full, records are discarded
+     * according to the {@link #spoolDropPolicy(DropPolicy)} and counted in the {@code spool-dropped-total} agent
+     * metric. Records still spooled when the registry is closed are discarded.</p>
+     *
+     * @param spoolCapacityBytes the capacity in bytes, must be positive
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig spoolCapacityBytes(long spoolCapacityBytes) {
+        if (spoolCapacityBytes < 1) {
+            throw new IllegalArgumentException("spoolCapacityBytes must be positive, got " + spoolCapacityBytes);
+        }
+        this.spoolCapacityBytes = spoolCapacityBytes;
+        return this;
+    }
+
+    /**
+     * Sets which records a full spool discards to make room for a new one.
+     *
+     * @param spoolDropPolicy the {@link DropPolicy} to use
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig spoolDropPolicy(DropPolicy spoolDropPolicy) {
+        if (spoolDropPolicy == null) {
+            throw new IllegalArgumentException("spoolDropPolicy must not be null");
+        }
+        this.spoolDropPolicy = spoolDropPolicy;
+        return this;
+    }
+
+    /**
+     * Rolls up metrics that differ only by the given tag keys into a single series.
+     *
+     * <p>State store metrics are reported per task, so an application with many partitions sends a series for every
+     * task of every store. Collapsing {@code task-id} and {@code thread-id} sends one series per store instead, keeping
+     * per-store visibility while cutting the number of metrics sent by the number of tasks. Metrics without any of the
+     * tags are sent unchanged. Each rolled up metric carries the {@code :rollup} reducer applied and the number of
+     * {@code :members} whose numeric values it combined.</p>
+     *
+     * @param tagKeys the tag keys to collapse, none to disable rollups
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig rollupTags(String... tagKeys) {
+        if (tagKeys == null || Arrays.asList(tagKeys).contains(null)) {
+            throw new IllegalArgumentException("rollupTags must not be null");
+        }
+        this.rollupTags = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(tagKeys)));
+        return this;
+    }
+
+    /**
+     * Sets how the values of metrics rolled up by {@link #rollupTags(String...)} are combined.
+     *
+     * @param rollupReducer the {@link RollupReducer} to use
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig rollupReducer(RollupReducer rollupReducer) {
+        if (rollupReducer == null) {
+            throw new IllegalArgumentException("rollupReducer must not be null");
+        }
+        this.rollupReducer = rollupReducer;
+        return this;
+    }
+
+    /**
+     * Limits the number of metrics sent per observation of each registered application.
+     *
+     * <p>An application that creates stores dynamically or runs many stream threads can suddenly report many more
+     * metrics than usual. With a limit, the highest ranked series by {@link #seriesRanking(SeriesRanking)} are
+     * selected in a single pass while metrics are sampled, and the number of metrics left out is reported as
+     * {@code :dropped} in the observation's metrics summary. The limit applies after any rollup.</p>
+     *
+     * @param maxSeries the maximum number of metrics, 0 for no limit
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig maxSeries(int maxSeries) {
+        if (maxSeries < 0) {
+            throw new IllegalArgumentException("maxSeries must not be negative, got " + maxSeries);
+        }
+        this.maxSeries = maxSeries;
+        return this;
+    }
+
+    /**
+     * Sets which series are kept when a registration exceeds {@link #maxSeries(int)}.
+     *
+     * @param seriesRanking the {@link SeriesRanking} to use
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig seriesRanking(SeriesRanking seriesRanking) {
+        if (seriesRanking == null) {
+            throw new IllegalArgumentException("seriesRanking must not be null");
+        }
+        this.seriesRanking = seriesRanking;
+        return this;
+    }
+
+    /**
+     * Publishes a lightweight snapshot as soon as a registered application changes state, e.g. to REBALANCING or
+     * ERROR, rather than waiting for the next observation.
+     *
+     * <p>A state-change snapshot carries the current state, the transitions since the last one and the
+     * {@code :topology/fingerprint} of the topology, metrics are still only sent once per interval. The first change
+     * after a quiet period is published immediately, later changes within {@link #stateChangeDebounceMs(long)} are
+     * coalesced into a single snapshot so a burst of rebalances produces a bounded number of records.</p>
+     *
+     * <p>An application registered before {@link org.apache.kafka.streams.KafkaStreams#start()} is watched through
+     * a state listener that also calls any listener already set on it. Set your own listener before registering, as
+     * setting one afterwards replaces the registry's. An application that has already started is watched by
+     * polling its state every {@link #stateChangeDebounceMs(long)} instead.</p>
+     *
+     * @param stateChangeSnapshots true to publish state-change snapshots
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig stateChangeSnapshots(boolean stateChangeSnapshots) {
+        this.stateChangeSnapshots = stateChangeSnapshots;
+        return this;
+    }
+
+    /**
+     * Sets the minimum time between state-change snapshots of one application.
+     *
+     * @param stateChangeDebounceMs the debounce in milliseconds, must be positive
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig stateChangeDebounceMs(long stateChangeDebounceMs) {
+        if (stateChangeDebounceMs < 1) {
+            throw new IllegalArgumentException("stateChangeDebounceMs must be positive, got " + stateChangeDebounceMs);
+        }
+        this.stateChangeDebounceMs = stateChangeDebounceMs;
+        return this;
+    }
+
+    /**
+     * Observes each registered application at its own phase within the interval instead of observing every
+     * application of the registry together.
+     *
+     * <p>The phase is derived from a hash of the application's agent id and aligned to the wall clock, so a fleet of
+     * registries started at the same moment spreads its telemetry across the whole interval rather than producing
+     * to the snapshot topic in the same second. An application's first observation happens at its first phase, at
+     * most one interval after it is registered. Each application then has its own cycle: a still running
+     * observation of one application never causes another's to be skipped.</p>
+     *
+     * @param phaseSpreading true to spread observations across the interval
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig phaseSpreading(boolean phaseSpreading) {
+        this.phaseSpreading = phaseSpreading;
+        return this;
+    }
+
+    /**
+     * Delays every observation by a random amount of up to {@code jitterMs}, on top of any phase.
+     *
+     * @param jitterMs the maximum jitter in milliseconds, 0 for none
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig jitterMs(long jitterMs) {
+        if (jitterMs < 0) {
+            throw new IllegalArgumentException("jitterMs must not be negative, got " + jitterMs);
+        }
+        this.jitterMs = jitterMs;
+        return this;
+    }
+
+    /**
+     * Sends each full topology as a sequence of chunk records of about {@code topologyChunkBytes} each, rather than
+     * whole inside the snapshot record.
+     *
+     * <p>Topologies with hundreds of sub-topologies can describe to more than the producer's {@code max.request.size}.
+     * With chunking the snapshot record carries a manifest of the topology's fingerprint, sub-topology and global
+     * store ids, node count and number of chunks, and is followed by chunk records each holding whole sub-topologies,
+     * global stores, or a slice of the nodes of a sub-topology too large for one chunk. The chunks of a topology
+     * are computed once and reused until the topology changes.</p>
+     *
+     * @param topologyChunkBytes the target chunk size in bytes, 0 to send the topology whole
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig topologyChunkBytes(int topologyChunkBytes) {
+        if (topologyChunkBytes < 0) {
+            throw new IllegalArgumentException("topologyChunkBytes must not be negative, got " + topologyChunkBytes);
+        }
+        this.topologyChunkBytes = topologyChunkBytes;
+        return this;
+    }
+
+    /**
+     * Includes the offset lag of every local store partition, active and standby, in each snapshot, read from
+     * {@link org.apache.kafka.streams.KafkaStreams#allLocalStorePartitionLags()} at most once per
+     * {@code storeLagIntervalMs}.
+     *
+     * <p>Store lags give the exact progress of restoration and standby replication, which the sampled restore
+     * metrics only approximate. Reading them looks up the end offsets of the changelog partitions with the
+     * application's own admin client, snapshots in between send the lags last read. Lags can only be read while the
+     * application is running or rebalancing.</p>
+     *
+     * @param storeLagIntervalMs the interval in milliseconds, 0 to not send store lags
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig storeLagIntervalMs(long storeLagIntervalMs) {
+        if (storeLagIntervalMs < 0) {
+            throw new IllegalArgumentException("storeLagIntervalMs must not be negative, got " + storeLagIntervalMs);
+        }
+        this.storeLagIntervalMs = storeLagIntervalMs;
+        return this;
+    }
+
+    /**
+     * Writes every telemetry record to {@code sink} before it is sent, for example a {@link
+     * io.factorhouse.kpow.sink.MappedFileSink} keeping a local record of the telemetry sent to Kpow.
+     *
+     * <p>Each record is encoded once, the sink is handed the bytes that are then sent to Kafka. A sink that fails to
+     * write is logged and never stops records reaching Kafka. The sink is closed when the registry is closed.</p>
+     *
+     * @param sink the {@link TelemetrySink} to write to, {@code null} for none
+     * @return an updated StreamsRegistryConfig
+     */
+    public StreamsRegistryConfig sink(TelemetrySink sink) {
+        this.sink = sink;
+        return this;
+    }
+}
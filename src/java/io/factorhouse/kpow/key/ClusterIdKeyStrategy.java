@@ -1,40 +1,100 @@
 package io.factorhouse.kpow.key;
 
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import org.apache.kafka.clients.admin.AdminClient;
-import org.apache.kafka.clients.admin.DescribeClusterResult;
 
 /**
  * A {@link KeyStrategy} implementation that uses the Kafka cluster ID as the primary identifier
  * for keying metrics data in Kpow's internal Kafka topic.
  * <p>This key strategy uses the cluster ID, obtained via an {@link org.apache.kafka.clients.admin.Admin#describeCluster()} call.</p>
- * <p>This AdminClient is created once during registry initialization and then closed.</p>
+ * <p>The cluster ID is resolved asynchronously and cached per set of bootstrap servers and security, SASL and SSL
+ * settings, so constructing this strategy never blocks on the brokers and every instance for the same connection
+ * shares a single resolution. A resolution that times out or fails with a retriable error is retried with backoff
+ * until it succeeds. Any other error, such as failed authentication or authorization, is logged and fails the
+ * resolution. Until the cluster ID is known, or when its resolution failed, {@link #getTaxon} behaves according to
+ * the {@link UnresolvedPolicy}.</p>
  * <p>This is the default and recommended keying strategy for Kpow, as it provides a robust way
  * to uniquely associate metrics data with a specific Kafka cluster.</p>
  */
 public class ClusterIdKeyStrategy implements KeyStrategy {
 
-    private final String clusterId;
+    /**
+     * Specifies how metrics data is keyed while the cluster ID is still being resolved, or once its resolution failed.
+     */
+    public enum UnresolvedPolicy {
+        /**
+         * No key is returned, telemetry is deferred until the cluster ID is known and is never sent when its
+         * resolution failed.
+         */
+        DEFER,
+
+        /**
+         * The provisional key of a {@link ClientIdKeyStrategy} is returned until the cluster ID is known.
+         */
+        PROVISIONAL,
+    }
+
+    private final CompletableFuture<String> clusterId;
+    private final UnresolvedPolicy unresolvedPolicy;
 
     /**
-     * Creates an instance of {@code ClusterIdKeyStrategy} using properties for AdminClient configuration.
+     * Creates an instance of {@code ClusterIdKeyStrategy} using properties for AdminClient configuration, deferring
+     * telemetry until the cluster ID has been resolved.
+     *
+     * <p>This constructor previously resolved the cluster ID before returning, throwing when the brokers could not
+     * be reached. The cluster ID is now resolved in the background and the checked exceptions, no longer thrown, are
+     * retained for source compatibility. While it resolves no telemetry is sent, and when its resolution fails with
+     * an error that is not retried, such as failed authentication, the failure is logged and no telemetry is sent by
+     * registrations using this instance. Use {@link UnresolvedPolicy#PROVISIONAL} to keep sending telemetry keyed by
+     * client id instead.</p>
      *
      * @param props Kafka connection properties used for the AdminClient.
-     * @throws InterruptedException if the current thread is interrupted while waiting.
-     * @throws ExecutionException   if an error occurred during cluster description due to a connection issue with the Kafka brokers.
+     * @throws InterruptedException never thrown.
+     * @throws ExecutionException   never thrown, connection issues with the Kafka brokers are retried in the background.
      */
     public ClusterIdKeyStrategy(Properties props)
         throws InterruptedException, ExecutionException {
-        try (AdminClient adminClient = AdminClient.create(props)) {
-            DescribeClusterResult describeClusterResult =
-                adminClient.describeCluster();
-            this.clusterId = describeClusterResult.clusterId().get();
+        this(props, UnresolvedPolicy.DEFER);
+    }
+
+    /**
+     * Creates an instance of {@code ClusterIdKeyStrategy} using properties for AdminClient configuration.
+     *
+     * @param props            Kafka connection properties used for the AdminClient.
+     * @param unresolvedPolicy the {@link UnresolvedPolicy} applied until the cluster ID has been resolved.
+     */
+    public ClusterIdKeyStrategy(Properties props, UnresolvedPolicy unresolvedPolicy) {
+        if (unresolvedPolicy == null) {
+            throw new IllegalArgumentException("unresolvedPolicy must not be null");
         }
+        this.clusterId = ClusterIdResolver.clusterId(props);
+        this.unresolvedPolicy = unresolvedPolicy;
     }
 
+    /**
+     * Returns the cluster ID once it has been resolved.
+     *
+     * @return a {@link CompletableFuture} that completes with the cluster ID, or exceptionally when its resolution
+     * failed with an error that is not retried.
+     */
+    public CompletableFuture<String> getClusterId() {
+        return clusterId.thenApply(id -> id);
+    }
+
+    /**
+     * Returns the key for metrics data, or {@code null} when the cluster ID is not known and the
+     * {@link UnresolvedPolicy} is {@link UnresolvedPolicy#DEFER}.
+     */
     @Override
     public Taxon getTaxon(String clientId, String applicationId) {
-        return new Taxon("cluster", clusterId, "streams-agent", clientId);
+        String id = clusterId.isCompletedExceptionally() ? null : clusterId.getNow(null);
+        if (id != null) {
+            return new Taxon("cluster", id, "streams-agent", clientId);
+        }
+        if (unresolvedPolicy == UnresolvedPolicy.PROVISIONAL) {
+            return new Taxon("streams", clientId, "streams-agent", null);
+        }
+        return null;
     }
 }
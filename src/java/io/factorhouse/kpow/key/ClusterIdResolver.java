@@ -0,0 +1,164 @@
+package io.factorhouse.kpow.key;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.AdminClientConfig;
+import org.apache.kafka.common.errors.RetriableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves and caches Kafka cluster ids, shared by every {@link ClusterIdKeyStrategy} in the JVM.
+ *
+ * <p>Each distinct connection, the bootstrap servers with any security, SASL and SSL settings, is resolved once,
+ * asynchronously, from a single daemon thread that never blocks on an attempt: each attempt's request completes on
+ * the admin client's own thread, or is abandoned by a timeout scheduled alongside it. An attempt that takes longer
+ * than {@link #ATTEMPT_TIMEOUT_MS} or fails with a retriable error is retried with exponential backoff until the cluster id is known. Any other error,
+ * such as failed authentication or authorization, fails the resolution: it is logged as an error, its future completes
+ * exceptionally and it is dropped from the cache so that a later instance tries again. Only one admin client exists
+ * per attempt, and it is closed as soon as the attempt completes.</p>
+ */
+final class ClusterIdResolver {
+
+    static final long ATTEMPT_TIMEOUT_MS = 10000;
+    static final long INITIAL_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 60000;
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterIdResolver.class);
+
+    private static final ConcurrentHashMap<Map<String, String>, CompletableFuture<String>> clusterIds = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "kpow-cluster-id-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ClusterIdResolver() {}
+
+    /**
+     * The bootstrap servers of a set of connection properties, trimmed and sorted.
+     */
+    static String bootstrapKey(Properties props) {
+        String servers = String.valueOf(props.getOrDefault(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, ""));
+        return Arrays.stream(servers.split(","))
+            .map(String::trim)
+            .filter(server -> !server.isEmpty())
+            .sorted()
+            .collect(Collectors.joining(","));
+    }
+
+    /**
+     * The cache key for a set of connection properties: the bootstrap servers, and every security, SASL and SSL
+     * setting, so that connections with different credentials never share a resolution.
+     */
+    static Map<String, String> cacheKey(Properties props) {
+        Map<String, String> key = new TreeMap<>();
+        key.put(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapKey(props));
+        for (String name : props.stringPropertyNames()) {
+            if (name.startsWith("security.") || name.startsWith("sasl.") || name.startsWith("ssl.")) {
+                key.put(name, props.getProperty(name));
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Returns the cluster id of the cluster at these connection properties, starting its resolution if no other
+     * instance has. The returned future completes once the cluster id is known, or exceptionally when an error that
+     * cannot be retried fails the resolution.
+     */
+    static CompletableFuture<String> clusterId(Properties props) {
+        return clusterIds.computeIfAbsent(cacheKey(props), key -> {
+            CompletableFuture<String> clusterId = new CompletableFuture<>();
+            Properties adminProps = new Properties();
+            adminProps.putAll(props);
+            scheduler.execute(() -> attempt(key, adminProps, clusterId, INITIAL_BACKOFF_MS));
+            return clusterId;
+        });
+    }
+
+    /**
+     * The error that ended an attempt, unwrapped from any future that carried it.
+     */
+    static Throwable cause(Throwable e) {
+        return (e instanceof ExecutionException || e instanceof CompletionException) && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * Timeouts and errors Kafka marks retriable are retried, anything else will fail again with the same settings.
+     */
+    static boolean isRetriable(Throwable e) {
+        Throwable cause = cause(e);
+        return cause instanceof TimeoutException || cause instanceof RetriableException;
+    }
+
+    /**
+     * Ends a resolution that will not be retried, dropping it from the cache so that a later instance tries again.
+     */
+    private static void fail(Map<String, String> key, CompletableFuture<String> clusterId, Throwable cause) {
+        clusterIds.remove(key, clusterId);
+        clusterId.completeExceptionally(cause);
+    }
+
+    private static void retryOrFail(Map<String, String> key, Properties props, CompletableFuture<String> clusterId, long backoffMs, Throwable e) {
+        String servers = key.get(AdminClientConfig.BOOTSTRAP_SERVERS_CONFIG);
+        if (isRetriable(e)) {
+            log.warn("Kpow: failed to resolve the cluster id for bootstrap servers {}, retrying in {}ms", servers, backoffMs, cause(e));
+            long nextBackoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            scheduler.schedule(() -> attempt(key, props, clusterId, nextBackoffMs), backoffMs, TimeUnit.MILLISECONDS);
+        } else {
+            log.error("Kpow: failed to resolve the cluster id for bootstrap servers {}, not retrying. Telemetry keyed by cluster id will not be sent until the connection settings are fixed", servers, cause(e));
+            fail(key, clusterId, cause(e));
+        }
+    }
+
+    /**
+     * Starts one attempt without waiting on it: the attempt ends when the describe cluster request completes or when
+     * its timeout fires, whichever is first, and that outcome is handled back on the resolver thread.
+     */
+    private static void attempt(Map<String, String> key, Properties props, CompletableFuture<String> clusterId, long backoffMs) {
+        AdminClient adminClient;
+        try {
+            adminClient = AdminClient.create(props);
+        } catch (Exception e) {
+            retryOrFail(key, props, clusterId, backoffMs, e);
+            return;
+        }
+        CompletableFuture<String> outcome = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = scheduler.schedule(
+            () -> outcome.completeExceptionally(new TimeoutException("no cluster id after " + ATTEMPT_TIMEOUT_MS + "ms")),
+            ATTEMPT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        adminClient.describeCluster().clusterId().whenComplete((id, error) -> {
+            if (error == null) {
+                outcome.complete(id);
+            } else {
+                outcome.completeExceptionally(error);
+            }
+        });
+        outcome.whenCompleteAsync((id, error) -> {
+            timeout.cancel(false);
+            // abandon an attempt that timed out rather than waiting on its pending request
+            adminClient.close(Duration.ZERO);
+            if (error == null) {
+                clusterId.complete(id);
+            } else {
+                retryOrFail(key, props, clusterId, backoffMs, error);
+            }
+        }, scheduler);
+    }
+}
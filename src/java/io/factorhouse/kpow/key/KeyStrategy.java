@@ -21,9 +21,12 @@ public interface KeyStrategy {
      * and organizing metrics data in Kpow's snapshots topic. This enables Kpow to align the metrics with
      * the correct Kafka Streams application in the UI.</p>
      *
+     * <p>A strategy that cannot key metrics data yet may return {@code null}, telemetry for the application is
+     * then deferred to the next observation.</p>
+     *
      * @param clientId   The client ID of the registered streams application.
      * @param applicationId The application ID of the registered Kafka streams application.
-     * @return The unique Taxon object representing the key.
+     * @return The unique Taxon object representing the key, or {@code null} to defer telemetry.
      */
     Taxon getTaxon(String clientId, String applicationId);
 }
@@ -0,0 +1,67 @@
+package io.factorhouse.kpow.serdes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An internal, reusable output buffer for the agent's Transit serializers.
+ *
+ * <p>Unlike {@link ByteArrayOutputStream#toByteArray()}, the encoded bytes can be copied out from an offset,
+ * allowing a serializer to drop a root value separator written by a reused JSON generator without a second
+ * copy.</p>
+ */
+public final class EncodeBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Creates a new buffer with the specified initial capacity.
+     *
+     * @param size the initial capacity in bytes
+     */
+    public EncodeBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Returns the byte at the specified index of the buffered content.
+     *
+     * @param index the index of the byte, must be less than {@link #size()}
+     * @return the byte at that index
+     */
+    public byte byteAt(int index) {
+        if (index >= count) {
+            throw new IndexOutOfBoundsException("index " + index + " is outside of the buffered content of size " + count);
+        }
+        return buf[index];
+    }
+
+    /**
+     * Returns a copy of the buffered content starting at the specified offset.
+     *
+     * @param offset the index of the first byte to copy
+     * @return a newly allocated byte array
+     */
+    public byte[] toByteArray(int offset) {
+        return Arrays.copyOfRange(buf, offset, count);
+    }
+
+    /**
+     * Returns a read-only view of the buffered content starting at the specified offset, without copying it. The
+     * view is only valid until the buffer is next reset or written to.
+     *
+     * @param offset the index of the first byte of the view
+     * @return a read-only {@link ByteBuffer} over the buffered content
+     */
+    public ByteBuffer asByteBuffer(int offset) {
+        return ByteBuffer.wrap(buf, offset, count - offset).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the current capacity of the underlying array, which grows to fit the largest content written.
+     *
+     * @return the capacity in bytes
+     */
+    public int capacity() {
+        return buf.length;
+    }
+}
@@ -0,0 +1,199 @@
+package io.factorhouse.kpow.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A {@link TelemetrySink} that appends records to a rotating set of memory-mapped segment files, a low-overhead
+ * local record of telemetry that can be read back with {@link MappedFileSinkReader}.
+ *
+ * <p>Each segment is a file of exactly {@code segmentBytes}, mapped once when it is created. A record is copied from
+ * the agent's encode buffers straight into the mapping, so writing costs one memory copy and no system call. Once a
+ * record does not fit in the current segment a new one is started, and the oldest segments are deleted so that at
+ * most {@code maxSegments} remain.</p>
+ *
+ * <p>Records are laid out as:</p>
+ * <pre>
+ *   int   length of the remainder of the record
+ *   long  timestamp, in milliseconds since the epoch
+ *   int   key length, -1 for no key
+ *   byte  key bytes
+ *   int   value length, -1 for no value
+ *   byte  value bytes
+ * </pre>
+ * <p>The length of a record is written last, a record that was only partly written when the process stopped reads
+ * as the end of the segment. The topic of a record is not retained. Records are only written to the operating
+ * system's page cache, they survive the process but not the host unless the sink is flushed.</p>
+ */
+public final class MappedFileSink implements TelemetrySink {
+
+    static final String SEGMENT_SUFFIX = ".segment";
+    static final int HEADER_BYTES = 4 + 8 + 4 + 4;
+
+    /**
+     * The default size of a segment file, 64MB.
+     */
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * The default number of segment files retained.
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private long sequence;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private boolean closed;
+
+    /**
+     * Creates a sink writing to {@value #DEFAULT_MAX_SEGMENTS} segments of {@value #DEFAULT_SEGMENT_BYTES} bytes.
+     *
+     * @param directory the directory holding the segment files, created if it does not exist
+     * @throws IOException if the directory or first segment could not be created
+     */
+    public MappedFileSink(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Creates a sink writing to a rotating set of segments in {@code directory}. Segments already in the directory
+     * are kept, and count towards {@code maxSegments}, records are written to a new segment following them. Files
+     * with the segment suffix whose names are not sequence numbers are ignored.
+     *
+     * @param directory    the directory holding the segment files, created if it does not exist
+     * @param segmentBytes the size of each segment file, which bounds the size of a single record
+     * @param maxSegments  the number of segment files retained, including the one being written
+     * @throws IOException if the directory or first segment could not be created
+     */
+    public MappedFileSink(Path directory, int segmentBytes, int maxSegments) throws IOException {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory must not be null");
+        }
+        if (segmentBytes < 1024) {
+            throw new IllegalArgumentException("segmentBytes must be at least 1024, got " + segmentBytes);
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("maxSegments must be positive, got " + maxSegments);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        List<Path> existing = MappedFileSinkReader.segments(directory);
+        this.sequence = existing.isEmpty() ? 0 : sequenceOf(existing.get(existing.size() - 1)) + 1;
+        roll();
+    }
+
+    /**
+     * The sequence number of a segment file, or -1 for a file that was not written by a sink.
+     */
+    static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        if (!name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            return sequence < 0 ? -1 : sequence;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Starts a new segment. A roll that fails leaves no current segment, the next write tries again.
+     */
+    private void roll() throws IOException {
+        if (channel != null) {
+            FileChannel previous = channel;
+            MappedByteBuffer mapped = segment;
+            channel = null;
+            segment = null;
+            try {
+                mapped.force();
+            } finally {
+                previous.close();
+            }
+        }
+        Path path = directory.resolve(String.format("%020d%s", sequence++, SEGMENT_SUFFIX));
+        FileChannel next = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            segment = next.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        channel = next;
+        List<Path> segments = MappedFileSinkReader.segments(directory);
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    @Override
+    public synchronized void write(String topic, ByteBuffer key, ByteBuffer value) throws IOException {
+        if (closed) {
+            throw new IOException("sink is closed");
+        }
+        int recordBytes = HEADER_BYTES + (key == null ? 0 : key.remaining()) + (value == null ? 0 : value.remaining());
+        if (recordBytes > segmentBytes) {
+            throw new IOException("record of " + recordBytes + " bytes exceeds the segment size of " + segmentBytes);
+        }
+        if (channel == null || segment.remaining() < recordBytes) {
+            roll();
+        }
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.putLong(System.currentTimeMillis());
+        put(key);
+        put(value);
+        segment.putInt(start, recordBytes - 4);
+    }
+
+    private void put(ByteBuffer bytes) {
+        if (bytes == null) {
+            segment.putInt(-1);
+        } else {
+            segment.putInt(bytes.remaining());
+            segment.put(bytes.duplicate());
+        }
+    }
+
+    /**
+     * Forces the records written to the current segment to the storage device.
+     */
+    @Override
+    public synchronized void flush() {
+        if (channel != null) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Flushes and closes the current segment. The mapping itself is released when it is garbage collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (channel != null) {
+            FileChannel previous = channel;
+            MappedByteBuffer mapped = segment;
+            channel = null;
+            segment = null;
+            try {
+                mapped.force();
+            } finally {
+                previous.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.factorhouse.kpow.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Reads back the records written by a {@link MappedFileSink}, oldest first.
+ *
+ * <p>Segments can be read while a sink is still writing to them, a reader sees every record whose write had
+ * completed when the segment was mapped.</p>
+ */
+public final class MappedFileSinkReader {
+
+    /**
+     * A record read from a segment file.
+     */
+    public static final class Entry {
+        private final long timestamp;
+        private final byte[] key;
+        private final byte[] value;
+
+        Entry(long timestamp, byte[] key, byte[] value) {
+            this.timestamp = timestamp;
+            this.key = key;
+            this.value = value;
+        }
+
+        /**
+         * Returns the time the record was written.
+         *
+         * @return the timestamp in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the encoded key of the record.
+         *
+         * @return the key bytes, or {@code null} if the record had no key
+         */
+        public byte[] getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the encoded value of the record.
+         *
+         * @return the value bytes, or {@code null} if the record had no value
+         */
+        public byte[] getValue() {
+            return value;
+        }
+    }
+
+    private MappedFileSinkReader() {}
+
+    /**
+     * Returns the segment files in a sink directory, oldest first. Files with the segment suffix whose names are
+     * not sequence numbers were not written by a sink and are skipped.
+     *
+     * @param directory the directory a {@link MappedFileSink} writes to
+     * @return the paths of the segment files, empty if the directory does not exist
+     * @throws IOException if the directory could not be listed
+     */
+    public static List<Path> segments(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.filter(path -> MappedFileSink.sequenceOf(path) >= 0)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Reads every record of a single segment file. A record whose lengths do not fit within it, one that was only
+     * partly written or is corrupt, is read as the end of the segment.
+     *
+     * @param segment  the path of the segment file
+     * @param consumer called with each record, in the order written
+     * @throws IOException if the segment could not be read
+     */
+    public static void readSegment(Path segment, Consumer<Entry> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            while (buffer.remaining() >= MappedFileSink.HEADER_BYTES) {
+                int length = buffer.getInt();
+                if (length < MappedFileSink.HEADER_BYTES - 4 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer record = buffer.slice();
+                record.limit(length);
+                buffer.position(buffer.position() + length);
+                long timestamp = record.getLong();
+                int keyLength = record.getInt();
+                if (!fits(record, keyLength)) {
+                    break;
+                }
+                byte[] key = bytes(record, keyLength);
+                if (record.remaining() < 4) {
+                    break;
+                }
+                int valueLength = record.getInt();
+                if (!fits(record, valueLength)) {
+                    break;
+                }
+                consumer.accept(new Entry(timestamp, key, bytes(record, valueLength)));
+            }
+        }
+    }
+
+    private static boolean fits(ByteBuffer record, int length) {
+        return length >= -1 && length <= record.remaining();
+    }
+
+    private static byte[] bytes(ByteBuffer record, int length) {
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads every record in a sink directory, oldest first.
+     *
+     * @param directory the directory a {@link MappedFileSink} writes to
+     * @param consumer  called with each record
+     * @throws IOException if a segment could not be read
+     */
+    public static void read(Path directory, Consumer<Entry> consumer) throws IOException {
+        for (Path segment : segments(directory)) {
+            readSegment(segment, consumer);
+        }
+    }
+
+    /**
+     * Reads every record in a sink directory into a list, oldest first.
+     *
+     * @param directory the directory a {@link MappedFileSink} writes to
+     * @return the records
+     * @throws IOException if a segment could not be read
+     */
+    public static List<Entry> readAll(Path directory) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        read(directory, entries::add);
+        return entries;
+    }
+}
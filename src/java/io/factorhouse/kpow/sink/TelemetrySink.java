@@ -0,0 +1,45 @@
+package io.factorhouse.kpow.sink;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A destination for the agent's encoded telemetry records, in place of or alongside Kpow's internal Kafka topic.
+ * <p>Records reach a sink encoded exactly as they would be produced to Kafka: Transit JSON keys and values in the
+ * configured {@link io.factorhouse.kpow.StreamsRegistryConfig.WireFormat}.</p>
+ * <ul>
+ *   <li>{@link io.factorhouse.kpow.StreamsRegistry#StreamsRegistry(TelemetrySink, io.factorhouse.kpow.MetricFilter,
+ *       io.factorhouse.kpow.StreamsRegistry.TargetProduct, io.factorhouse.kpow.StreamsRegistryConfig)} sends
+ *       telemetry to a sink only, without a Kafka producer.</li>
+ *   <li>{@link io.factorhouse.kpow.StreamsRegistryConfig#sink(TelemetrySink)} writes every record to a sink before
+ *       it is sent to Kafka.</li>
+ * </ul>
+ * <p>A sink handed to a registry is closed when the registry is closed.</p>
+ *
+ * @see MappedFileSink
+ */
+public interface TelemetrySink extends Closeable {
+
+    /**
+     * Writes one encoded record. Called concurrently from the agent's sending threads.
+     *
+     * <p>The buffers are read-only views of the agent's reusable encode buffers and are only valid for the duration
+     * of the call, a sink that retains the bytes must copy them before returning.</p>
+     *
+     * @param topic the topic the record is destined for
+     * @param key   the encoded key, or {@code null}
+     * @param value the encoded value, or {@code null}
+     * @throws IOException if the record could not be written, the send is then reported as failed
+     */
+    void write(String topic, ByteBuffer key, ByteBuffer value) throws IOException;
+
+    /**
+     * Makes every record written so far durable, called once the records of each observation have been written and
+     * before the sink is closed.
+     *
+     * @throws IOException if the records could not be flushed
+     */
+    default void flush() throws IOException {
+    }
+}
@@ -1,13 +1,26 @@
 (ns io.factorhouse.agent-test
   (:require [clojure.core.protocols :as p]
             [clojure.test :refer :all]
-            [io.factorhouse.kpow.agent :as agent])
-  (:import (io.factorhouse.kpow MetricFilter StreamsRegistry)
-           (io.factorhouse.kpow.key ClientIdKeyStrategy)
+            [io.factorhouse.kpow.agent :as agent]
+            [io.factorhouse.kpow.serdes :as serdes]
+            [io.factorhouse.kpow.spool :as spool]
+            [io.factorhouse.kpow.transport :as transport])
+  (:import (io.factorhouse.kpow MetricFilter StreamsRegistry StreamsRegistry$TargetProduct StreamsRegistryConfig StreamsRegistryConfig$RollupReducer StreamsRegistryConfig$SendMode StreamsRegistryConfig$WireFormat)
+           (io.factorhouse.kpow.key ClientIdKeyStrategy ClusterIdKeyStrategy ClusterIdKeyStrategy$UnresolvedPolicy)
+           (io.factorhouse.kpow.sink MappedFileSink MappedFileSinkReader MappedFileSinkReader$Entry TelemetrySink)
+           (java.lang.management ManagementFactory)
+           (java.nio ByteBuffer)
+           (java.nio.file Files OpenOption)
+           (java.nio.file.attribute FileAttribute)
            (java.util Properties)
-           (org.apache.kafka.clients.producer Producer)
-           (org.apache.kafka.common Metric MetricName)
-           (org.apache.kafka.streams KafkaStreams$State StreamsBuilder Topology)))
+           (java.util.concurrent Executor Executors TimeUnit)
+           (java.util.concurrent.atomic AtomicBoolean)
+           (javax.management ObjectName)
+           (org.apache.kafka.clients.producer Callback MockProducer Producer RecordMetadata)
+           (org.apache.kafka.common Metric MetricName TopicPartition)
+           (org.apache.kafka.common.errors RecordTooLargeException TimeoutException)
+           (org.apache.kafka.streams KafkaStreams KafkaStreams$State KafkaStreams$StateListener LagInfo StreamsBuilder Topology)
+           (org.apache.kafka.streams.kstream Predicate)))
 
 (defn ^Properties ->props [m]
   (let [props (Properties.)]
@@ -35,14 +48,17 @@
     (.build builder)))
 
 (defn mock-producer
-  [records]
-  (reify Producer
-    (send [_ record]
-      (swap! records conj record)
-      (future nil))
-    (send [_ record _]
-      (swap! records conj record)
-      nil)))
+  ([records]
+   (mock-producer records nil))
+  ([records error]
+   (reify Producer
+     (send [_ record]
+       (swap! records conj record)
+       (future nil))
+     (send [_ record callback]
+       (swap! records conj record)
+       (.onCompletion ^Callback callback nil error)
+       nil))))
 
 (defprotocol MockStreams
   (state [this])
@@ -65,10 +81,539 @@
   (is (= [{:value 1.0, :description "mock metric", :group "first", :name "first.metric", :tags {}}
           {:value 2.0, :description "mock metric", :group "first", :name "second.metric", :tags {}}]
          (into []
-               (map #(dissoc % :metric-name))
+               (map #(dissoc % :metric-name :metric))
                (agent/metrics (mock-streams [(mock-metric "first.metric" "first" "mock metric" {} 1.0)
                                              (mock-metric "second.metric" "first" "mock metric" {} 2.0)]))))))
 
+(deftest cached-metric-index
+  (let [calls   (atom 0)
+        state   (atom KafkaStreams$State/RUNNING)
+        value   (atom 1.0)
+        gauge   (let [metric-name (MetricName. "process-rate" "first" "mock metric" {"client-id" "abc123"})]
+                  [metric-name (reify Metric
+                                 (metricName [_] metric-name)
+                                 (metricValue [_] @value))])
+        streams (reify MockStreams
+                  (metrics [_]
+                    (swap! calls inc)
+                    (into {} [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                              (mock-metric "poll-rate" "first" "mock metric" {"client-id" "abc123"} 3.0)
+                              gauge]))
+                  (state [_] @state))
+        ctx     {:streams                     streams
+                 :metrics-filter              (-> (MetricFilter.) (.acceptNameStartsWith "process"))
+                 :cache                       (atom {})
+                 :metric-index-refresh-cycles 3}]
+
+    (is (= [{:name "process-rate" :tags {"client-id" "abc123"} :value 1.0}]
+           (agent/sample-metrics (agent/cached-metric-index ctx))))
+    (reset! value 2.0)
+
+    (testing "the index is reused and values are read from the cached handles"
+      (is (= [{:name "process-rate" :tags {"client-id" "abc123"} :value 2.0}]
+             (agent/sample-metrics (agent/cached-metric-index ctx))))
+      (is (= 1 @calls))
+      (is (= [2.0] (vec (:values (agent/cached-metric-index ctx))))))
+
+    (testing "the index is rebuilt once it reaches refresh-cycles"
+      (agent/cached-metric-index ctx)
+      (is (= 2 @calls)))
+
+    (testing "the index is rebuilt when the streams state changes"
+      (reset! state KafkaStreams$State/REBALANCING)
+      (is (= {:total 3 :client-id "abc123" :application-id "xxx"}
+             (select-keys (agent/cached-metric-index ctx) [:total :client-id :application-id])))
+      (is (= 3 @calls)))))
+
+(deftest delta-metrics
+  (let [values  (atom {"a" 1.0 "b" 2.0 "c" 3.0})
+        gauges  (for [k ["a" "b" "c"]]
+                  (let [metric-name (MetricName. k "first" "mock metric" {"client-id" "abc123"})]
+                    [metric-name (reify Metric
+                                   (metricName [_] metric-name)
+                                   (metricValue [_] (get @values k)))]))
+        streams (mock-streams (cons (mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx") gauges))
+        ctx     {:streams                     streams
+                 :metrics-filter              (MetricFilter/acceptAllMetricFilter)
+                 :cache                       (atom {})
+                 :metric-index-refresh-cycles 100
+                 :delta-keyframe-cycles       3
+                 :delta-epsilon               0.5}
+        cycle   (fn []
+                  (let [[metrics delta] (agent/delta-metrics ctx (agent/cached-metric-index ctx))]
+                    [(into {} (map (juxt :name :value)) metrics) delta]))]
+
+    (is (= [{"a" 1.0 "b" 2.0 "c" 3.0} {:metrics/seq 0 :metrics/keyframe? true}] (cycle)))
+
+    (testing "only values that moved by more than epsilon are sent"
+      (swap! values assoc "a" 1.4 "b" 5.0)
+      (is (= [{"b" 5.0} {:metrics/seq 1 :metrics/keyframe? false}] (cycle))))
+
+    (testing "small changes accumulate against the last published value"
+      (swap! values assoc "a" 1.6)
+      (is (= [{"a" 1.6} {:metrics/seq 2 :metrics/keyframe? false}] (cycle))))
+
+    (testing "a keyframe is sent every delta-keyframe-cycles"
+      (is (= [{"a" 1.6 "b" 5.0 "c" 3.0} {:metrics/seq 3 :metrics/keyframe? true}] (cycle))))))
+
+(deftest aggregated-metrics
+  (let [values  (atom {"a" 1.0 "b" 2.0})
+        gauges  (for [k ["a" "b"]]
+                  (let [metric-name (MetricName. k "first" "mock metric" {"client-id" "abc123"})]
+                    [metric-name (reify Metric
+                                   (metricName [_] metric-name)
+                                   (metricValue [_] (get @values k)))]))
+        streams (mock-streams (cons (mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx") gauges))
+        cache   (atom {})
+        ctx     {:streams                     streams
+                 :metrics-filter              (MetricFilter/acceptAllMetricFilter)
+                 :cache                       cache
+                 :metric-index-refresh-cycles 100
+                 :delta-keyframe-cycles       10
+                 :delta-epsilon               0.5}
+        sampler (agent/sampler-task {:registered-topologies (atom {"id" {:id "id" :cache cache :sampling (AtomicBoolean. false)}})
+                                     :workers               (reify Executor
+                                                              (execute [_ runnable]
+                                                                (.run runnable)))})
+        publish (fn [delta?]
+                  (let [index     (agent/cached-metric-index ctx)
+                        aggregate (agent/cached-aggregate cache index)
+                        metrics   (if delta?
+                                    (first (agent/delta-metrics ctx index aggregate))
+                                    (agent/sample-metrics index nil 0.0 aggregate))]
+                    (into {} (map (juxt :name #(dissoc % :name :tags))) metrics)))]
+
+    (testing "the sampler does nothing until a registration has a metric index"
+      (.run sampler)
+      (is (nil? (:aggregate @cache))))
+
+    (is (= {"a" {:value 1.0 :min 1.0 :max 1.0 :mean 1.0 :samples 1}
+            "b" {:value 2.0 :min 2.0 :max 2.0 :mean 2.0 :samples 1}}
+           (publish false)))
+
+    (testing "samples between publications are folded into min/max/mean"
+      (swap! values assoc "a" 9.0)
+      (.run sampler)
+      (swap! values assoc "a" 2.0 "b" 4.0)
+      (.run sampler)
+      (swap! values assoc "a" 3.0 "b" "not a number")
+      (.run sampler)
+      (swap! values assoc "b" 3.0)
+      (is (= {"a" {:value 3.0 :min 2.0 :max 9.0 :mean 4.25 :samples 4}
+              "b" {:value 3.0 :min 2.0 :max 4.0 :mean 3.0 :samples 3}}
+             (publish false))))
+
+    (testing "the aggregate is reset on publication"
+      (is (= {"a" {:value 3.0 :min 3.0 :max 3.0 :mean 3.0 :samples 1}
+              "b" {:value 3.0 :min 3.0 :max 3.0 :mean 3.0 :samples 1}}
+             (publish false))))
+
+    (testing "samples run on the workers, a registration still being sampled is skipped"
+      (let [queued  (atom [])
+            sampler (agent/sampler-task {:registered-topologies (atom {"id" {:id "id" :cache cache :sampling (AtomicBoolean. false)}})
+                                         :workers               (reify Executor
+                                                                  (execute [_ runnable]
+                                                                    (swap! queued conj runnable)))})]
+        (.run sampler)
+        (.run sampler)
+        (is (= 1 (count @queued)))
+        (.run ^Runnable (first @queued))
+        (.run sampler)
+        (is (= 2 (count @queued)))
+        (.run ^Runnable (second @queued))
+        (publish false)))
+
+    (testing "in delta mode a spike between publications is sent even if the last value has not moved"
+      (is (= #{"a" "b"} (set (keys (publish true)))))
+      (is (= {} (publish true)))
+      (swap! values assoc "b" 30.0)
+      (.run sampler)
+      (swap! values assoc "b" 3.0)
+      (is (= {"b" {:value 3.0 :min 3.0 :max 30.0 :mean 16.5 :samples 2}}
+             (publish true))))))
+
+(deftest size-aware-batching
+  (let [metric  (fn [n tag-size]
+                  {:name (str "metric-" n) :tags {"client-id" "abc123" "store" (apply str (repeat tag-size "x"))} :value 1.0})
+        small   (map #(metric % 10) (range 100))
+        sizes   (fn [{:keys [batches]}] (map (comp count :data) batches))]
+
+    (testing "metrics are packed up to the target size"
+      (let [{:keys [batches oversized] :as packed} (agent/pack-metrics small 1.0 2000 10000)]
+        (is (zero? oversized))
+        (is (= small (mapcat :data batches)))
+        (is (every? #(<= % 2000) (map :estimate batches)))
+        (is (= 100 (reduce + (sizes packed))))
+        (is (< 1 (count batches) 10))))
+
+    (testing "a higher observed ratio of actual to estimated bytes packs smaller batches"
+      (is (< (count (:batches (agent/pack-metrics small 1.0 2000 10000)))
+             (count (:batches (agent/pack-metrics small 2.0 2000 10000))))))
+
+    (testing "a metric larger than the target is sent alone, one larger than the maximum record is dropped"
+      (let [packed (agent/pack-metrics [(metric 0 10) (metric 1 3000) (metric 2 20000) (metric 3 10)] 1.0 2000 10000)]
+        (is (= 1 (:oversized packed)))
+        (is (= [["metric-0"] ["metric-1"] ["metric-3"]]
+               (map #(map :name (:data %)) (:batches packed))))))
+
+    (testing "the ratio is tuned from serialized sizes, and doubled when a record is still too large"
+      (let [cache    (atom {})
+            metadata (fn [size] (RecordMetadata. (TopicPartition. "t" 0) 0 0 0 0 size))
+            ratio    #(Math/round (* 1000.0 (get-in @cache [:batching :ratio])))]
+        (agent/observe-record-size! cache 1000 (metadata 2000) nil)
+        (is (= 1200 (ratio)))
+        (agent/observe-record-size! cache 1000 nil (RecordTooLargeException. "too large"))
+        (is (= 2400 (ratio)))
+        (agent/observe-record-size! cache 1000 nil (Exception. "broker unavailable"))
+        (is (= 2400 (ratio)))))
+
+    (testing "record limits derive from the producer properties"
+      (is (= {:target-record-bytes 16384 :max-record-bytes 943718} (agent/record-limits nil 0)))
+      (is (= {:target-record-bytes 65536 :max-record-bytes 943718}
+             (agent/record-limits (->props {"batch.size" "65536"}) 0)))
+      (is (= {:target-record-bytes 9000 :max-record-bytes 9000}
+             (agent/record-limits (->props {"batch.size" "65536" "max.request.size" "10000"}) 0)))
+      (is (= {:target-record-bytes 4096 :max-record-bytes 943718}
+             (agent/record-limits (->props {"batch.size" "65536"}) 4096))))))
+
+(deftest agent-test-size-aware-batching
+  (let [producer (MockProducer. true nil (serdes/transit-json-serializer) (serdes/transit-json-serializer))
+        config   (.targetRecordBytes (StreamsRegistryConfig.) 4000)
+        registry (agent/init-registry producer (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state" config)]
+
+    (agent/register registry
+                    (mock-streams (concat [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                           (mock-metric "huge" "first" "mock metric" {"client-id" "abc123" "store" (apply str (repeat 1000000 "x"))} 1.0)]
+                                          (for [n (range 500)]
+                                            (mock-metric (str "metric-" n) "first" "mock metric" {"client-id" "abc123" "store" (str "store-" n)} 1.0))))
+                    (test-topology)
+                    (ClientIdKeyStrategy.))
+
+    (is (deref (:latch registry) 5000 false))
+
+    (let [records (.history producer)
+          metrics (filter #(= :kafka/streams-agent-metrics (-> % (.value) :type)) records)
+          sizes   (map #(count (.serialize (serdes/transit-json-serializer) "t" (.value %))) metrics)
+          plan    (-> (last records) (.value) :data :agent :metrics-summary)]
+
+      (testing "metrics records stay within the target size and carry every metric but the oversized one"
+        (is (< 1 (count metrics) 20))
+        (is (every? #(<= % 4000) sizes))
+        (is (= 500 (count (mapcat #(-> % (.value) :data) metrics)))))
+
+      (testing "oversized metrics are reported in the metrics summary"
+        (is (= {:total 502 :sent 500 :oversized 1} (select-keys plan [:total :sent :oversized])))))
+
+    (is (empty? (agent/close-registry registry)))))
+
+(deftest metric-rollups
+  (let [store-metric (fn [name task thread value]
+                       (mock-metric name "stream-state-metrics" "mock metric"
+                                    {"client-id" "abc123" "task-id" task "thread-id" thread "rocksdb-state-id" "store-a"} value))
+        streams      (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                    (store-metric "put-rate" "0_0" "t1" 1.0)
+                                    (store-metric "put-latency-max" "0_0" "t1" 5.0)
+                                    (store-metric "put-latency-avg" "0_0" "t1" 2.0)
+                                    (store-metric "put-rate" "0_1" "t2" 3.0)
+                                    (store-metric "put-latency-max" "0_1" "t2" 7.0)
+                                    (store-metric "put-latency-avg" "0_1" "t2" 4.0)
+                                    (store-metric "put-rate" "0_2" "t2" Double/NaN)
+                                    (store-metric "put-latency-max" "0_2" "t2" nil)
+                                    (store-metric "record-e2e-latency-min" "0_0" "t1" 6.0)
+                                    (store-metric "record-e2e-latency-min" "0_1" "t2" 3.0)
+                                    (mock-metric "alive-stream-threads" "stream-metrics" "mock metric" {"client-id" "abc123"} 2)])
+        kept-tags    {"client-id" "abc123" "rocksdb-state-id" "store-a"}]
+
+    (testing "metrics that differ only by the rollup tags are combined, reducers chosen by name"
+      (let [index (agent/metric-index streams (MetricFilter/acceptAllMetricFilter) {:rollup-tags    #{"task-id" "thread-id"}
+                                                                                    :rollup-reducer :auto})]
+        (is (= 10 (:rolled-up index)))
+        (is (= #{{:name "put-rate" :tags kept-tags :rollup :sum :members 2 :value 4.0}
+                 {:name "put-latency-max" :tags kept-tags :rollup :max :members 2 :value 7.0}
+                 {:name "put-latency-avg" :tags kept-tags :rollup :avg :members 2 :value 3.0}
+                 {:name "record-e2e-latency-min" :tags kept-tags :rollup :min :members 2 :value 3.0}
+                 {:name "alive-stream-threads" :tags {"client-id" "abc123"} :value 2}}
+               (set (agent/sample-metrics index))))))
+
+    (testing "a fixed reducer applies to every rolled up metric"
+      (let [index (agent/metric-index streams (MetricFilter/acceptAllMetricFilter) {:rollup-tags    #{"task-id" "thread-id"}
+                                                                                    :rollup-reducer :max})]
+        (is (= {"put-rate" 3.0 "put-latency-max" 7.0 "put-latency-avg" 4.0 "record-e2e-latency-min" 6.0}
+               (into {} (comp (filter :rollup) (map (juxt :name :value))) (agent/sample-metrics index)))))
+      (let [index (agent/metric-index streams (MetricFilter/acceptAllMetricFilter) {:rollup-tags    #{"task-id" "thread-id"}
+                                                                                    :rollup-reducer :min})]
+        (is (= {"put-rate" 1.0 "put-latency-max" 5.0 "put-latency-avg" 2.0 "record-e2e-latency-min" 3.0}
+               (into {} (comp (filter :rollup) (map (juxt :name :value))) (agent/sample-metrics index))))))
+
+    (testing "without rollup tags every metric is indexed on its own"
+      (is (= 9 (count (agent/sample-metrics (agent/metric-index streams (MetricFilter/acceptAllMetricFilter) {:rollup-tags #{}}))))))
+
+    (testing "members count only the values combined in that sample"
+      (let [value   (atom "starting")
+            streams (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                   (store-metric "put-rate" "0_0" "t1" 1.0)
+                                   (let [[metric-name _] (store-metric "put-rate" "0_1" "t2" nil)]
+                                     [metric-name (reify Metric
+                                                    (metricName [_] metric-name)
+                                                    (metricValue [_] @value))])])
+            index   (agent/metric-index streams (MetricFilter/acceptAllMetricFilter) {:rollup-tags    #{"task-id" "thread-id"}
+                                                                                      :rollup-reducer :auto})]
+        (is (= [[1 1.0]] (map (juxt :members :value) (agent/sample-metrics index))))
+        (reset! value 2.0)
+        (is (= [[2 3.0]] (map (juxt :members :value) (agent/sample-metrics index)))))))
+
+  (testing "rollups are configured through StreamsRegistryConfig"
+    (let [config (-> (StreamsRegistryConfig.)
+                     (.rollupTags (into-array String ["task-id" "thread-id"]))
+                     (.rollupReducer StreamsRegistryConfig$RollupReducer/SUM))]
+      (is (= {:rollup-tags #{"task-id" "thread-id"} :rollup-reducer :sum}
+             (select-keys (agent/config-opts config) [:rollup-tags :rollup-reducer])))
+      (is (= :min (:rollup-reducer (agent/config-opts (.rollupReducer config StreamsRegistryConfig$RollupReducer/MIN))))))))
+
+(deftest series-limits
+  (let [values  (into {} (map (fn [k] [k (atom (double (inc (count k))))])) ["a" "bb" "ccc" "dddd"])
+        streams (mock-streams (cons (mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                    (for [[k value] values]
+                                      (let [metric-name (MetricName. k "first" "mock metric" {"client-id" "abc123"})]
+                                        [metric-name (reify Metric
+                                                       (metricName [_] metric-name)
+                                                       (metricValue [_] @value))]))))
+        index   (fn [] (agent/metric-index streams (MetricFilter/acceptAllMetricFilter)))
+        names   (fn [metrics] (set (map :name metrics)))]
+
+    (testing "the largest values are kept with :value ranking and the rest are counted as dropped"
+      (let [index   (index)
+            metrics (agent/sample-metrics index nil 0.0 nil (agent/series-limiter (:values index) 2 :value))]
+        (is (= #{"ccc" "dddd"} (names metrics)))
+        (is (= 2 (:dropped (meta metrics))))))
+
+    (testing "series that change the most are kept with :change ranking"
+      (let [index   (index)
+            limiter (agent/series-limiter (:values index) 1 :change)]
+        (agent/sample-metrics index nil 0.0 nil limiter)
+        (swap! (get values "a") + 100.0)
+        (is (= #{"a"} (names (agent/sample-metrics index nil 0.0 nil limiter))))
+        (swap! (get values "bb") + 10.0)
+        (is (= #{"a"} (names (agent/sample-metrics index nil 0.0 nil limiter))))))
+
+    (testing "series that changed last are kept with :recency ranking"
+      (let [index   (index)
+            limiter (agent/series-limiter (:values index) 1 :recency)]
+        (agent/sample-metrics index nil 0.0 nil limiter)
+        (swap! (get values "ccc") + 1.0)
+        (is (= #{"ccc"} (names (agent/sample-metrics index nil 0.0 nil limiter))))))
+
+    (testing "in delta mode series left out are not marked as published and are sent next"
+      (let [index     (index)
+            published (double-array (alength ^doubles (:values index)) Double/NaN)
+            limiter   (agent/series-limiter (:values index) 3 :value)]
+        (is (= 3 (count (agent/sample-metrics index published 0.0 nil limiter))))
+        (is (= 1 (count (agent/sample-metrics index published 0.0 nil limiter))))
+        (is (empty? (agent/sample-metrics index published 0.0 nil limiter))))))
+
+  (testing "dropped series are reported in the metrics summary"
+    (let [records  (atom [])
+          registry (agent/init-registry (mock-producer records) (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state"
+                                        (.maxSeries (StreamsRegistryConfig.) 1))]
+      (agent/register registry
+                      (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                     (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)
+                                     (mock-metric "second.metric" "first" "mock metric" {"client-id" "abc123"} 2.0)])
+                      (test-topology)
+                      (ClientIdKeyStrategy.))
+      (is (deref (:latch registry) 5000 false))
+      (is (= {:sent 1 :dropped 1}
+             (-> (last @records) (.value) :data :agent :metrics-summary (select-keys [:sent :dropped]))))
+      (is (empty? (agent/close-registry registry))))))
+
+(deftest compiled-metric-filters
+  (let [names   (for [name  ["commit-latency-avg" "records-lag" "records-lag-max" "put-rate" "rocksdb.foo"
+                             "first.metric" "second.metric" "" "process-rate-total" "flush"]
+                      group ["group" "stream-state-metrics"]
+                      tags  [{} {"store" "s1"} {"rocksdb-state-id" "r1"} {"thread-id" "t1"}]]
+                  (MetricName. name group "" tags))
+        filters [(MetricFilter/defaultMetricFilter)
+                 (MetricFilter/stateStoreMetricsOnlyFilter)
+                 (MetricFilter/acceptAllMetricFilter)
+                 (MetricFilter/denyAllMetricFilter)
+                 (MetricFilter.)
+                 (-> (MetricFilter.)
+                     (.denyNameStartsWith "second")
+                     (.acceptNameStartsWith "first")
+                     (.acceptNameStartsWith "rocksdb")
+                     (.deny))
+                 (-> (MetricFilter.)
+                     (.acceptNameStartsWith "records-lag-max")
+                     (.denyNameStartsWith "records")
+                     (.acceptNameStartsWith "records-lag")
+                     (.accept (reify java.util.function.Predicate
+                                (test [_ metric-name] (contains? (.tags ^MetricName metric-name) "store"))))
+                     (.denyNameStartsWith "")
+                     (.acceptNameStartsWith "put"))
+                 (-> (MetricFilter.)
+                     (.rule "deny group=stream-state-metrics tag.rocksdb-state-id=*")
+                     (.rule "accept name=regex:records-lag(-max)?")
+                     (.acceptNameStartsWith "put")
+                     (.rule "accept group=group name=flush")
+                     (.rule "deny name=exact:first.metric")
+                     (.rule "accept group=group name=first.metric")
+                     (.rule "accept tag.store=prefix:s name=prefix:p")
+                     (.rule "accept group=stream-state-metrics"))
+                 (MetricFilter/fromProperties (->props {"id"      "props"
+                                                        "rule.10" "accept name=commit-latency-avg"
+                                                        "rule.2"  "deny tag.thread-id=t1"
+                                                        "rule.3"  "accept group=stream-state-metrics tag.store=exact:s1"}))]]
+    (doseq [^MetricFilter metric-filter filters
+            ^MetricName metric-name names]
+      (testing (str (.getFilterId metric-filter) " " metric-name)
+        (is (= (boolean (agent/apply-metric-filters metric-name (.getFilters metric-filter)))
+               (.isAccepted metric-filter metric-name)
+               (.isAccepted metric-filter metric-name)))))
+
+    (testing "the compiled filter is discarded when a rule is added"
+      (let [metric-filter (.acceptNameStartsWith (MetricFilter.) "first")
+            metric-name   (MetricName. "second.metric" "group" "" {})]
+        (is (false? (.isAccepted metric-filter metric-name)))
+        (.accept metric-filter)
+        (is (true? (.isAccepted metric-filter metric-name)))))
+
+    (testing "properties rules are ordered by number"
+      (let [metric-filter (MetricFilter/fromProperties (->props {"rule.10" "accept" "rule.2" "deny tag.thread-id=t1"}))]
+        (is (= "rules" (.getFilterId metric-filter)))
+        (is (false? (.isAccepted metric-filter (MetricName. "commit-latency-avg" "group" "" {"thread-id" "t1"}))))
+        (is (true? (.isAccepted metric-filter (MetricName. "commit-latency-avg" "group" "" {}))))))
+
+    (testing "invalid rules and properties are rejected"
+      (doseq [rule ["" "allow name=x" "accept name" "accept name=" "accept colour=red" "accept name=a name=b"
+                    "accept tag.=x" "accept name=regex:("]]
+        (is (thrown? IllegalArgumentException (.rule (MetricFilter.) rule)) rule))
+      (is (thrown-with-msg? IllegalArgumentException #"rule.2"
+                            (MetricFilter/fromProperties (->props {"rule.1" "accept" "rule.2" "accept group"}))))
+      (is (thrown? IllegalArgumentException (MetricFilter/fromProperties (->props {"rule.one" "accept"}))))
+      (is (thrown? IllegalArgumentException (MetricFilter/fromProperties (->props {"rules.1" "accept"})))))
+
+    (testing "rules are loaded from a file"
+      (let [file (Files/createTempFile "metric-filter" ".properties" (make-array FileAttribute 0))]
+        (spit (.toFile file) "id=from-file\nrule.1=deny name=prefix:rocksdb\nrule.2=accept\n")
+        (let [metric-filter (MetricFilter/fromFile file)]
+          (is (= "from-file" (.getFilterId metric-filter)))
+          (is (false? (.isAccepted metric-filter (MetricName. "rocksdb.foo" "group" "" {}))))
+          (is (true? (.isAccepted metric-filter (MetricName. "put-rate" "group" "" {})))))))))
+
+(deftest metric-filter-reloads
+  (let [streams       (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                     (mock-metric "process-rate" "stream-thread-metrics" "mock metric" {"client-id" "abc123"} 1.0)
+                                     (mock-metric "put-rate" "stream-state-metrics" "mock metric" {"client-id" "abc123" "store" "s1"} 2.0)])
+        metric-filter (MetricFilter/fromProperties (->props {"id" "before" "rule.1" "accept group=stream-thread-metrics"}))
+        ctx           {:streams                     streams
+                       :metrics-filter              metric-filter
+                       :cache                       (atom {})
+                       :metric-index-refresh-cycles 100}
+        names         (fn [] (map :name (agent/sample-metrics (agent/cached-metric-index ctx))))]
+    (is (= ["process-rate"] (names)))
+
+    (testing "reloaded rules are swapped in and the cached index is rebuilt on the next observation"
+      (let [generation (.getGeneration metric-filter)]
+        (.reload metric-filter (MetricFilter/fromProperties (->props {"id" "after" "rule.1" "accept tag.store=*"})))
+        (is (< generation (.getGeneration metric-filter)))
+        (is (= "after" (.getFilterId metric-filter)))
+        (is (= ["put-rate"] (names)))))
+
+    (testing "a rule added to a filter in use is applied"
+      (.rule metric-filter "accept name=process-rate")
+      (is (= #{"put-rate" "process-rate"} (set (names))))))
+
+  (testing "rules added while the filter is tested from other threads are all applied"
+    (let [metric-names (mapv #(MetricName. (str "metric-" %) "group" "" {}) (range 50))]
+      (dotimes [_ 20]
+        (let [metric-filter (MetricFilter.)
+              running       (AtomicBoolean. true)
+              testers       (doall (for [_ (range 4)]
+                                     (future
+                                       (while (.get running)
+                                         (.isAccepted metric-filter (peek metric-names))))))]
+          (doseq [n (range 50)]
+            (.rule metric-filter (str "accept name=metric-" n)))
+          (.set running false)
+          (run! deref testers)
+          (is (every? #(.isAccepted metric-filter %) metric-names)))))))
+
+(deftest cluster-id-key-strategy
+  (let [props (->props {"bootstrap.servers" "localhost:1, localhost:2" "request.timeout.ms" "100"})]
+
+    (testing "resolutions are cached per bootstrap servers and security settings"
+      (let [cache-key (doto (.getDeclaredMethod (Class/forName "io.factorhouse.kpow.key.ClusterIdResolver") "cacheKey"
+                                                (into-array Class [Properties]))
+                        (.setAccessible true))
+            key-of    #(.invoke cache-key nil (object-array [(->props %)]))]
+        (is (= (key-of {"bootstrap.servers" "localhost:1, localhost:2" "request.timeout.ms" "100"})
+               (key-of {"bootstrap.servers" "localhost:2,localhost:1"})))
+        (is (not= (key-of {"bootstrap.servers" "localhost:1" "security.protocol" "SASL_SSL" "sasl.jaas.config" "user-a"})
+                  (key-of {"bootstrap.servers" "localhost:1" "security.protocol" "SASL_SSL" "sasl.jaas.config" "user-b"})))
+        (is (not= (key-of {"bootstrap.servers" "localhost:1"})
+                  (key-of {"bootstrap.servers" "localhost:1" "ssl.truststore.location" "/tmp/truststore.jks"})))))
+
+    (testing "other security settings are resolved on their own, and an error that cannot be retried is terminal"
+      ;; an attempt still waiting on an unreachable cluster does not hold up any other resolution
+      (ClusterIdKeyStrategy. (->props {"bootstrap.servers" "localhost:3"}))
+      (let [secured  (doto (->props {"bootstrap.servers" "localhost:1, localhost:2" "request.timeout.ms" "100"})
+                       ;; no JAAS configuration, the admin client can never be created
+                       (.put "security.protocol" "SASL_PLAINTEXT")
+                       (.put "sasl.mechanism" "PLAIN"))
+            deferred (ClusterIdKeyStrategy. secured)
+            other    (ClusterIdKeyStrategy. secured ClusterIdKeyStrategy$UnresolvedPolicy/PROVISIONAL)]
+        (is (thrown? java.util.concurrent.ExecutionException (.get (.getClusterId deferred) 5 TimeUnit/SECONDS)))
+        (is (.isCompletedExceptionally (.getClusterId deferred)))
+        (is (some? (agent/key-strategy-failure deferred)))
+        (is (nil? (.getTaxon deferred "client-1" "app-1")))
+        (is (= [:streams "client-1" :kafka/streams-agent]
+               (p/datafy (.getTaxon other "client-1" "app-1"))))
+
+        (testing "a registration logs the failure once and sends nothing"
+          (let [records (atom [])
+                cache   (atom {})
+                ctx     (assoc agent/default-opts
+                               :streams (mock-streams [(mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)
+                                                       (mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")])
+                               :topology (test-topology)
+                               :metrics-filter (MetricFilter/acceptAllMetricFilter)
+                               :key-strategy deferred
+                               :cache cache
+                               :producer (mock-producer records)
+                               :snapshot-topic {:topic "__oprtr_snapshot_state"})]
+            (is (nil? (agent/snapshot-telemetry ctx)))
+            (is (:key-strategy-failed @cache))
+            (is (nil? (agent/snapshot-telemetry ctx)))
+            (is (empty? @records))))))
+
+    (testing "construction does not wait on the brokers and instances share one resolution"
+      (let [started  (System/nanoTime)
+            deferred (ClusterIdKeyStrategy. props)
+            other    (ClusterIdKeyStrategy. (->props {"bootstrap.servers" "localhost:2,localhost:1"})
+                                            ClusterIdKeyStrategy$UnresolvedPolicy/PROVISIONAL)]
+        (is (< (- (System/nanoTime) started) 1000000000))
+        (is (not (.isDone (.getClusterId deferred))))
+        (is (nil? (agent/key-strategy-failure deferred)))
+
+        (testing "until resolved, telemetry is deferred or provisionally keyed by client id"
+          (is (nil? (.getTaxon deferred "client-1" "app-1")))
+          (is (= [:streams "client-1" :kafka/streams-agent]
+                 (p/datafy (.getTaxon other "client-1" "app-1")))))))
+
+    (testing "a registration whose key strategy has no key yet sends nothing"
+      (let [records (atom [])
+            streams (mock-streams [(mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)
+                                   (mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")])]
+        (is (nil? (agent/snapshot-telemetry (assoc agent/default-opts
+                                                   :streams streams
+                                                   :topology (test-topology)
+                                                   :metrics-filter (MetricFilter/acceptAllMetricFilter)
+                                                   :key-strategy (ClusterIdKeyStrategy. props)
+                                                   :cache (atom {})
+                                                   :producer (mock-producer records)
+                                                   :snapshot-topic {:topic "__oprtr_snapshot_state"}))))
+        (is (empty? @records))))))
+
 (deftest datafy-topo
   (is (= {:sub-topologies #{{:id    0,
                              :nodes #{{:name          "KSTREAM-SOURCE-0000000000",
@@ -79,6 +624,175 @@
           :global-stores  #{}}
          (p/datafy (.describe (test-topology))))))
 
+(deftest topology-snapshots
+  (let [fingerprint (agent/topology-fingerprint (p/datafy (.describe (test-topology))))
+        ctx         {:streams              (mock-streams [])
+                     :topology             (test-topology)
+                     :cache                (atom {})
+                     :topology-interval-ms 0}]
+
+    (testing "fingerprints are stable across describes of the same topology"
+      (is (= fingerprint (agent/topology-fingerprint (p/datafy (.describe (test-topology))))))
+      (is (not= fingerprint (agent/topology-fingerprint (p/datafy (.describe (let [builder (StreamsBuilder.)]
+                                                                                (.stream builder "other-topic")
+                                                                                (.build builder))))))))
+
+    (testing "the full topology is sent every cycle by default"
+      (is (= [true true] (map #(contains? (agent/snapshot-data ctx %) :topology) [0 1000]))))
+
+    (testing "with an interval only the fingerprint is sent between full snapshots"
+      (let [ctx (assoc ctx :cache (atom {}) :topology-interval-ms 60000)]
+        (is (= {:topology             (p/datafy (.describe (test-topology)))
+                :topology/fingerprint fingerprint
+                :state                "RUNNING"}
+               (agent/snapshot-data ctx 0)))
+        (testing "until the snapshot carrying it is acknowledged"
+          (is (contains? (agent/snapshot-data ctx 30000) :topology)))
+        (swap! (:cache ctx) assoc :topology-sent-at 0)
+        (is (= {:topology/fingerprint fingerprint :state "RUNNING"}
+               (agent/snapshot-data ctx 30000)))
+        (is (contains? (agent/snapshot-data ctx 60000) :topology))))
+
+    (testing "the interval starts when the full topology is acknowledged, not when it is built"
+      (let [scheduler (Executors/newSingleThreadScheduledExecutor)
+            workers   (Executors/newFixedThreadPool 1)
+            cycle     (fn [error]
+                        (let [cache (atom {})
+                              ctx   (assoc agent/default-opts
+                                           :scheduler scheduler
+                                           :workers workers
+                                           :producer (mock-producer (atom []) error)
+                                           :snapshot-topic {:topic "__oprtr_snapshot_state"}
+                                           :metrics-filter (MetricFilter/acceptAllMetricFilter)
+                                           :failure-sensor (agent/failure-sensor (agent/agent-metrics))
+                                           :send-mode :pipelined
+                                           :topology-interval-ms 60000)]
+                          [(deref (first (agent/registration-cycle ctx {:id           "agent-1"
+                                                                        :streams      (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                                                                                     (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)])
+                                                                        :topology     (test-topology)
+                                                                        :key-strategy (ClientIdKeyStrategy.)
+                                                                        :cache        cache}))
+                                  5000 nil)
+                           (:topology-sent-at @cache)]))]
+        (is (= [false nil] (cycle (Exception. "broker unavailable"))))
+        (let [[sent sent-at] (cycle nil)]
+          (is (true? sent))
+          (is (some? sent-at)))
+        (.shutdownNow scheduler)
+        (.shutdownNow workers)))))
+
+;; many small sub-topologies, one too large for a chunk of its own, and a global store
+(defn large-topology
+  ^Topology []
+  (let [builder (StreamsBuilder.)]
+    (doseq [n (range 40)]
+      (.to (.stream builder (str "input-" n)) (str "output-" n)))
+    (reduce (fn [stream _] (.filter stream (reify Predicate (test [_ _ _] true))))
+            (.stream builder "wide-input")
+            (range 60))
+    (.globalTable builder "global-input")
+    (.build builder)))
+
+(deftest chunked-topology-snapshots
+  (let [topology    (p/datafy (.describe (large-topology)))
+        fingerprint (agent/topology-fingerprint topology)
+        producer    (MockProducer. true nil (serdes/transit-json-serializer) (serdes/transit-json-serializer))
+        config      (.topologyChunkBytes (StreamsRegistryConfig.) 2000)
+        registry    (agent/init-registry producer (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state" config)]
+
+    (agent/register registry
+                    (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                   (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)])
+                    (large-topology)
+                    (ClientIdKeyStrategy.))
+
+    (is (deref (:latch registry) 5000 false))
+
+    (let [values   (map #(.value %) (.history producer))
+          snapshot (first (filter #(= :kafka/streams-agent (:type %)) values))
+          chunks   (map :data (filter #(= :kafka/streams-agent-topology-chunk (:type %)) values))
+          manifest (-> snapshot :data :topology/manifest)]
+
+      (testing "the snapshot carries a manifest of the topology in place of the topology"
+        (is (not (contains? (:data snapshot) :topology)))
+        (is (= fingerprint (-> snapshot :data :topology/fingerprint)))
+        (is (= {:topology/fingerprint fingerprint
+                :chunks               (count chunks)
+                :sub-topology-ids     (vec (range 41))
+                :global-store-ids     [41]
+                :nodes                (transduce (map (comp count :nodes)) + (:sub-topologies topology))}
+               manifest)))
+
+      (testing "every chunk follows the snapshot, is indexed, and stays near the chunk size"
+        (is (< 1 (count chunks)))
+        (is (= (range (count chunks)) (map :chunk/index chunks)))
+        (is (every? #(= (count chunks) (:chunk/count %)) chunks))
+        (is (every? #(= fingerprint (:topology/fingerprint %)) chunks))
+        (is (every? #(<= (count (pr-str (select-keys % [:sub-topologies :global-stores]))) 2200) chunks)))
+
+      (testing "the chunks reassemble into the topology, with the oversized sub-topology sliced"
+        (let [pieces (mapcat :sub-topologies chunks)]
+          (is (< 1 (count (filter #(= 40 (:id %)) pieces))))
+          (is (= topology
+                 {:sub-topologies (into #{}
+                                        (map (fn [[id pieces]] {:id id :nodes (into #{} (mapcat :nodes) pieces)}))
+                                        (group-by :id pieces))
+                  :global-stores  (into #{} (mapcat :global-stores) chunks)})))))
+
+    (testing "the chunks of a topology are computed once"
+      (let [ctx {:topology (large-topology) :cache (atom {}) :topology-chunk-bytes 2000}]
+        (is (identical? (:chunks (agent/cached-topology-chunks ctx)) (:chunks (agent/cached-topology-chunks ctx))))))
+
+    (is (empty? (agent/close-registry registry)))))
+
+(defn lag-info
+  [current end]
+  (let [constructor (.getDeclaredConstructor LagInfo (into-array Class [Long/TYPE Long/TYPE]))]
+    (.setAccessible constructor true)
+    (.newInstance constructor (object-array [current end]))))
+
+(deftest store-lags
+  (testing "store partition lags are compacted by store and partition"
+    (is (= {"store-a" {0 {:current-offset 10 :end-offset 12 :offset-lag 2}
+                       1 {:current-offset 5 :end-offset 5 :offset-lag 0}}}
+           (agent/store-lag-data {"store-a" {(int 0) (lag-info 10 12) (int 1) (lag-info 5 5)}}))))
+
+  (testing "lags are read at most once per interval and a failed read keeps the previous lags"
+    (let [reads (atom [{"store-a" {0 {:current-offset 1 :end-offset 2 :offset-lag 1}}}
+                       (ex-info "not running" {})
+                       {"store-a" {0 {:current-offset 2 :end-offset 2 :offset-lag 0}}}])
+          ctx   {:streams (mock-streams []) :cache (atom {}) :store-lag-interval-ms 1000}]
+      (with-redefs [agent/local-store-lags (fn [_]
+                                             (let [result (first @reads)]
+                                               (swap! reads rest)
+                                               (if (instance? Exception result) (throw result) result)))]
+        (is (= 1 (get-in (agent/cached-store-lags ctx 0) ["store-a" 0 :offset-lag])))
+        (is (= 1 (get-in (agent/cached-store-lags ctx 999) ["store-a" 0 :offset-lag])))
+        (is (= 2 (count @reads)))
+        (is (= 1 (get-in (agent/cached-store-lags ctx 1000) ["store-a" 0 :offset-lag])))
+        (is (= 0 (get-in (agent/cached-store-lags ctx 2000) ["store-a" 0 :offset-lag])))
+        (is (empty? @reads)))))
+
+  (testing "snapshots carry store lags only when enabled"
+    (let [records (atom [])
+          ctx     (assoc agent/default-opts
+                         :streams (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                                 (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)])
+                         :topology (test-topology)
+                         :metrics-filter (MetricFilter/acceptAllMetricFilter)
+                         :key-strategy (ClientIdKeyStrategy.)
+                         :producer (mock-producer records)
+                         :snapshot-topic {:topic "__oprtr_snapshot_state"})
+          lags    {"store-a" {0 {:current-offset 1 :end-offset 2 :offset-lag 1}}}
+          sent    (fn [ctx]
+                    (reset! records [])
+                    (agent/snapshot-telemetry (assoc ctx :cache (atom {})))
+                    (-> (filter #(= :kafka/streams-agent (-> % (.value) :type)) @records) first (.value) :data))]
+      (with-redefs [agent/local-store-lags (constantly lags)]
+        (is (not (contains? (sent ctx) :store/lags)))
+        (is (= lags (:store/lags (sent (assoc ctx :store-lag-interval-ms 30000)))))))))
+
 (deftest agent-test
   (let [records        (atom [])
         metrics-filter (-> (MetricFilter.) (.accept))
@@ -203,3 +917,613 @@
     (is (agent/unregister registry agent))
 
     (is (empty? (agent/close-registry registry)))))
+
+(deftest agent-test-concurrent-registrations
+  (let [records  (atom [])
+        registry (agent/init-registry (mock-producer records) (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state")]
+
+    (doseq [n (range 10)]
+      (agent/register registry
+                      (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" (str "client-" n)} (str "app-" n))
+                                     (mock-metric "first.metric" "first" "mock metric" {"client-id" (str "client-" n)} 1.0)])
+                      (test-topology)
+                      (ClientIdKeyStrategy.)))
+
+    (testing "plan delays run concurrently rather than once per registration"
+      (is (deref (:latch registry) 6000 false)))
+
+    (is (= 30 (count @records)))
+    (is (= (into #{} (map #(str "client-" %)) (range 10))
+           (into #{} (map #(-> % (.value) :client-id)) @records)))
+
+    (testing "cycle duration is recorded"
+      (is (pos? (agent/metric-value registry "cycle-duration-max"))))
+
+    (is (empty? (agent/close-registry registry)))))
+
+(deftest plan-sends-off-scheduler
+  (let [senders  (atom {})
+        sent!    (fn [record]
+                   (swap! senders update (-> record (.value) :type) (fnil conj #{}) (Thread/currentThread)))
+        producer (reify Producer
+                   (send [_ record]
+                     (sent! record)
+                     (future nil))
+                   (send [_ record callback]
+                     (sent! record)
+                     (.onCompletion ^Callback callback nil nil)
+                     nil))
+        registry (agent/init-registry producer (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state")]
+
+    (agent/register registry
+                    (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")])
+                    (test-topology)
+                    (ClientIdKeyStrategy.))
+
+    (is (deref (:latch registry) 5000 false))
+
+    (testing "a blocking plan send never holds the scheduler thread"
+      (let [scheduler-thread @(.submit ^java.util.concurrent.ScheduledExecutorService (:pool registry)
+                                       ^java.util.concurrent.Callable (fn [] (Thread/currentThread)))]
+        (is (seq (get @senders :observation/plan)))
+        (is (not (contains? (get @senders :observation/plan) scheduler-thread)))))
+
+    (is (empty? (agent/close-registry registry))))
+
+  (testing "a cycle rejected by closed workers is a normal shutdown, not a failure"
+    (let [workers (doto (Executors/newFixedThreadPool 1) (.shutdown))
+          cache   (atom {:delta {:sequence 1}})]
+      (is (= [false false] (map deref (agent/registration-cycle (assoc agent/default-opts :workers workers)
+                                                                {:id "agent-1" :cache cache}))))
+      (is (= {:sequence 1} (:delta @cache))))))
+
+(deftest agent-test-pipelined-sends
+  (let [records  (atom [])
+        config   (-> (StreamsRegistryConfig.)
+                     (.sendMode StreamsRegistryConfig$SendMode/PIPELINED)
+                     (.targetRecordBytes 3000))
+        registry (agent/init-registry (mock-producer records) (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state" config)]
+
+    (agent/register registry
+                    (mock-streams (cons (mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                        (for [n (range 120)]
+                                          (mock-metric (str "metric-" n) "first" "mock metric" {"client-id" "abc123"} 1.0))))
+                    (test-topology)
+                    (ClientIdKeyStrategy.))
+
+    (is (deref (:latch registry) 5000 false))
+
+    (testing "snapshot, three metrics batches and the plan are sent"
+      (is (= [:kafka/streams-agent
+              :kafka/streams-agent-metrics
+              :kafka/streams-agent-metrics
+              :kafka/streams-agent-metrics
+              :observation/plan]
+             (map #(-> % (.value) :type) @records))))
+
+    (is (zero? (agent/metric-value registry "send-failures-total")))
+
+    (testing "records are marked with the Transit encoding of their value"
+      (is (= #{"application/transit+json"}
+             (into #{} (map #(String. (.value (.lastHeader (.headers %) "content-type")))) @records))))
+
+    (is (empty? (agent/close-registry registry)))))
+
+(deftest agent-test-msgpack-wire-format
+  (let [records  (atom [])
+        config   (-> (StreamsRegistryConfig.) (.wireFormat StreamsRegistryConfig$WireFormat/TRANSIT_MSGPACK))
+        registry (agent/init-registry (mock-producer records) (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state" config)]
+
+    (agent/register registry
+                    (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                   (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)])
+                    (test-topology)
+                    (ClientIdKeyStrategy.))
+
+    (is (deref (:latch registry) 5000 false))
+
+    (is (= 3 (count @records)))
+    (is (= #{"application/transit+msgpack"}
+           (into #{} (map #(String. (.value (.lastHeader (.headers %) "content-type")))) @records)))
+
+    (is (empty? (agent/close-registry registry)))))
+
+(deftest agent-test-shared-transport
+  (let [closed   (atom 0)
+        records  (atom [])
+        create   (reify java.util.function.Supplier
+                   (get [_]
+                     (reify Producer
+                       (send [_ record]
+                         (swap! records conj record)
+                         (future nil))
+                       (close [_]
+                         (swap! closed inc)))))
+        props    (->props {"bootstrap.servers" "xyz" "compression.type" "gzip"})
+        config   (.sharedTransport (StreamsRegistryConfig.) true)
+        producer (transport/acquire-producer props StreamsRegistryConfig$WireFormat/TRANSIT_JSON create)
+        a        (agent/init-registry producer (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state" config props)
+        b        (agent/init-registry (transport/acquire-producer props StreamsRegistryConfig$WireFormat/TRANSIT_JSON create)
+                                      (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state" config props)]
+
+    (testing "registries with equal producer properties share one producer and scheduler"
+      (is (= 2 (transport/ref-count producer)))
+      (is (identical? (:pool a) (:pool b)))
+      (is (= 2 (transport/ref-count (:pool a)))))
+
+    (testing "a different wire format or bootstrap gets its own producer"
+      (let [other (transport/acquire-producer props StreamsRegistryConfig$WireFormat/TRANSIT_MSGPACK create)]
+        (is (not (identical? producer other)))
+        (transport/release-producer other)
+        (is (= 1 @closed))))
+
+    (agent/register b
+                    (mock-streams [(mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)
+                                   (mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")])
+                    (test-topology)
+                    (ClientIdKeyStrategy.))
+
+    (testing "closing one registry leaves the shared transport running for the other"
+      (agent/close-registry a)
+      (is (= 1 (transport/ref-count producer)))
+      (is (not (.isShutdown ^java.util.concurrent.ExecutorService (:pool b))))
+      (is (deref (:latch b) 5000 false))
+      (is (= 3 (count @records))))
+
+    (testing "the last registry to close releases the producer and scheduler"
+      (agent/close-registry b)
+      (is (zero? (transport/ref-count producer)))
+      (is (= 2 @closed))
+      (is (.isShutdown ^java.util.concurrent.ExecutorService (:pool b))))))
+
+(deftest agent-test-self-instrumentation
+  (let [producer (MockProducer. true nil (serdes/transit-json-serializer) (serdes/transit-json-serializer))
+        registry (agent/init-registry producer (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state")
+        id       (agent/register registry
+                                 (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                                (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)])
+                                 (test-topology)
+                                 (ClientIdKeyStrategy.))
+        tags     {"agent-id" id}]
+
+    (is (deref (:latch registry) 5000 false))
+
+    (testing "the overhead of each registration is recorded against its agent-id"
+      (is (= 3.0 (agent/metric-value registry "records-total" tags)))
+      (is (= (double (reduce + (mapcat #(map (fn [data] (count (.serialize (serdes/transit-json-serializer) "t" data)))
+                                             [(.key %) (.value %)])
+                                       (.history producer))))
+             (agent/metric-value registry "bytes-total" tags)))
+      (is (pos? (agent/metric-value registry "serialize-time-max" tags)))
+      (is (pos? (agent/metric-value registry "capture-time-max" tags)))
+      (is (pos? (agent/metric-value registry "datafy-time-max" tags)))
+      (is (zero? (agent/metric-value registry "send-failures-total" tags))))
+
+    (testing "scheduler lag is recorded for every cycle"
+      (is (<= 0.0 (agent/metric-value registry "scheduler-lag-max"))))
+
+    (testing "the agent's metrics are reported over JMX"
+      (is (seq (.queryNames (ManagementFactory/getPlatformMBeanServer) (ObjectName. "kpow.streams.agent:*") nil))))
+
+    (testing "a registration's metrics are removed when it is unregistered"
+      (agent/unregister registry id)
+      (is (nil? (agent/metric-value registry "records-total" tags))))
+
+    (is (empty? (agent/close-registry registry)))))
+
+(deftest skipped-cycles
+  (let [metrics (agent/agent-metrics)
+        task    (agent/snapshot-task {:registered-topologies (atom {})
+                                      :in-flight             (AtomicBoolean. true)
+                                      :skipped-sensor        (agent/skipped-sensor metrics)})]
+    (testing "a cycle due while the previous one is in flight is counted as skipped"
+      (.run task)
+      (.run task)
+      (is (= 2.0 (agent/metric-value {:metrics metrics} "cycles-skipped-total"))))
+    (.close metrics)))
+
+(deftest spool-drop-policies
+  (let [dropped (atom [])
+        entry   (fn [n] {:record n :bytes 100 :on-complete (fn [_ e] (when e (swap! dropped conj n)))})]
+
+    (testing "a full spool discards its oldest records by default"
+      (let [spool (spool/spool 300 :drop-oldest)]
+        (is (every? true? (map #(spool/offer! spool (entry %)) (range 5))))
+        (is (= [2 3 4] (map :record (spool/take-batch! spool 10 0))))
+        (is (= 2 (spool/dropped spool)))
+        (is (= [0 1] @dropped))))
+
+    (reset! dropped [])
+
+    (testing "or the new record with :drop-newest"
+      (let [spool (spool/spool 300 :drop-newest)]
+        (is (= [true true true false false] (map #(spool/offer! spool (entry %)) (range 5))))
+        (is (= [0 1 2] (map :record (spool/take-batch! spool 10 0))))
+        (is (= [3 4] @dropped))))
+
+    (testing "requeued records return to the head of the spool in order"
+      (let [spool (spool/spool 1000 :drop-oldest)]
+        (run! #(spool/offer! spool (entry %)) (range 3))
+        (let [batch (spool/take-batch! spool 2 0)]
+          (is (= 100 (spool/spooled-bytes spool)))
+          (spool/offer! spool (entry 3))
+          (spool/requeue! spool batch))
+        (is (= 400 (spool/spooled-bytes spool)))
+        (is (= [0 1 2 3] (map :record (spool/take-batch! spool 10 0))))
+        (is (zero? (spool/spooled-bytes spool)))))
+
+    (reset! dropped [])
+
+    (testing "capacity is counted in encoded bytes, however many records that is"
+      (let [spool (spool/spool 1000 :drop-oldest)]
+        (spool/offer! spool {:record :small :bytes 100})
+        (spool/offer! spool {:record :chunk :bytes 800})
+        (spool/offer! spool {:record :small :bytes 100})
+        (is (= [] @dropped))
+        (spool/offer! spool (entry :metrics))
+        (is (= 1000 (spool/spooled-bytes spool)))
+        (is (= [:chunk :small :metrics] (map :record (spool/take-batch! spool 10 0))))
+        (is (false? (spool/offer! spool (assoc (entry :oversized) :bytes 2000))))
+        (is (= [:oversized] @dropped))))))
+
+(deftest agent-test-spooled-sends
+  (let [producer (MockProducer. true nil (serdes/transit-json-serializer) (serdes/transit-json-serializer))
+        config   (-> (StreamsRegistryConfig.)
+                     (.sendMode StreamsRegistryConfig$SendMode/SPOOLED)
+                     ;; holds the encoded metrics and plan records (~920 bytes), but not the snapshot as well
+                     (.spoolCapacityBytes 960))
+        registry (agent/start-registry (merge (agent/config-opts config)
+                                              {:snapshot-topic   {:topic "__oprtr_snapshot_state"}
+                                               :producer         producer
+                                               :metrics-filter   (MetricFilter/acceptAllMetricFilter)
+                                               :spool-backoff-ms 10}))]
+
+    (set! (.-sendException producer) (TimeoutException. "brokers unavailable"))
+
+    (agent/register registry
+                    (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                   (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)])
+                    (test-topology)
+                    (ClientIdKeyStrategy.))
+
+    (testing "observations complete while the brokers are unavailable, a full spool drops its oldest record"
+      (is (deref (:latch registry) 5000 false))
+      (is (empty? (.history producer)))
+      (is (= 2.0 (agent/metric-value registry "spool-size")))
+      (is (< 0.0 (agent/metric-value registry "spool-bytes") 960.0))
+      (is (= 1.0 (agent/metric-value registry "spool-dropped-total"))))
+
+    (testing "spooled records drain in order once the brokers recover"
+      (set! (.-sendException producer) nil)
+      (is (loop [attempts 500]
+            (cond (= 2 (count (.history producer))) true
+                  (zero? attempts) false
+                  :else (do (Thread/sleep 10) (recur (dec attempts))))))
+      (is (= [:kafka/streams-agent-metrics :observation/plan]
+             (map #(:type (serdes/transit-deserialize :json (.value %))) (.history producer))))
+      (is (zero? (spool/size (:spool registry))))
+      (is (zero? (spool/spooled-bytes (:spool registry)))))
+
+    (is (empty? (agent/close-registry registry)))))
+
+(defn mock-stateful-streams [state m]
+  (reify MockStreams
+    (metrics [_] (into {} m))
+    (state [_] @state)))
+
+(def streams-metrics
+  [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+   (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)])
+
+(defn state-change-records
+  [records]
+  (filter #(= :state-change (-> % (.value) :trigger)) @records))
+
+(deftest state-change-snapshots
+  (testing "the first change is sent immediately and a burst within the debounce is coalesced"
+    (let [records      (atom [])
+          scheduler    (Executors/newSingleThreadScheduledExecutor)
+          workers      (Executors/newFixedThreadPool 1)
+          registration {:id           "agent-1"
+                        :streams      (mock-stateful-streams (atom KafkaStreams$State/RUNNING) streams-metrics)
+                        :topology     (test-topology)
+                        :key-strategy (ClientIdKeyStrategy.)
+                        :cache        (atom {})
+                        :state-watch  (agent/state-watch)}
+          ctx          (assoc agent/default-opts
+                              :scheduler scheduler
+                              :workers workers
+                              :registered-topologies (atom {"agent-1" registration})
+                              :producer (mock-producer records)
+                              :snapshot-topic {:topic "__oprtr_snapshot_state"}
+                              :metrics-filter (MetricFilter/acceptAllMetricFilter)
+                              :failure-sensor (agent/failure-sensor (agent/agent-metrics))
+                              :state-debounce-ms 300)]
+      (agent/state-changed! ctx registration KafkaStreams$State/RUNNING KafkaStreams$State/REBALANCING)
+      (Thread/sleep 100)
+      (is (= [[{:from "RUNNING" :to "REBALANCING"}]]
+             (map #(map (fn [t] (dissoc t :at)) (-> % (.value) :data :state/transitions)) (state-change-records records))))
+
+      (agent/state-changed! ctx registration KafkaStreams$State/REBALANCING KafkaStreams$State/RUNNING)
+      (agent/state-changed! ctx registration KafkaStreams$State/RUNNING KafkaStreams$State/REBALANCING)
+      (agent/state-changed! ctx registration KafkaStreams$State/REBALANCING KafkaStreams$State/RUNNING)
+      (Thread/sleep 100)
+      (is (= 1 (count (state-change-records records))))
+      (Thread/sleep 400)
+      (let [[_ coalesced] (state-change-records records)]
+        (is (= 3 (count (-> coalesced (.value) :data :state/transitions))))
+        (is (= "RUNNING" (-> coalesced (.value) :data :state)))
+        (is (string? (-> coalesced (.value) :data :topology/fingerprint)))
+        (is (nil? (-> coalesced (.value) :data :topology))))
+      (.shutdownNow scheduler)
+      (.shutdownNow workers)))
+
+  (testing "a started application is polled for state changes"
+    (let [records  (atom [])
+          state    (atom KafkaStreams$State/RUNNING)
+          config   (-> (StreamsRegistryConfig.) (.stateChangeSnapshots true) (.stateChangeDebounceMs 20))
+          registry (agent/init-registry (mock-producer records) (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state" config)
+          id       (agent/register registry (mock-stateful-streams state streams-metrics) (test-topology) (ClientIdKeyStrategy.))]
+      (reset! state KafkaStreams$State/ERROR)
+      (Thread/sleep 200)
+      (is (= [[["RUNNING" "ERROR"]]]
+             (map #(map (juxt :from :to) (-> % (.value) :data :state/transitions)) (state-change-records records))))
+      (agent/unregister registry id)
+      (reset! state KafkaStreams$State/RUNNING)
+      (Thread/sleep 100)
+      (is (= 1 (count (state-change-records records))))
+      (is (empty? (agent/close-registry registry)))))
+
+  (testing "closing a registry stops polling, also on a shared scheduler"
+    (doseq [shared? [false true]]
+      (let [config       (-> (StreamsRegistryConfig.) (.stateChangeSnapshots true) (.sharedTransport shared?))
+            registry     (agent/init-registry (mock-producer (atom [])) (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state" config)
+            id           (agent/register registry (mock-stateful-streams (atom KafkaStreams$State/RUNNING) streams-metrics)
+                                         (test-topology) (ClientIdKeyStrategy.))
+            ^java.util.concurrent.ScheduledFuture poll (.get ^java.util.concurrent.atomic.AtomicReference
+                                                        (get-in @(:topologies registry) [id :state-watch :poll]))]
+        (is (some? poll))
+        (is (empty? (agent/close-registry registry)))
+        (is (.isCancelled poll)))))
+
+  (testing "the state listener chains onto an existing listener"
+    (let [streams  (KafkaStreams. (test-topology) (->props {"application.id"    "state-listener-test"
+                                                            "bootstrap.servers" "localhost:1"}))
+          existing (atom [])
+          ours     (atom [])]
+      (.setStateListener streams (reify KafkaStreams$StateListener
+                                   (onChange [_ new-state old-state]
+                                     (swap! existing conj [old-state new-state]))))
+      (is (agent/chain-state-listener! streams (fn [from to] (swap! ours conj [from to]))))
+      (.close streams)
+      (is (seq @ours))
+      (is (= @existing @ours))
+      (is (not (agent/chain-state-listener! streams (fn [_ _])))))))
+
+(deftest phase-spreading
+  (testing "a registration's phase is a stable offset within the interval aligned to the wall clock"
+    (let [id    "6d1f4f4e-31b0-4e55-9b5c-0d0b5c2b1c7a"
+          delay (agent/phase-delay-ms id 60000 1000000)]
+      (is (<= 0 delay 59999))
+      (is (= delay (agent/phase-delay-ms id 60000 1000000)))
+      (is (= (mod (- delay 1000) 60000) (agent/phase-delay-ms id 60000 1001000)))
+      (is (< 1 (count (into #{} (map #(agent/phase-delay-ms (str "agent-" %) 60000 0)) (range 10)))))))
+
+  (testing "each registration is observed on its own schedule"
+    (let [records  (atom [])
+          registry (agent/start-registry {:snapshot-topic   {:topic "__oprtr_snapshot_state"}
+                                          :producer         (mock-producer records)
+                                          :metrics-filter   (MetricFilter/acceptAllMetricFilter)
+                                          :phase-spreading? true
+                                          :interval-ms      400
+                                          :initial-delay-ms 0
+                                          :plan-delay-ms    0})
+          register (fn [client-id]
+                     (agent/register registry
+                                     (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" client-id} "xxx")
+                                                    (mock-metric "first.metric" "first" "mock metric" {"client-id" client-id} 1.0)])
+                                     (test-topology)
+                                     (ClientIdKeyStrategy.)))
+          first-id (register "abc123")
+          _        (register "def456")]
+      (is (nil? (:scheduled-future registry)))
+      (Thread/sleep 1000)
+      (is (= #{"abc123" "def456"}
+             (into #{} (comp (filter #(= :observation/plan (-> % (.value) :type))) (map #(-> % (.value) :client-id))) @records)))
+      (let [schedule (.get ^java.util.concurrent.atomic.AtomicReference (get-in @(:topologies registry) [first-id :schedule]))]
+        (agent/unregister registry first-id)
+        (is (.isCancelled ^java.util.concurrent.Future schedule)))
+      (is (empty? (agent/close-registry registry)))))
+
+  (testing "ticks are delayed by up to jitter-ms"
+    (let [scheduler (Executors/newSingleThreadScheduledExecutor)
+          ran       (promise)
+          started   (System/currentTimeMillis)
+          tick      (agent/ticker {:scheduler   scheduler
+                                   :lag-sensor  (agent/lag-sensor (agent/agent-metrics))
+                                   :jitter-ms   50
+                                   :interval-ms 1000}
+                                  (java.util.concurrent.atomic.AtomicLong. started)
+                                  #(deliver ran (System/currentTimeMillis)))]
+      (.run tick)
+      (is (<= (- (deref ran 1000 Long/MAX_VALUE) started) 1000))
+      (.shutdownNow scheduler))))
+
+(deftest streams-registry-background-init
+  (testing "the registry starts in the background and applies registrations once started"
+    (let [config   (-> (StreamsRegistryConfig.) (.backgroundInit true) (.sharedTransport true))
+          registry (StreamsRegistry. (->props {"bootstrap.servers" "localhost:1"}) (MetricFilter/acceptAllMetricFilter)
+                                     StreamsRegistry$TargetProduct/KPOW config)
+          agent    (.register registry nil (test-topology) (ClientIdKeyStrategy.))]
+      (is (uuid? (parse-uuid (.getId agent))))
+      (.unregister registry agent)
+      (.close registry)))
+
+  (testing "a failed background initialization is logged rather than thrown"
+    (let [config   (.backgroundInit (StreamsRegistryConfig.) true)
+          registry (StreamsRegistry. (->props {"bootstrap.servers" "not a host"}) (MetricFilter/acceptAllMetricFilter)
+                                     StreamsRegistry$TargetProduct/KPOW config)]
+      (is (some? (.register registry nil (test-topology) (ClientIdKeyStrategy.))))
+      (.close registry))))
+
+(deftest agent-test-pipelined-send-failures
+  (let [records  (atom [])
+        config   (-> (StreamsRegistryConfig.) (.sendMode StreamsRegistryConfig$SendMode/PIPELINED))
+        registry (agent/init-registry (mock-producer records (Exception. "broker unavailable"))
+                                      (MetricFilter/acceptAllMetricFilter)
+                                      "__oprtr_snapshot_state"
+                                      config)]
+
+    (agent/register registry
+                    (mock-streams [(mock-metric "application-id" "first" "mock metric" {"client-id" "abc123"} "xxx")
+                                   (mock-metric "first.metric" "first" "mock metric" {"client-id" "abc123"} 1.0)])
+                    (test-topology)
+                    (ClientIdKeyStrategy.))
+
+    (is (deref (:latch registry) 5000 false))
+
+    (testing "failures are reported once per cycle and the plan is not sent"
+      (is (= [:kafka/streams-agent :kafka/streams-agent-metrics]
+             (map #(-> % (.value) :type) @records)))
+      (is (= 2.0 (agent/metric-value registry "send-failures-total"))))
+
+    (is (empty? (agent/close-registry registry)))))
+
+(defn temp-dir []
+  (Files/createTempDirectory "kpow-sink" (make-array FileAttribute 0)))
+
+(defn sink-entries
+  [dir]
+  (map (fn [^MappedFileSinkReader$Entry entry]
+         [(serdes/transit-deserialize :json (.getKey entry))
+          (serdes/transit-deserialize :json (.getValue entry))])
+       (MappedFileSinkReader/readAll dir)))
+
+(deftest mapped-file-sink
+  (testing "records round trip in order across segments and only the newest segments are retained"
+    (let [dir  (temp-dir)
+          sink (MappedFileSink. dir 1024 3)]
+      (doseq [n (range 100)]
+        (.write sink "topic" (ByteBuffer/wrap (.getBytes (str "key-" n))) (ByteBuffer/wrap (.getBytes (apply str (repeat 40 n))))))
+      (.write sink "topic" nil (ByteBuffer/wrap (.getBytes "no key")))
+      (.close sink)
+      (let [entries (MappedFileSinkReader/readAll dir)]
+        (is (= 3 (count (MappedFileSinkReader/segments dir))))
+        (is (< 0 (count entries) 101))
+        (is (= [nil "no key"] (let [^MappedFileSinkReader$Entry entry (last entries)]
+                                [(.getKey entry) (String. ^bytes (.getValue entry))])))
+        (is (= (map #(str "key-" %) (range (- 101 (count entries)) 100))
+               (map #(String. ^bytes (.getKey ^MappedFileSinkReader$Entry %)) (butlast entries)))))
+
+      (testing "a reopened sink writes to a new segment after the existing ones"
+        (let [before (MappedFileSinkReader/segments dir)
+              sink   (MappedFileSink. dir 1024 3)]
+          (.write sink "topic" nil (ByteBuffer/wrap (.getBytes "reopened")))
+          (.close sink)
+          (is (= (rest before) (butlast (MappedFileSinkReader/segments dir))))
+          (is (= "reopened" (String. ^bytes (.getValue ^MappedFileSinkReader$Entry (last (MappedFileSinkReader/readAll dir))))))))))
+
+  (testing "files with the segment suffix that a sink did not write are ignored"
+    (let [dir (temp-dir)]
+      (Files/write (.resolve dir "notes.segment") (.getBytes "not a segment") (make-array OpenOption 0))
+      (let [sink (MappedFileSink. dir 1024 1)]
+        (.write sink "topic" nil (ByteBuffer/wrap (.getBytes "written")))
+        (.close sink))
+      (is (= ["written"] (map #(String. ^bytes (.getValue ^MappedFileSinkReader$Entry %)) (MappedFileSinkReader/readAll dir))))
+      (is (Files/exists (.resolve dir "notes.segment") (make-array java.nio.file.LinkOption 0)))))
+
+  (testing "a failed roll leaves no current segment and the next write starts one"
+    (let [dir  (temp-dir)
+          sink (MappedFileSink. dir 1024 2)]
+      (.write sink "topic" nil (ByteBuffer/wrap (byte-array 900)))
+      (run! #(Files/delete %) (MappedFileSinkReader/segments dir))
+      (Files/delete dir)
+      (is (thrown? java.io.IOException (.write sink "topic" nil (ByteBuffer/wrap (byte-array 900)))))
+      (Files/createDirectories dir (make-array FileAttribute 0))
+      (.write sink "topic" nil (ByteBuffer/wrap (.getBytes "after")))
+      (.flush sink)
+      (.close sink)
+      (is (= ["after"] (map #(String. ^bytes (.getValue ^MappedFileSinkReader$Entry %)) (MappedFileSinkReader/readAll dir))))))
+
+  (testing "a record whose lengths overrun the segment reads as its end"
+    (let [dir    (temp-dir)
+          buffer (doto (ByteBuffer/allocate 64)
+                   (.putInt 18) (.putLong 0) (.putInt -1) (.putInt 2) (.put (.getBytes "ok"))
+                   (.putInt 18) (.putLong 0) (.putInt 1000) (.putInt 2) (.put (.getBytes "no")))]
+      (Files/write (.resolve dir (format "%020d.segment" 0)) (.array buffer) (make-array OpenOption 0))
+      (is (= ["ok"] (map #(String. ^bytes (.getValue ^MappedFileSinkReader$Entry %)) (MappedFileSinkReader/readAll dir))))))
+
+  (testing "records larger than a segment fail to write"
+    (let [sink (MappedFileSink. (temp-dir) 1024 1)]
+      (is (thrown? java.io.IOException (.write sink "topic" nil (ByteBuffer/wrap (byte-array 2000)))))
+      (.close sink)
+      (is (thrown? java.io.IOException (.write sink "topic" nil (ByteBuffer/wrap (byte-array 10)))))))
+
+  (testing "the buffers handed to a sink view the encoded bytes without copying them out"
+    (let [encoders (serdes/encoders :json)
+          data     {:type :kafka/streams-agent :data [1 2 3]}]
+      (is (= (seq (serdes/reusable-serialize encoders data))
+             (serdes/encode-with encoders data (fn [^ByteBuffer buffer]
+                                                 (is (.isReadOnly buffer))
+                                                 (let [bytes (byte-array (.remaining buffer))]
+                                                   (.get buffer bytes)
+                                                   (seq bytes)))))))))
+
+(deftest telemetry-sinks
+  (testing "a sink registry writes every record to the sink without a producer, whatever the send mode"
+    (doseq [send-mode [StreamsRegistryConfig$SendMode/BLOCKING StreamsRegistryConfig$SendMode/SPOOLED]]
+      (let [dir      (temp-dir)
+            registry (agent/init-sink-registry (MappedFileSink. dir) (MetricFilter/acceptAllMetricFilter)
+                                               "__oprtr_snapshot_state" (.sendMode (StreamsRegistryConfig.) send-mode))]
+        (agent/register registry (mock-streams streams-metrics) (test-topology) (ClientIdKeyStrategy.))
+        (is (deref (:latch registry) 5000 false))
+        (is (nil? (:spool registry)))
+        (is (empty? (agent/close-registry registry)))
+        (let [entries (sink-entries dir)]
+          (is (= #{:kafka/streams-agent :kafka/streams-agent-metrics :observation/plan}
+                 (into #{} (map (comp :type second)) entries)))
+          (is (every? #(= [:streams "abc123" :kafka/streams-agent] (first %)) entries))
+          (is (= :observation/plan (-> entries last second :type)))))))
+
+  (testing "a configured sink receives the same records as the producer, and a failing sink never stops sends"
+    (let [dir      (temp-dir)
+          producer (MockProducer. true nil (serdes/transit-json-serializer) (serdes/transit-json-serializer))
+          registry (agent/init-registry producer (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state"
+                                        (.sink (StreamsRegistryConfig.) (MappedFileSink. dir)))]
+      (agent/register registry (mock-streams streams-metrics) (test-topology) (ClientIdKeyStrategy.))
+      (is (deref (:latch registry) 5000 false))
+      (is (empty? (agent/close-registry registry)))
+      (testing "from the bytes sent to Kafka, encoded once"
+        (is (every? #(and (bytes? (.key %)) (bytes? (.value %))) (.history producer)))
+        (is (= (map (fn [record] [(serdes/transit-deserialize :json (.key record))
+                                  (serdes/transit-deserialize :json (.value record))])
+                    (.history producer))
+               (sink-entries dir)))))
+
+    (let [producer (MockProducer. true nil (serdes/transit-json-serializer) (serdes/transit-json-serializer))
+          closed   (AtomicBoolean. false)
+          failing  (reify TelemetrySink
+                     (write [_ _ _ _] (throw (java.io.IOException. "disk full")))
+                     (close [_] (.set closed true)))
+          registry (agent/init-registry producer (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state"
+                                        (.sink (StreamsRegistryConfig.) failing))]
+      (agent/register registry (mock-streams streams-metrics) (test-topology) (ClientIdKeyStrategy.))
+      (is (deref (:latch registry) 5000 false))
+      (is (empty? (agent/close-registry registry)))
+      (is (< 1 (count (.history producer))))
+      (is (.get closed))))
+
+  (testing "sinks are flushed once an observation and its plan are written, and before they are closed"
+    (let [producer (MockProducer. true nil (serdes/transit-json-serializer) (serdes/transit-json-serializer))
+          events   (atom [])
+          counting (reify TelemetrySink
+                     (write [_ _ _ _] (swap! events conj :write))
+                     (flush [_] (swap! events conj :flush))
+                     (close [_] (swap! events conj :close)))
+          registry (agent/init-registry producer (MetricFilter/acceptAllMetricFilter) "__oprtr_snapshot_state"
+                                        (.sink (StreamsRegistryConfig.) counting))]
+      (agent/register registry (mock-streams streams-metrics) (test-topology) (ClientIdKeyStrategy.))
+      (is (deref (:latch registry) 5000 false))
+      (is (= [:write :write :flush :write :flush] @events))
+      (is (empty? (agent/close-registry registry)))
+      (is (= [:flush :close] (drop 5 @events))))))
@@ -0,0 +1,71 @@
+(ns io.factorhouse.serdes-test
+  (:require [clojure.test :refer :all]
+            [io.factorhouse.kpow.serdes :as serdes])
+  (:import (java.util Arrays)
+           (org.apache.kafka.clients.producer ProducerRecord)
+           (org.apache.kafka.common.serialization Serializer)
+           (org.apache.kafka.streams.kstream Windowed)))
+
+(def records
+  [{:type           :kafka/streams-agent-metrics
+    :application-id "xxx"
+    :client-id      "abc123"
+    :captured       1700000000000
+    :data           (vec (for [n (range 100)]
+                           {:name  (str "records-lag-" (mod n 7))
+                            :tags  {"client-id" "abc123" "thread-id" (str "abc123-StreamThread-" (mod n 3)) "task-id" (str "0_" n)}
+                            :value (double n)}))
+    :job/id         "d7a8c4f2"
+    :snapshot/id    {:domain :streams :id [:streams "abc123" :kafka/streams-agent]}}
+   [:streams "abc123" :kafka/streams-agent]
+   "a string"
+   {:window (Windowed. "key" (serdes/window 0 1000))}
+   {}])
+
+(deftest reusable-serializer-is-byte-compatible
+  (doseq [format [:json :msgpack]]
+    (let [^Serializer serializer (serdes/reusable-transit-serializer format)]
+      (testing (str format " records written in sequence by one reused writer")
+        (doseq [record (concat records records)]
+          (is (Arrays/equals ^bytes (serdes/transit-serialize format record)
+                             ^bytes (.serialize serializer "topic" record)))))
+
+      (testing (str format " round trip")
+        (is (= (first records) (serdes/transit-deserialize format (.serialize serializer "topic" (first records))))))
+
+      (testing (str format " nil is not serialized")
+        (is (nil? (.serialize serializer "topic" nil)))))))
+
+(deftest reusable-serializer-is-thread-confined
+  (let [^Serializer serializer (serdes/transit-json-serializer)
+        expected               (mapv #(serdes/transit-serialize :json %) records)
+        results                (doall (for [_ (range 8)]
+                                        (future
+                                          (every? true?
+                                                  (for [_ (range 50)
+                                                        [n record] (map-indexed vector records)]
+                                                    (Arrays/equals ^bytes (nth expected n)
+                                                                   ^bytes (.serialize serializer "topic" record)))))))]
+    (is (every? true? (map deref results)))))
+
+(deftest reusable-serializer-recovers-from-failed-writes
+  (let [^Serializer serializer (serdes/transit-json-serializer)]
+    (is (thrown? Exception (.serialize serializer "topic" {:data (map (fn [_] (throw (Exception. "boom"))) [1])})))
+    (is (Arrays/equals ^bytes (serdes/transit-serialize :json (first records))
+                       ^bytes (.serialize serializer "topic" (first records))))))
+
+(deftest encoded-records-are-sent-as-is
+  (doseq [format [:json :msgpack]]
+    (let [^Serializer serializer (serdes/reusable-transit-serializer format)
+          teed                   (atom [])
+          record                 (ProducerRecord. "topic" (second records) (first records))
+          ^ProducerRecord encoded (serdes/encode-record (serdes/encoders :json) (serdes/encoders format) record
+                                                        (fn [topic key value]
+                                                          (swap! teed conj [topic (.remaining key) (.remaining value)])))]
+      (testing (str format " keys as Transit JSON and values in the wire format, encoded once")
+        (is (Arrays/equals ^bytes (serdes/transit-serialize :json (.key record)) ^bytes (.key encoded)))
+        (is (Arrays/equals ^bytes (serdes/transit-serialize format (.value record)) ^bytes (.value encoded)))
+        (is (= [["topic" (alength ^bytes (.key encoded)) (alength ^bytes (.value encoded))]] @teed)))
+
+      (testing (str format " the serializer passes encoded bytes through")
+        (is (identical? (.value encoded) (.serialize serializer "topic" (.value encoded))))))))